@@ -0,0 +1,15 @@
+package com.demo.plugin;
+
+import android.content.Context;
+
+import com.demo.patch.loader.PatchLoader;
+
+public class Application extends android.app.Application {
+
+    @Override
+    protected void attachBaseContext(Context base) {
+        super.attachBaseContext(base);
+        // 在任何业务类加载之前加载补丁，本类不会被插桩，也不能被补丁替换
+        PatchLoader.install(base);
+    }
+}
@@ -0,0 +1,280 @@
+package com.demo.patch;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 补丁引擎的命令行入口，不需要 Android sdk 和 Gradle，可以在 CI 或没有安装 sdk 的机器上插桩和生成补丁。
+ * <p>
+ * 输入是编译好的 class 目录和 jar 包，默认先拷贝到输出目录的 classes 目录中再插桩，不改写原文件；
+ * 输出目录的结构与 Gradle 插件相同，其中 baseline 目录是下一次执行的默认基准。
+ * 命令行每次都完整处理所有输入，不做增量处理，插桩缓存依然有效
+ */
+public class PatchCli {
+
+    private static final String USAGE = "用法：patch-cli --output <目录> [选项] <class 目录或 jar 包>...\n"
+            + "  class 目录是包的根目录，比如 javac -d 的输出目录\n"
+            + "  --output <目录>        补丁输出目录，必填\n"
+            + "  --baseline <文件>      作为基准的摘要索引 hex.idx，默认使用输出目录中上一次生成的备份\n"
+            + "  --mapping <文件>       混淆名索引 mapping.idx，没有开启混淆时不需要\n"
+            + "  --application <类名>   Application 的全类名，不插桩\n"
+            + "  --include <类名>       需要插桩的类，可以重复，支持与 Gradle 插件相同的通配符\n"
+            + "  --exclude <类名>       不插桩的类，可以重复\n"
+            + "  --digest <算法>        murmur3 或 md5，默认 murmur3\n"
+            + "  --injection <方式>     插桩方式，默认 constructor\n"
+            + "  --dexer <工具>         d8 或 dx，默认 d8\n"
+            + "  --dx <路径>            dx 命令的路径，使用 dx 时必填\n"
+            + "  --min-api <级别>       app 的 minSdkVersion，默认 1\n"
+            + "  --compress <级别>      补丁包的压缩级别 0-9，默认 6\n"
+            + "  --delta                生成与上一个补丁包的差分文件\n"
+            + "  --verify               校验插桩后的每个 class\n"
+            + "  --no-dependents        不把依赖被修改类的类放入补丁\n"
+            + "  --cache-dir <目录>     插桩缓存目录，默认不缓存\n"
+            + "  --history-dir <目录>   发布历史目录，默认为输出目录中的 patch-history\n"
+            + "  --baseline-tag <tag>   把本次编译记录为发布版本\n"
+            + "  --patch-baseline <tag> 为发布版本生成补丁，可以重复\n"
+            + "  --parallelism <数量>   插桩线程数，默认为 cpu 核数\n"
+            + "  --in-place             直接改写输入文件，不拷贝";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchCli.class);
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    static int run(String[] args) {
+        File outputDir = null;
+        File hexFile = null;
+        File mappingFile = null;
+        String applicationName = null;
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        String digest = "murmur3";
+        String injection = "constructor";
+        String dexer = "d8";
+        String dxPath = null;
+        int minApiLevel = 1;
+        int compressLevel = 6;
+        boolean delta = false;
+        boolean verify = false;
+        boolean includeDependents = true;
+        File cacheDir = null;
+        File historyDir = null;
+        String baselineTag = null;
+        ArrayList<String> patchBaselines = new ArrayList<>();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean inPlace = false;
+        List<File> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--output":
+                    outputDir = new File(value(args, ++i, arg));
+                    break;
+                case "--baseline":
+                    hexFile = new File(value(args, ++i, arg));
+                    break;
+                case "--mapping":
+                    mappingFile = new File(value(args, ++i, arg));
+                    break;
+                case "--application":
+                    applicationName = value(args, ++i, arg);
+                    break;
+                case "--include":
+                    includes.add(value(args, ++i, arg));
+                    break;
+                case "--exclude":
+                    excludes.add(value(args, ++i, arg));
+                    break;
+                case "--digest":
+                    digest = value(args, ++i, arg);
+                    break;
+                case "--injection":
+                    injection = value(args, ++i, arg);
+                    break;
+                case "--dexer":
+                    dexer = value(args, ++i, arg);
+                    break;
+                case "--dx":
+                    dxPath = value(args, ++i, arg);
+                    break;
+                case "--min-api":
+                    minApiLevel = intValue(args, ++i, arg);
+                    break;
+                case "--compress":
+                    compressLevel = intValue(args, ++i, arg);
+                    break;
+                case "--delta":
+                    delta = true;
+                    break;
+                case "--verify":
+                    verify = true;
+                    break;
+                case "--no-dependents":
+                    includeDependents = false;
+                    break;
+                case "--cache-dir":
+                    cacheDir = new File(value(args, ++i, arg));
+                    break;
+                case "--history-dir":
+                    historyDir = new File(value(args, ++i, arg));
+                    break;
+                case "--baseline-tag":
+                    baselineTag = value(args, ++i, arg);
+                    break;
+                case "--patch-baseline":
+                    String tag = value(args, ++i, arg);
+                    if (!patchBaselines.contains(tag)) {
+                        patchBaselines.add(tag);
+                    }
+                    break;
+                case "--parallelism":
+                    parallelism = intValue(args, ++i, arg);
+                    break;
+                case "--in-place":
+                    inPlace = true;
+                    break;
+                case "--help":
+                    System.out.println(USAGE);
+                    return 0;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("未知的选项：" + arg);
+                    }
+                    File input = new File(arg);
+                    if (!input.exists()) {
+                        throw new IllegalArgumentException("输入文件不存在：" + arg);
+                    }
+                    // 类路径是 class 文件相对于输入目录的路径，单独的 class 文件无法确定包名
+                    if (!input.isDirectory() && !arg.endsWith(".jar")) {
+                        throw new IllegalArgumentException("输入只能是 class 目录或 jar 包：" + arg);
+                    }
+                    inputs.add(input);
+            }
+        }
+        if (outputDir == null) {
+            throw new IllegalArgumentException("没有指定输出目录");
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("没有指定输入文件");
+        }
+
+        try {
+            outputDir.mkdirs();
+            if (hexFile == null) {
+                hexFile = promoteBaseline(outputDir);
+            }
+            if (!inPlace) {
+                inputs = copyInputs(inputs, new File(outputDir, "classes"));
+            }
+            if (historyDir == null) {
+                historyDir = new File(outputDir, "patch-history");
+            }
+            if (baselineTag != null) {
+                BaselineHistory.checkTag(baselineTag);
+            }
+            for (String tag : patchBaselines) {
+                BaselineHistory.checkTag(tag);
+            }
+            ClassFilter classFilter = ClassFilter.of(applicationName, includes, excludes);
+            // 命令行进程只执行一次，不需要守护进程缓存
+            InstrumentSettings settings = new InstrumentSettings(classFilter, digest,
+                    InjectionStrategy.of(injection), new HashSet<String>(), verify, includeDependents, hexFile,
+                    cacheDir, 512L * 1024 * 1024, mappingFile, historyDir, patchBaselines,
+                    new File(outputDir, "releases"), 256L * 1024 * 1024, 0);
+            PatchSettings patchSettings = new PatchSettings(dexer, delta, compressLevel, minApiLevel, dxPath,
+                    baselineTag);
+
+            PatchReport report = new PatchReport();
+            report.setAttribute("dexer", dexer);
+            report.setAttribute("digest", digest);
+            report.setAttribute("injection", injection);
+            report.setAttribute("maxWorkers", parallelism);
+            report.setAttribute("incremental", false);
+            report.setAttribute("cacheEnabled", cacheDir != null);
+            PatchEngine engine = new PatchEngine(LOGGER, settings, patchSettings, outputDir);
+            PatchEngine.Result result = engine.run(inputs, parallelism, report);
+
+            if (result.patchClasses.isEmpty()) {
+                System.out.println("与基准相比没有需要打补丁的类");
+            } else {
+                System.out.println("补丁包含 " + result.patchClasses.size() + " 个类：" + result.patchFile.getAbsolutePath());
+            }
+            if (result.recorded) {
+                System.out.println("已记录发布版本 " + baselineTag + "：" + historyDir.getAbsolutePath());
+            }
+            System.out.println("新的基准：" + engine.getBaselineDir().getAbsolutePath());
+            return 0;
+        } catch (PatchException | IOException e) {
+            LOGGER.error("生成补丁失败", e);
+            return 1;
+        }
+    }
+
+    /**
+     * 与 Gradle 插件的插桩任务相同，把上一次生成的备份拷贝到输出目录中作为本次的基准，
+     * 上一次的依赖索引也在同一个目录中
+     */
+    private static File promoteBaseline(File outputDir) throws IOException {
+        File baselineDir = new File(outputDir, PatchEngine.BASELINE_DIR_NAME);
+        for (String name : new String[]{HexIndex.FILE_NAME, DependencyIndex.FILE_NAME}) {
+            File source = new File(baselineDir, name);
+            File target = new File(outputDir, name);
+            if (source.exists()) {
+                FileUtils.copyFile(source, target, false);
+            } else {
+                target.delete();
+            }
+        }
+        return new File(outputDir, HexIndex.FILE_NAME);
+    }
+
+    /**
+     * 插桩会原地改写输入文件，先把输入拷贝到输出目录中。加上序号避免同名的 jar 包互相覆盖
+     */
+    private static List<File> copyInputs(List<File> inputs, File classesDir) throws IOException {
+        FileUtils.deleteDirectory(classesDir);
+        List<File> copies = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            File input = inputs.get(i);
+            File copy = new File(classesDir, i + "-" + input.getName());
+            if (input.isDirectory()) {
+                FileUtils.copyDirectory(input, copy);
+            } else {
+                FileUtils.copyFile(input, copy);
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("选项 " + option + " 缺少参数");
+        }
+        return args[index];
+    }
+
+    private static int intValue(String[] args, int index, String option) {
+        String value = value(args, index, option);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("选项 " + option + " 的参数不是整数：" + value, e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.demo.patch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在临时的 class 目录上完整执行命令行，检查摘要备份中的类路径
+ */
+public class PatchCliTest {
+
+    private static final List<String> CLASS_PATHS = Arrays.asList("com/demo/Foo.class", "com/demo/sub/Bar.class");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void copiesInputsAndRecordsPackagePaths() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+        assertEquals(CLASS_PATHS, baselineKeys(output));
+        // 原文件没有被插桩改写
+        assertArrayEquals(generateClass("com/demo/Foo"), Files.readAllBytes(new File(bin, CLASS_PATHS.get(0)).toPath()));
+
+        // 再次执行时上一次的备份就是基准，没有变化的类不会放入补丁
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+        assertEquals(CLASS_PATHS, baselineKeys(output));
+        assertFalse(new File(output, PatchEngine.PATCH_FILE_NAME).exists());
+    }
+
+    @Test
+    public void instrumentsInPlaceOutsideClassesDir() throws IOException {
+        // 路径中没有 classes 目录，类路径只能相对于输入目录计算
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+
+        assertEquals(0, PatchCli.run(new String[]{"--in-place", "--output", output.getPath(), bin.getPath()}));
+        assertEquals(CLASS_PATHS, baselineKeys(output));
+        assertFalse(Arrays.equals(generateClass("com/demo/Foo"),
+                Files.readAllBytes(new File(bin, CLASS_PATHS.get(0)).toPath())));
+    }
+
+    @Test
+    public void excludesByPackagePath() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), "--exclude", "com.demo.sub.*",
+                bin.getPath()}));
+        assertEquals(CLASS_PATHS.subList(0, 1), baselineKeys(output));
+    }
+
+    @Test
+    public void failsWhenPatchCannotBeGenerated() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+
+        // 修改一个类后需要生成补丁，使用 dx 却没有给出 dx 命令的路径，补丁生成失败时不能返回成功
+        File foo = new File(bin, CLASS_PATHS.get(0));
+        Files.write(foo.toPath(), generateClass("com/demo/Foo", "added"));
+        assertEquals(1, PatchCli.run(new String[]{"--output", output.getPath(), "--dexer", "dx", bin.getPath()}));
+        assertFalse(new File(output, PatchEngine.PATCH_FILE_NAME).exists());
+    }
+
+    @Test
+    public void failsWhenBaselineDigestDiffers() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), "--digest", "md5", bin.getPath()}));
+
+        // 基准是 md5，默认的 murmur3 摘要无法与它比较，不能当作没有变化的类而返回成功
+        File foo = new File(bin, CLASS_PATHS.get(0));
+        Files.write(foo.toPath(), generateClass("com/demo/Foo", "added"));
+        assertEquals(1, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+        assertFalse(new File(output, PatchEngine.PATCH_FILE_NAME).exists());
+        // 基准没有被替换，配置回 md5 之后依然可以为它打补丁
+        HexIndex index = HexIndex.open(new File(new File(output, PatchEngine.BASELINE_DIR_NAME), HexIndex.FILE_NAME));
+        assertNotNull(index);
+        try {
+            assertEquals(DigestAlgorithm.MD5, index.algorithm());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void rebaselinesWhenInstrumentVersionDiffers() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+
+        // 把基准改写成旧版本插件生成的：摘要不变，只是没有当前的插桩版本
+        File hexFile = new File(new File(output, PatchEngine.BASELINE_DIR_NAME), HexIndex.FILE_NAME);
+        HexIndex index = HexIndex.open(hexFile);
+        assertNotNull(index);
+        DigestTable hexes;
+        DigestAlgorithm algorithm;
+        try {
+            hexes = index.toTable();
+            algorithm = index.algorithm();
+        } finally {
+            index.close();
+        }
+        HexIndex.write(hexes, algorithm, ClassUtils.INSTRUMENT_VERSION - 1, hexFile);
+
+        // 与旧的基准比较时所有类都有变化，这一次只更新基准，不生成补丁
+        File foo = new File(bin, CLASS_PATHS.get(0));
+        Files.write(foo.toPath(), generateClass("com/demo/Foo", "added"));
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+        assertFalse(new File(output, PatchEngine.PATCH_FILE_NAME).exists());
+        index = HexIndex.open(hexFile);
+        assertNotNull(index);
+        try {
+            assertEquals(ClassUtils.INSTRUMENT_VERSION, index.instrumentVersion());
+        } finally {
+            index.close();
+        }
+
+        // 之后的修改正常生成补丁
+        Files.write(foo.toPath(), generateClass("com/demo/Foo", "changed"));
+        assertEquals(0, PatchCli.run(new String[]{"--output", output.getPath(), bin.getPath()}));
+        assertTrue(new File(output, PatchEngine.PATCH_FILE_NAME).exists());
+    }
+
+    @Test
+    public void rejectsLooseClassFile() throws IOException {
+        File bin = createClassDir("bin");
+        File output = temporaryFolder.newFolder("out");
+        try {
+            PatchCli.run(new String[]{"--output", output.getPath(), new File(bin, CLASS_PATHS.get(0)).getPath()});
+            fail("单独的 class 文件无法确定类路径，应当拒绝");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private File createClassDir(String name) throws IOException {
+        File dir = temporaryFolder.newFolder(name);
+        for (String classPath : CLASS_PATHS) {
+            File file = new File(dir, classPath);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), generateClass(classPath.substring(0, classPath.length() - ".class".length())));
+        }
+        return dir;
+    }
+
+    private static List<String> baselineKeys(File output) throws IOException {
+        HexIndex index = HexIndex.open(new File(new File(output, PatchEngine.BASELINE_DIR_NAME), HexIndex.FILE_NAME));
+        assertNotNull(index);
+        try {
+            DigestTable table = index.toTable();
+            List<String> keys = new ArrayList<>();
+            for (int id : table.sortedIds()) {
+                keys.add(table.keyAt(id));
+            }
+            return keys;
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * 只有默认构造方法的类，插桩后构造方法中会引用 AntiLazyLoad
+     */
+    private static byte[] generateClass(String internalName) {
+        return generateClass(internalName, null);
+    }
+
+    /**
+     * @param fieldName 不为 null 时再添加一个 int 字段，用来修改类
+     */
+    private static byte[] generateClass(String internalName, String fieldName) {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null,
+                "java/lang/Object", null);
+        if (fieldName != null) {
+            classWriter.visitField(Opcodes.ACC_PUBLIC, fieldName, "I", null, null).visitEnd();
+        }
+        MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+}
@@ -0,0 +1,377 @@
+package com.demo.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多个发布版本的摘要备份，用于同时给线上的多个版本生成补丁。目录结构为：
+ * <pre>
+ * pool.bin           只追加的摘要池，每条记录为 pathLength(short) path(UTF-8) high(long) low(long)，
+ *                    路径与摘要都相同的记录只保存一次，各个版本共用没有变化的类的记录
+ * releases/tag.idx   一个发布版本，magic(int) version(int) algorithm(int) instrumentVersion(int) count(int)
+ *                    之后是 count 个记录下标。版本 1 没有 instrumentVersion
+ * releases/tag.deps  这个版本的类依赖索引，格式与 deps.idx 相同
+ * </pre>
+ * 摘要池只在末尾追加，中途崩溃留下的不完整记录在下一次追加前截掉；版本文件写入后不再修改，
+ * 用同一个 tag 记录不同的内容会中断构建
+ */
+public class BaselineHistory {
+
+    private static final int POOL_MAGIC = 0x50504f4c; // "PPOL"
+    private static final int RELEASE_MAGIC = 0x5052454c; // "PREL"
+    private static final int VERSION = 2;
+    /**
+     * 发布历史是在插桩版本 2 之后加入的，版本 1 的版本文件中的摘要都来自插桩版本 2
+     */
+    private static final int VERSION_1_INSTRUMENT_VERSION = 2;
+    private static final int POOL_HEADER_SIZE = 8;
+
+    private static final String POOL_FILE_NAME = "pool.bin";
+    private static final String RELEASES_DIR_NAME = "releases";
+    private static final String RELEASE_EXTENSION = ".idx";
+    private static final String DEPENDENCIES_EXTENSION = ".deps";
+
+    private final File dir;
+
+    // 摘要池的内容，第一次使用时才读取
+    private List<String> paths;
+    private long[] highs;
+    private long[] lows;
+    // 摘要池中完整记录的字节数
+    private long poolLength;
+
+    /**
+     * 版本文件的文件头
+     */
+    private static class ReleaseHeader {
+        final DigestAlgorithm algorithm;
+        final int instrumentVersion;
+
+        ReleaseHeader(DigestAlgorithm algorithm, int instrumentVersion) {
+            this.algorithm = algorithm;
+            this.instrumentVersion = instrumentVersion;
+        }
+    }
+
+    public BaselineHistory(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * tag 会用作文件名，只允许字母、数字和 . _ -
+     */
+    public static void checkTag(String tag) {
+        if (tag == null || !tag.matches("[A-Za-z0-9._-]+")) {
+            throw new PatchException("发布版本的 tag 只能包含字母、数字和 . _ -：" + tag);
+        }
+    }
+
+    public boolean contains(String tag) {
+        return releaseFile(tag).exists();
+    }
+
+    /**
+     * 已经记录的发布版本
+     */
+    public List<String> tags() {
+        List<String> tags = new ArrayList<>();
+        String[] names = new File(dir, RELEASES_DIR_NAME).list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(RELEASE_EXTENSION)) {
+                    tags.add(name.substring(0, name.length() - RELEASE_EXTENSION.length()));
+                }
+            }
+        }
+        Collections.sort(tags);
+        return tags;
+    }
+
+    public File releaseFile(String tag) {
+        return new File(new File(dir, RELEASES_DIR_NAME), tag + RELEASE_EXTENSION);
+    }
+
+    public File dependencyFile(String tag) {
+        return new File(new File(dir, RELEASES_DIR_NAME), tag + DEPENDENCIES_EXTENSION);
+    }
+
+    public File poolFile() {
+        return new File(dir, POOL_FILE_NAME);
+    }
+
+    /**
+     * 记录一个发布版本。新的摘要追加到摘要池末尾，再写入版本文件和依赖索引。
+     * 这个 tag 已经存在且摘要完全相同时什么也不做
+     *
+     * @param dependencyFile 本次的依赖索引，没有开启 includeDependents 时可以不存在
+     * @return 是否记录了新的版本
+     */
+    public synchronized boolean record(String tag, DigestTable hexes, DigestAlgorithm algorithm,
+                                       File dependencyFile) throws IOException {
+        checkTag(tag);
+        loadPool();
+        Map<String, Integer> ids = new HashMap<>(paths.size() * 2);
+        for (int i = 0; i < paths.size(); i++) {
+            ids.put(key(paths.get(i), highs[i], lows[i]), i);
+        }
+
+        int[] sortedIds = hexes.sortedIds();
+        int[] recordIds = new int[sortedIds.length];
+        List<Integer> appended = new ArrayList<>();
+        for (int i = 0; i < sortedIds.length; i++) {
+            String path = hexes.keyAt(sortedIds[i]);
+            long high = hexes.high(sortedIds[i]);
+            long low = hexes.low(sortedIds[i]);
+            String key = key(path, high, low);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = paths.size();
+                ids.put(key, id);
+                addToPool(path, high, low);
+                appended.add(id);
+            }
+            recordIds[i] = id;
+        }
+
+        File releaseFile = releaseFile(tag);
+        if (releaseFile.exists()) {
+            if (appended.isEmpty() && sameRelease(releaseFile, recordIds, algorithm)) {
+                return false;
+            }
+            throw new PatchException("发布版本 " + tag + " 已经记录过，本次编译的内容与它不同："
+                    + releaseFile.getAbsolutePath());
+        }
+
+        appendToPool(appended);
+        releaseFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(releaseFile.getName(), ".tmp", releaseFile.getParentFile());
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            outputStream.writeInt(RELEASE_MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(algorithm.id);
+            outputStream.writeInt(ClassUtils.INSTRUMENT_VERSION);
+            outputStream.writeInt(recordIds.length);
+            for (int id : recordIds) {
+                outputStream.writeInt(id);
+            }
+        } finally {
+            outputStream.close();
+        }
+        if (dependencyFile != null && dependencyFile.exists()) {
+            Files.copy(dependencyFile.toPath(), dependencyFile(tag).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // 版本文件最后出现，看到它时摘要池和依赖索引都已经写好了
+        move(tempFile, releaseFile);
+        return true;
+    }
+
+    /**
+     * 读取一个发布版本的摘要，tag 不存在时中断构建
+     */
+    public synchronized DigestTable read(String tag) throws IOException {
+        File releaseFile = releaseFile(tag);
+        if (!releaseFile.exists()) {
+            throw new PatchException("没有记录过发布版本 " + tag + "：" + releaseFile.getAbsolutePath());
+        }
+        loadPool();
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(releaseFile), 64 * 1024));
+        try {
+            readReleaseHeader(inputStream, releaseFile);
+            int count = inputStream.readInt();
+            DigestTable hexes = new DigestTable(count);
+            for (int i = 0; i < count; i++) {
+                int id = inputStream.readInt();
+                hexes.put(paths.get(id), highs[id], lows[id]);
+            }
+            return hexes;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 把一个发布版本的摘要写成 {@link HexIndex}，插桩工作项通过内存映射与它比较
+     */
+    public void materialize(String tag, File hexFile) throws IOException {
+        ReleaseHeader header = readReleaseHeader(tag);
+        HexIndex.write(read(tag), header.algorithm, header.instrumentVersion, hexFile);
+    }
+
+    public DigestAlgorithm algorithm(String tag) throws IOException {
+        return readReleaseHeader(tag).algorithm;
+    }
+
+    /**
+     * 记录这个版本时的 {@link ClassUtils#INSTRUMENT_VERSION}
+     */
+    public int instrumentVersion(String tag) throws IOException {
+        return readReleaseHeader(tag).instrumentVersion;
+    }
+
+    private ReleaseHeader readReleaseHeader(String tag) throws IOException {
+        File releaseFile = releaseFile(tag);
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(releaseFile));
+        try {
+            return readReleaseHeader(inputStream, releaseFile);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static ReleaseHeader readReleaseHeader(DataInputStream inputStream, File releaseFile)
+            throws IOException {
+        if (inputStream.readInt() != RELEASE_MAGIC) {
+            throw new IOException("不是有效的发布版本文件：" + releaseFile.getAbsolutePath());
+        }
+        int version = inputStream.readInt();
+        if (version == 1) {
+            return new ReleaseHeader(DigestAlgorithm.of(inputStream.readInt()), VERSION_1_INSTRUMENT_VERSION);
+        } else if (version == VERSION) {
+            return new ReleaseHeader(DigestAlgorithm.of(inputStream.readInt()), inputStream.readInt());
+        }
+        throw new IOException("不支持的发布版本文件版本 " + version + "：" + releaseFile.getAbsolutePath());
+    }
+
+    private boolean sameRelease(File releaseFile, int[] recordIds, DigestAlgorithm algorithm) throws IOException {
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(releaseFile), 64 * 1024));
+        try {
+            ReleaseHeader header = readReleaseHeader(inputStream, releaseFile);
+            if (header.algorithm != algorithm || header.instrumentVersion != ClassUtils.INSTRUMENT_VERSION
+                    || inputStream.readInt() != recordIds.length) {
+                return false;
+            }
+            for (int id : recordIds) {
+                if (inputStream.readInt() != id) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 读取摘要池，末尾不完整的记录会被忽略
+     */
+    private void loadPool() throws IOException {
+        if (paths != null) {
+            return;
+        }
+        paths = new ArrayList<>();
+        highs = new long[256];
+        lows = new long[256];
+        poolLength = 0;
+        File poolFile = poolFile();
+        if (!poolFile.exists()) {
+            return;
+        }
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(poolFile), 256 * 1024));
+        try {
+            if (inputStream.readInt() != POOL_MAGIC || inputStream.readInt() != VERSION) {
+                throw new IOException("不是有效的摘要池文件：" + poolFile.getAbsolutePath());
+            }
+            poolLength = POOL_HEADER_SIZE;
+            while (true) {
+                int length = inputStream.readUnsignedShort();
+                byte[] path = new byte[length];
+                inputStream.readFully(path);
+                long high = inputStream.readLong();
+                long low = inputStream.readLong();
+                addToPool(new String(path, StandardCharsets.UTF_8), high, low);
+                poolLength += 2 + length + 16;
+            }
+        } catch (EOFException e) {
+            // 读到文件末尾，或者末尾是上一次追加时没有写完的记录
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void addToPool(String path, long high, long low) {
+        int id = paths.size();
+        if (id == highs.length) {
+            long[] newHighs = new long[id * 2];
+            long[] newLows = new long[id * 2];
+            System.arraycopy(highs, 0, newHighs, 0, id);
+            System.arraycopy(lows, 0, newLows, 0, id);
+            highs = newHighs;
+            lows = newLows;
+        }
+        paths.add(path);
+        highs[id] = high;
+        lows[id] = low;
+    }
+
+    /**
+     * 把新的记录追加到摘要池末尾，追加前先截掉不完整的记录，写完后同步到磁盘
+     */
+    private void appendToPool(List<Integer> ids) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        File poolFile = poolFile();
+        poolFile.getParentFile().mkdirs();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(poolFile, "rw");
+        try {
+            if (poolLength == 0) {
+                randomAccessFile.setLength(0);
+                randomAccessFile.writeInt(POOL_MAGIC);
+                randomAccessFile.writeInt(VERSION);
+                poolLength = POOL_HEADER_SIZE;
+            } else {
+                randomAccessFile.setLength(poolLength);
+            }
+            randomAccessFile.seek(poolLength);
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(randomAccessFile.getFD()), 64 * 1024));
+            for (int id : ids) {
+                byte[] path = paths.get(id).getBytes(StandardCharsets.UTF_8);
+                outputStream.writeShort(path.length);
+                outputStream.write(path);
+                outputStream.writeLong(highs[id]);
+                outputStream.writeLong(lows[id]);
+                poolLength += 2 + path.length + 16;
+            }
+            outputStream.flush();
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String key(String path, long high, long low) {
+        return path + ':' + DigestAlgorithm.toHex(high, low);
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
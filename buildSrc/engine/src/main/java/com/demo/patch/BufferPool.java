@@ -0,0 +1,218 @@
+package com.demo.patch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 读取 class 内容使用的缓冲区池，所有插桩工作项共用。
+ * <p>
+ * 缓冲区按 2 的幂分级，从 4KB 到 16MB，同一级的缓冲区归还后可以被任何线程复用，更大的 class 不入池。
+ * 借出的缓冲区总大小受内存预算限制，超出预算时借用的线程会等待其它线程归还，大 class 集中出现时
+ * 堆内存的峰值也不会超过预算。每个线程同一时间只持有一个缓冲区，不会相互等待造成死锁
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 24;
+
+    /**
+     * 声明大小未知时先按这个大小读取，不够再扩容
+     */
+    private static final int DEFAULT_SIZE = 16 * 1024;
+
+    private static BufferPool shared;
+
+    /**
+     * 预算按 KB 计数
+     */
+    private final Semaphore budget;
+    private final int maxPermits;
+    private final long budgetBytes;
+    private final List<ArrayDeque<byte[]>> free;
+    /**
+     * 池中空闲缓冲区的总大小不超过预算的一半，其余的交给 GC 回收
+     */
+    private final long maxRetainedBytes;
+    private long retainedBytes;
+
+    /**
+     * 借出的缓冲区，length 之后的内容没有意义
+     */
+    public static class Buffer {
+        public byte[] array;
+        public int length;
+
+        Buffer(byte[] array) {
+            this.array = array;
+        }
+
+        /**
+         * 复制出内容，用于需要长期持有的场合，比如放入补丁包
+         */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            System.arraycopy(array, 0, bytes, 0, length);
+            return bytes;
+        }
+
+        public boolean contentEquals(byte[] bytes) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (array[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public BufferPool(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes >>> 10));
+        this.budget = new Semaphore(maxPermits);
+        this.maxRetainedBytes = budgetBytes / 2;
+        this.free = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 同一个 Gradle 进程中的工作项共用一个池，预算变化时重新创建
+     */
+    public static synchronized BufferPool shared(long budgetBytes) {
+        if (shared == null || shared.budgetBytes != budgetBytes) {
+            shared = new BufferPool(budgetBytes);
+        }
+        return shared;
+    }
+
+    /**
+     * 借用一个至少 size 字节的缓冲区，预算不足时等待
+     */
+    public byte[] acquire(int size) {
+        int capacity = capacity(size);
+        budget.acquireUninterruptibly(permits(capacity));
+        byte[] array = null;
+        int level = level(capacity);
+        if (level >= 0) {
+            synchronized (this) {
+                array = free.get(level).pollFirst();
+                if (array != null) {
+                    retainedBytes -= array.length;
+                }
+            }
+        }
+        return array != null ? array : new byte[capacity];
+    }
+
+    /**
+     * 归还 {@link #acquire(int)} 借出的缓冲区，归还后不能再使用
+     */
+    public void release(byte[] array) {
+        int level = level(array.length);
+        if (level >= 0) {
+            synchronized (this) {
+                if (retainedBytes + array.length <= maxRetainedBytes) {
+                    free.get(level).addFirst(array);
+                    retainedBytes += array.length;
+                }
+            }
+        }
+        budget.release(permits(array.length));
+    }
+
+    public void release(Buffer buffer) {
+        release(buffer.array);
+        buffer.array = null;
+    }
+
+    /**
+     * 按声明的大小借用缓冲区并读取输入流的全部内容，不关闭输入流
+     *
+     * @param declaredSize zip 条目或文件声明的大小，未知时为 -1
+     */
+    public Buffer read(InputStream inputStream, long declaredSize) throws IOException {
+        int size = declaredSize >= 0 && declaredSize < Integer.MAX_VALUE - 8 ? (int) declaredSize : DEFAULT_SIZE;
+        // 多借一个字节，用来判断输入是否比声明的大
+        Buffer buffer = new Buffer(acquire(size + 1));
+        try {
+            int read;
+            while ((read = inputStream.read(buffer.array, buffer.length, buffer.array.length - buffer.length)) >= 0) {
+                buffer.length += read;
+                if (buffer.length == buffer.array.length) {
+                    grow(buffer);
+                }
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+    }
+
+    public Buffer read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return read(inputStream, file.length());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 先归还小的缓冲区占用的预算再借用大的，线程不会在持有预算的同时等待预算
+     */
+    private void grow(Buffer buffer) {
+        byte[] small = buffer.array;
+        budget.release(permits(small.length));
+        byte[] large = acquire(small.length * 2);
+        System.arraycopy(small, 0, large, 0, buffer.length);
+        buffer.array = large;
+        int level = level(small.length);
+        if (level >= 0) {
+            synchronized (this) {
+                if (retainedBytes + small.length <= maxRetainedBytes) {
+                    free.get(level).addFirst(small);
+                    retainedBytes += small.length;
+                }
+            }
+        }
+    }
+
+    private static int capacity(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 1 << MIN_SHIFT;
+        }
+        if (size > 1 << MAX_SHIFT) {
+            return size;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * 缓冲区所在的级别，不入池的大小返回 -1
+     */
+    private static int level(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        return shift < MIN_SHIFT || shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * 超过预算的缓冲区按整个预算计数，等其它缓冲区都归还后独自使用
+     */
+    private int permits(int capacity) {
+        return (int) Math.min(maxPermits, Math.max(1, (capacity + 1023L) >>> 10));
+    }
+}
@@ -0,0 +1,248 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一个类对其他类的依赖以及它对外可见的结构（ABI），用于在某个类变化时找出受影响的类。
+ * <ul>
+ * <li>supers：父类和接口，父类结构变化时子类也要放入补丁</li>
+ * <li>references：常量池中引用的其他类，包括字段、方法的 owner 以及类型转换、new 等指令中的类</li>
+ * <li>constants：类中声明的编译期常量的值，javac 会把它们内联到使用方，使用方的常量池中不再有对本类的引用</li>
+ * <li>literals：类常量池中的字面量，用来反查内联了某个常量的类</li>
+ * </ul>
+ * 所有值都从插桩时已经解析的常量池和类结构中获取，不需要额外解析方法体
+ */
+public class ClassDependencies {
+
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+
+    /**
+     * 类的内部名，如 com/demo/plugin/Test
+     */
+    public final String name;
+    /**
+     * 类在摘要表中的路径
+     */
+    public final String path;
+    public final long high;
+    public final long low;
+    public final long abi;
+    public final String[] supers;
+    public final String[] references;
+    public final long[] constants;
+    public final long[] literals;
+
+    public ClassDependencies(String name, String path, long high, long low, long abi, String[] supers,
+                             String[] references, long[] constants, long[] literals) {
+        this.name = name;
+        this.path = path;
+        this.high = high;
+        this.low = low;
+        this.abi = abi;
+        this.supers = supers;
+        this.references = references;
+        this.constants = constants;
+        this.literals = literals;
+    }
+
+    /**
+     * 从插桩后的 class 内容中收集依赖，用于没有经过插桩的类，如命中插桩缓存的类
+     */
+    public static ClassDependencies of(String path, byte[] bytes, long high, long low) {
+        ClassReader classReader = new ClassReader(bytes);
+        Builder builder = new Builder();
+        builder.scanConstantPool(classReader);
+        classReader.accept(builder.visitor(null), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG
+                | ClassReader.SKIP_FRAMES);
+        return builder.build(path, high, low);
+    }
+
+    /**
+     * 常量值和字面量统一计算成 long，类型不同的相同数值不会相等
+     */
+    static long literalHash(Object value) {
+        if (value instanceof String) {
+            long[] out = new long[2];
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            DigestAlgorithm.MURMUR3.digest(bytes, out);
+            return out[0];
+        }
+        long bits;
+        int tag;
+        if (value instanceof Integer) {
+            bits = (Integer) value;
+            tag = CONSTANT_INTEGER;
+        } else if (value instanceof Float) {
+            bits = Float.floatToIntBits((Float) value);
+            tag = CONSTANT_FLOAT;
+        } else if (value instanceof Long) {
+            bits = (Long) value;
+            tag = CONSTANT_LONG;
+        } else if (value instanceof Double) {
+            bits = Double.doubleToLongBits((Double) value);
+            tag = CONSTANT_DOUBLE;
+        } else {
+            return 0;
+        }
+        // 数值字面量的哈希：值经过一次 murmur3 的 fmix 混合，再与类型区分
+        long hash = bits * 0xff51afd7ed558ccdL + tag;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * 在插桩的同一次解析中收集依赖。常量池在 accept 之前单独扫描，类结构通过 {@link #visitor(ClassVisitor)}
+     * 返回的 ClassVisitor 收集，它只记录事件并原样转发，不影响 ClassWriter 直接拷贝方法体
+     */
+    public static class Builder {
+        private String name;
+        private final Set<String> supers = new LinkedHashSet<>();
+        private final Set<String> references = new LinkedHashSet<>();
+        private final List<Long> constants = new ArrayList<>();
+        private final Set<Long> literals = new LinkedHashSet<>();
+        private final List<String> abiMembers = new ArrayList<>();
+
+        /**
+         * 扫描常量池中的类引用和字面量
+         */
+        public void scanConstantPool(ClassReader classReader) {
+            char[] buffer = new char[classReader.getMaxStringLength()];
+            for (int i = 1; i < classReader.getItemCount(); i++) {
+                int offset = classReader.getItem(i);
+                // long 和 double 占两个位置，第二个位置的偏移为 0
+                if (offset <= 0) {
+                    continue;
+                }
+                int tag = classReader.readByte(offset - 1);
+                switch (tag) {
+                    case CONSTANT_CLASS:
+                        addReference(classReader.readUTF8(offset, buffer));
+                        break;
+                    case CONSTANT_STRING:
+                        literals.add(literalHash(classReader.readUTF8(offset, buffer)));
+                        break;
+                    case CONSTANT_INTEGER:
+                        literals.add(literalHash(classReader.readInt(offset)));
+                        break;
+                    case CONSTANT_FLOAT:
+                        literals.add(literalHash(Float.intBitsToFloat(classReader.readInt(offset))));
+                        break;
+                    case CONSTANT_LONG:
+                        literals.add(literalHash(classReader.readLong(offset)));
+                        break;
+                    case CONSTANT_DOUBLE:
+                        literals.add(literalHash(Double.longBitsToDouble(classReader.readLong(offset))));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void addReference(String className) {
+            // 数组类型取元素类型，基本类型数组没有依赖
+            if (className.startsWith("[")) {
+                int index = className.lastIndexOf('[') + 1;
+                if (className.charAt(index) != 'L') {
+                    return;
+                }
+                className = className.substring(index + 1, className.length() - 1);
+            }
+            // JDK 和 Android 的类不会出现在补丁中，AntiLazyLoad 是插桩加入的引用
+            if (!ClassFilter.PLATFORM.accept(className) || ClassUtils.ANTI_LAZY_LOAD.equals(className)) {
+                return;
+            }
+            references.add(className);
+        }
+
+        /**
+         * 记录类结构的 ClassVisitor，next 为 null 时只收集不转发
+         */
+        public ClassVisitor visitor(ClassVisitor next) {
+            return new ClassVisitor(Opcodes.ASM6, next) {
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName,
+                                  String[] interfaces) {
+                    Builder.this.name = name;
+                    abiMembers.add("class " + access + " " + superName);
+                    if (superName != null) {
+                        supers.add(superName);
+                    }
+                    if (interfaces != null) {
+                        for (String anInterface : interfaces) {
+                            supers.add(anInterface);
+                            abiMembers.add("implements " + anInterface);
+                        }
+                    }
+                    super.visit(version, access, name, signature, superName, interfaces);
+                }
+
+                @Override
+                public FieldVisitor visitField(int access, String name, String desc, String signature,
+                                               Object value) {
+                    boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+                    // 实例字段都会影响子类的内存布局，静态字段只看非私有的
+                    if (!isStatic || (access & Opcodes.ACC_PRIVATE) == 0) {
+                        abiMembers.add("field " + access + " " + name + " " + desc
+                                + (value == null ? "" : " = " + value));
+                    }
+                    if (isStatic && (access & Opcodes.ACC_FINAL) != 0 && value != null) {
+                        constants.add(literalHash(value));
+                    }
+                    return super.visitField(access, name, desc, signature, value);
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    if ((access & Opcodes.ACC_PRIVATE) == 0) {
+                        abiMembers.add("method " + access + " " + name + desc);
+                    }
+                    return super.visitMethod(access, name, desc, signature, exceptions);
+                }
+            };
+        }
+
+        public ClassDependencies build(String path, long high, long low) {
+            // 成员按内容排序，调整源码中成员的顺序不算结构变化
+            Collections.sort(abiMembers);
+            StringBuilder abiText = new StringBuilder();
+            for (String member : abiMembers) {
+                abiText.append(member).append('\n');
+            }
+            long abi = literalHash(abiText.toString());
+
+            references.remove(name);
+            references.removeAll(supers);
+            long[] constantArray = new long[constants.size()];
+            for (int i = 0; i < constantArray.length; i++) {
+                constantArray[i] = constants.get(i);
+            }
+            long[] literalArray = new long[literals.size()];
+            int i = 0;
+            for (Long literal : literals) {
+                literalArray[i++] = literal;
+            }
+            return new ClassDependencies(name, path, high, low, abi, supers.toArray(new String[0]),
+                    references.toArray(new String[0]), constantArray, literalArray);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.demo.patch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 决定哪些类需要插桩的过滤器，由 include 和 exclude 两组模式编译而成。
+ * <p>
+ * 模式以 . 或 / 分隔包名，支持三种写法：
+ * <ul>
+ * <li>不含通配符，如 com.demo.plugin.Application：匹配这个类、它的内部类以及以它为包名的所有类</li>
+ * <li>* 匹配包名中的一段，? 匹配一段中的一个字符，如 com.demo.*.Test、**.R$*</li>
+ * <li>** 匹配任意多段，如 com.acme.**</li>
+ * </ul>
+ * 没有配置 include 时所有类都被包含，被 exclude 匹配的类不插桩。
+ * <p>
+ * 所有模式在构造时合并编译成一个确定有限自动机，匹配时对类名逐字符查表一次，不分配对象，
+ * 与模式的数量无关。类名可以是 jar 包中的条目名或以平台分隔符分隔的路径，末尾的 .class 会被忽略
+ */
+public final class ClassFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 系统和 Android 库的类，不会出现在补丁中
+     */
+    static final List<String> PLATFORM_PATTERNS = Collections.unmodifiableList(Arrays.asList(
+            "java.**", "javax.**", "dalvik.**", "android.**", "androidx.**", "com.android.**",
+            "com.google.android.**"));
+
+    /**
+     * 只排除系统和 Android 库的过滤器，用于判断依赖的类是否可能进入补丁
+     */
+    static final ClassFilter PLATFORM = new ClassFilter(Collections.<String>emptyList(), PLATFORM_PATTERNS);
+
+    private static final char SEPARATOR = '/';
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final int LITERAL = 0;
+    private static final int ANY_CHAR = 1;
+    private static final int ANY_SEGMENT = 2;
+    private static final int ANY_PATH = 3;
+
+    /**
+     * 自动机中没有任何模式还能匹配的状态
+     */
+    private static final int DEAD = -1;
+
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    /**
+     * ASCII 字符到字符类的映射，其它字符在 {@link #alphabet} 中二分查找
+     */
+    private final byte[] asciiClasses = new byte[128];
+    /**
+     * 模式中出现的非 ASCII 字符，下标加上 {@link #asciiClassCount} 就是字符类
+     */
+    private final char[] alphabet;
+    private final int asciiClassCount;
+    private final int classCount;
+    /**
+     * 状态转移表，下标为 state * classCount + 字符类
+     */
+    private final int[] transitions;
+    /**
+     * 类名在该状态结束时是否插桩
+     */
+    private final boolean[] accepts;
+    /**
+     * 从该状态出发的所有类名都不插桩，匹配到这里就可以结束
+     */
+    private final boolean[] rejectsAll;
+    /**
+     * 所有模式都无法匹配时的结果，没有配置 include 时为 true
+     */
+    private final boolean deadAccepts;
+
+    /**
+     * @param includes 需要插桩的类，为空时包含所有类
+     * @param excludes 不插桩的类
+     */
+    public ClassFilter(Collection<String> includes, Collection<String> excludes) {
+        this.includes = new ArrayList<>(includes);
+        this.excludes = new ArrayList<>(excludes);
+        this.deadAccepts = includes.isEmpty();
+
+        // 每个模式展开成若干条 token 序列，mask 表示属于 include（1）还是 exclude（2）
+        List<int[]> patterns = new ArrayList<>();
+        List<Integer> masks = new ArrayList<>();
+        for (String include : includes) {
+            for (int[] tokens : parse(include)) {
+                patterns.add(tokens);
+                masks.add(1);
+            }
+        }
+        for (String exclude : excludes) {
+            for (int[] tokens : parse(exclude)) {
+                patterns.add(tokens);
+                masks.add(2);
+            }
+        }
+
+        // 字符类：分隔符、模式中的每个字面字符各占一类，其余字符同属一类
+        TreeSet<Character> literals = new TreeSet<>();
+        for (int[] tokens : patterns) {
+            for (int token : tokens) {
+                if ((token & 0xffff0000) == 0) {
+                    literals.add((char) token);
+                }
+            }
+        }
+        literals.add(SEPARATOR);
+        int nextClass = 1;
+        List<Character> nonAscii = new ArrayList<>();
+        for (char c : literals) {
+            if (c < 128) {
+                asciiClasses[c] = (byte) nextClass++;
+            } else {
+                nonAscii.add(c);
+            }
+        }
+        asciiClassCount = nextClass;
+        alphabet = new char[nonAscii.size()];
+        for (int i = 0; i < alphabet.length; i++) {
+            alphabet[i] = nonAscii.get(i);
+        }
+        classCount = asciiClassCount + alphabet.length;
+        // 每个字符类的代表字符，用于计算转移；0 类代表任意其它字符
+        char[] representatives = new char[classCount];
+        representatives[0] = '\uffff';
+        for (char c = 0; c < 128; c++) {
+            if (asciiClasses[c] != 0) {
+                representatives[asciiClasses[c]] = c;
+            }
+        }
+        for (int i = 0; i < alphabet.length; i++) {
+            representatives[asciiClassCount + i] = alphabet[i];
+        }
+
+        // 子集构造：自动机的状态是 (模式, 位置) 的集合，以排好序的 long 数组表示
+        Map<List<Long>, Integer> stateIds = new HashMap<>();
+        List<long[]> states = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+        long[] start = closure(patterns, initialPositions(patterns));
+        stateIds.put(asList(start), 0);
+        states.add(start);
+        for (int s = 0; s < states.size(); s++) {
+            long[] state = states.get(s);
+            int[] row = new int[classCount];
+            for (int cls = 0; cls < classCount; cls++) {
+                long[] target = closure(patterns, step(patterns, state, representatives[cls], cls == 0));
+                if (target.length == 0) {
+                    row[cls] = DEAD;
+                    continue;
+                }
+                List<Long> key = asList(target);
+                Integer id = stateIds.get(key);
+                if (id == null) {
+                    id = states.size();
+                    stateIds.put(key, id);
+                    states.add(target);
+                }
+                row[cls] = id;
+            }
+            rows.add(row);
+        }
+
+        int stateCount = states.size();
+        transitions = new int[stateCount * classCount];
+        accepts = new boolean[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            System.arraycopy(rows.get(s), 0, transitions, s * classCount, classCount);
+            int mask = 0;
+            for (long item : states.get(s)) {
+                int pattern = (int) (item >>> 32);
+                if ((int) item == patterns.get(pattern).length) {
+                    mask |= masks.get(pattern);
+                }
+            }
+            accepts[s] = (deadAccepts || (mask & 1) != 0) && (mask & 2) == 0;
+        }
+
+        // 反向传播：能到达插桩状态的状态都不是 rejectsAll
+        boolean[] canAccept = accepts.clone();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int s = 0; s < stateCount; s++) {
+                if (canAccept[s]) {
+                    continue;
+                }
+                for (int cls = 0; cls < classCount; cls++) {
+                    int target = transitions[s * classCount + cls];
+                    if (target == DEAD ? deadAccepts : canAccept[target]) {
+                        canAccept[s] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        rejectsAll = new boolean[stateCount];
+        for (int s = 0; s < stateCount; s++) {
+            rejectsAll[s] = !canAccept[s];
+        }
+    }
+
+    /**
+     * 根据插件配置创建过滤器：系统和 Android 库、补丁加载库以及 Application 类总是被排除
+     *
+     * @param applicationName Application 的全类名，可以为 null
+     * @param includes        需要插桩的类，为 null 或空时插桩所有类
+     * @param excludes        不插桩的类，可以为 null
+     */
+    public static ClassFilter of(String applicationName, List<String> includes, List<String> excludes) {
+        List<String> allExcludes = new ArrayList<>(PLATFORM_PATTERNS);
+        allExcludes.add("com.demo.patch");
+        if (applicationName != null && !applicationName.isEmpty()) {
+            allExcludes.add(applicationName);
+        }
+        if (excludes != null) {
+            allExcludes.addAll(excludes);
+        }
+        return new ClassFilter(includes == null ? Collections.<String>emptyList() : includes, allExcludes);
+    }
+
+    /**
+     * 类是否需要插桩
+     *
+     * @param className 类的内部名、jar 包中的条目名或以平台分隔符分隔的路径
+     */
+    public boolean accept(String className) {
+        int end = className.endsWith(CLASS_SUFFIX) ? className.length() - CLASS_SUFFIX.length()
+                : className.length();
+        int state = run(className, end);
+        if (state == DEAD) {
+            return deadAccepts;
+        }
+        return accepts[state];
+    }
+
+    /**
+     * 以 name 的前 length 个字符为目录的所有类是否都不插桩，length 为 0 表示默认包
+     */
+    public boolean rejectsAll(String name, int length) {
+        int state = run(name, length);
+        return state == DEAD ? !deadAccepts : rejectsAll[state];
+    }
+
+    /**
+     * 影响匹配结果的配置
+     */
+    public String fingerprint() {
+        return "include" + includes + "exclude" + excludes;
+    }
+
+    private int run(String name, int end) {
+        int state = 0;
+        for (int i = 0; i < end; i++) {
+            state = transitions[state * classCount + classOf(name.charAt(i))];
+            if (state == DEAD || rejectsAll[state]) {
+                return state;
+            }
+        }
+        return state;
+    }
+
+    private int classOf(char c) {
+        if (c == '\\') {
+            c = SEPARATOR;
+        }
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index < 0 ? 0 : asciiClassCount + index;
+    }
+
+    /**
+     * 把模式解析成 token 序列。字面字符的 token 就是字符本身，通配符的 token 在高 16 位。
+     * 不含通配符的模式展开成三条：类本身、以它为包名的类和它的内部类
+     */
+    private static List<int[]> parse(String pattern) {
+        String normalized = pattern.trim().replace('.', SEPARATOR).replace('\\', SEPARATOR);
+        if (normalized.endsWith(SEPARATOR + "")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.isEmpty()) {
+            throw new IllegalArgumentException("类过滤模式不能为空");
+        }
+        List<int[]> result = new ArrayList<>(3);
+        if (normalized.indexOf('*') < 0 && normalized.indexOf('?') < 0) {
+            result.add(tokens(normalized));
+            result.add(tokens(normalized + SEPARATOR + "**"));
+            result.add(tokens(normalized + "$**"));
+        } else {
+            result.add(tokens(normalized));
+        }
+        return result;
+    }
+
+    private static int[] tokens(String pattern) {
+        int[] tokens = new int[pattern.length()];
+        int count = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    i++;
+                    tokens[count++] = ANY_PATH << 16;
+                } else {
+                    tokens[count++] = ANY_SEGMENT << 16;
+                }
+            } else if (c == '?') {
+                tokens[count++] = ANY_CHAR << 16;
+            } else {
+                tokens[count++] = c;
+            }
+        }
+        return Arrays.copyOf(tokens, count);
+    }
+
+    private static long[] initialPositions(List<int[]> patterns) {
+        long[] positions = new long[patterns.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = (long) i << 32;
+        }
+        return positions;
+    }
+
+    /**
+     * 通配符可以匹配零个字符，把它后面的位置也加入集合，结果排序去重
+     */
+    private static long[] closure(List<int[]> patterns, long[] items) {
+        TreeSet<Long> result = new TreeSet<>();
+        for (long item : items) {
+            int pattern = (int) (item >>> 32);
+            int position = (int) item;
+            int[] tokens = patterns.get(pattern);
+            result.add(item);
+            while (position < tokens.length && (tokens[position] >>> 16 == ANY_SEGMENT
+                    || tokens[position] >>> 16 == ANY_PATH)) {
+                position++;
+                result.add(((long) pattern << 32) | position);
+            }
+        }
+        long[] array = new long[result.size()];
+        int i = 0;
+        for (long item : result) {
+            array[i++] = item;
+        }
+        return array;
+    }
+
+    /**
+     * @param other c 代表的是模式中没有出现过的字符，不与任何字面字符相等
+     */
+    private static long[] step(List<int[]> patterns, long[] items, char c, boolean other) {
+        List<Long> result = new ArrayList<>();
+        for (long item : items) {
+            int pattern = (int) (item >>> 32);
+            int position = (int) item;
+            int[] tokens = patterns.get(pattern);
+            if (position == tokens.length) {
+                continue;
+            }
+            int token = tokens[position];
+            switch (token >>> 16) {
+                case LITERAL:
+                    if (!other && token == c) {
+                        result.add(item + 1);
+                    }
+                    break;
+                case ANY_CHAR:
+                    if (c != SEPARATOR) {
+                        result.add(item + 1);
+                    }
+                    break;
+                case ANY_SEGMENT:
+                    if (c != SEPARATOR) {
+                        result.add(item);
+                    }
+                    break;
+                default:
+                    result.add(item);
+                    break;
+            }
+        }
+        long[] array = new long[result.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = result.get(i);
+        }
+        return array;
+    }
+
+    private static List<Long> asList(long[] items) {
+        List<Long> list = new ArrayList<>(items.length);
+        for (long item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,133 @@
+package com.demo.patch;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.BasicVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+
+public class ClassUtils {
+
+    /**
+     * 插桩时引用的类，它位于单独的 dex 中，引用它的类就不会被打上 CLASS_ISPREVERIFIED 标记
+     */
+    static final String ANTI_LAZY_LOAD = "com/demo/plugin/AntiLazyLoad";
+
+    /**
+     * 插桩输出的版本，同样的 class 插桩出的字节有变化时加一，记录在摘要备份中。
+     * 版本 1 用 COMPUTE_FRAMES 重新生成整个类，版本 2 复用常量池并按字节拷贝没有修改的方法。
+     * 只影响某一种注入方式中的少数类时不加一，这些类会作为有变化的类进入下一个补丁
+     */
+    public static final int INSTRUMENT_VERSION = 2;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    public static byte[] referHackWhenInit(InputStream inputStream) throws IOException {
+        return referHackWhenInit(IOUtils.toByteArray(inputStream));
+    }
+
+    /**
+     * 在构造方法的每个 RETURN 之前插入对 AntiLazyLoad 的引用。
+     * <p>
+     * ClassWriter 复用 ClassReader 的常量池，没有修改的方法会被直接按字节拷贝；插入的 LDC 不改变
+     * 控制流，原有的栈帧依然有效，所以不需要 COMPUTE_FRAMES，也就不会为了计算公共父类去加载类，
+     * 只需要把被修改的构造方法的 maxStack 加 1。已经插过桩的类原样返回
+     */
+    public static byte[] referHackWhenInit(byte[] bytes) {
+        return referHackWhenInit(bytes, null);
+    }
+
+    public static byte[] referHackWhenInit(byte[] bytes, ClassDependencies.Builder dependencies) {
+        return referHackWhenInit(bytes, InjectionStrategy.CONSTRUCTOR, Collections.<String>emptySet(),
+                dependencies);
+    }
+
+    /**
+     * 按指定的方式插入 AntiLazyLoad 引用，同时收集类的依赖，dependencies 为 null 时不收集。
+     * 已经插过桩的类和不可能被打补丁的类不需要改写，只跳过方法体解析一次类结构
+     *
+     * @param skippedEnums 不插桩的枚举类的内部名
+     */
+    public static byte[] referHackWhenInit(byte[] bytes, InjectionStrategy strategy, Set<String> skippedEnums,
+                                           ClassDependencies.Builder dependencies) {
+        byte[] result = instrument(bytes, bytes.length, strategy, skippedEnums, dependencies);
+        return result == null ? bytes : result;
+    }
+
+    /**
+     * 与 referHackWhenInit 相同，但只读取 bytes 的前 length 个字节，用于池化的缓冲区。
+     * 不需要改写时返回 null，调用方直接使用原来的内容，不会复制缓冲区
+     */
+    public static byte[] instrument(byte[] bytes, int length, InjectionStrategy strategy, Set<String> skippedEnums,
+                                    ClassDependencies.Builder dependencies) {
+        ClassReader classReader = new ClassReader(bytes, 0, length);
+        if (dependencies != null) {
+            dependencies.scanConstantPool(classReader);
+        }
+        if (isInstrumented(classReader) || !isPatchable(classReader, skippedEnums)) {
+            if (dependencies != null) {
+                classReader.accept(dependencies.visitor(null), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG
+                        | ClassReader.SKIP_FRAMES);
+            }
+            return null;
+        }
+
+        ClassWriter classWriter = new ClassWriter(classReader, 0);
+        ClassVisitor next = dependencies == null ? classWriter : dependencies.visitor(classWriter);
+        classReader.accept(strategy.visitor(next), 0);
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * 接口和注解中没有需要修复的代码，也不能在旧版本的 Android 上添加静态方法；
+     * 配置在 skippedEnums 中的枚举不会被打补丁。这些类都不插桩
+     */
+    static boolean isPatchable(ClassReader classReader, Set<String> skippedEnums) {
+        int access = classReader.getAccess();
+        if ((access & (Opcodes.ACC_INTERFACE | Opcodes.ACC_ANNOTATION)) != 0) {
+            return false;
+        }
+        return (access & Opcodes.ACC_ENUM) == 0 || !skippedEnums.contains(classReader.getClassName());
+    }
+
+    /**
+     * 通过常量池判断类是否已经插过桩，不需要解析方法体
+     */
+    public static boolean isInstrumented(ClassReader classReader) {
+        char[] buffer = new char[classReader.getMaxStringLength()];
+        for (int i = 1; i < classReader.getItemCount(); i++) {
+            int offset = classReader.getItem(i);
+            // long 和 double 占两个位置，第二个位置的偏移为 0
+            if (offset > 0 && classReader.readByte(offset - 1) == CONSTANT_CLASS
+                    && ANTI_LAZY_LOAD.equals(classReader.readUTF8(offset, buffer))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 使用 ASM 的 Analyzer 检查插桩后的每个方法，校验失败时抛出异常
+     *
+     * @param bytes 插桩后的 class 内容
+     */
+    public static void verify(byte[] bytes) throws AnalyzerException {
+        ClassNode classNode = new ClassNode(Opcodes.ASM6);
+        new ClassReader(bytes).accept(classNode, 0);
+        for (Object method : classNode.methods) {
+            MethodNode methodNode = (MethodNode) method;
+            new Analyzer<BasicValue>(new BasicVerifier()).analyze(classNode.name, methodNode);
+        }
+    }
+}
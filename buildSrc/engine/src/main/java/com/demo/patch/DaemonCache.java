@@ -0,0 +1,203 @@
+package com.demo.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 守护进程范围内的缓存，保存从文件中解析出来的基准摘要、输入文件记录、依赖索引和 mapping 索引等。
+ * 同一个 Gradle 守护进程中的各个工作项和之后的构建直接使用，不再重复读取和解析。
+ * <p>
+ * 值是否过期由文件的大小、修改时间和文件标识（inode）判断。文件在加载前不久刚被修改过时，
+ * 修改时间的精度不足以区分前后两次写入，这时还会记下内容摘要，使用前重新核对。
+ * 占用的内存按文件大小估算，超出上限时淘汰最久没有使用的值，单个值超过上限的一半时不缓存。
+ * <p>
+ * 缓存的值会被多个线程、多次构建共用，只能读取不能修改
+ */
+public class DaemonCache {
+
+    /**
+     * 文件修改后这段时间内加载的值需要核对内容摘要，覆盖常见文件系统修改时间的精度
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private static DaemonCache shared;
+
+    /**
+     * 从文件中解析值，同一个值同一时间只有一个线程加载
+     */
+    public interface Loader<T> {
+
+        /**
+         * @return 文件不存在或无法解析时返回 null，不会被缓存
+         */
+        T load(File file) throws IOException;
+    }
+
+    private static class Entry {
+        Object value;
+        long length;
+        long lastModified;
+        Object fileKey;
+        long weight;
+        /**
+         * 加载时文件刚被修改过才记录内容摘要，核对通过且文件不再可能被同一时间戳覆盖后清除
+         */
+        long[] digest;
+    }
+
+    private final long maxBytes;
+    // 按访问顺序排列，最久没有使用的在最前面
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DaemonCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 同一个 Gradle 进程共用一个缓存，上限变化时重新创建。上限不大于 0 时不缓存，返回 null
+     */
+    public static synchronized DaemonCache shared(long maxBytes) {
+        if (maxBytes <= 0) {
+            shared = null;
+            return null;
+        }
+        if (shared == null || shared.maxBytes != maxBytes) {
+            shared = new DaemonCache(maxBytes);
+        }
+        return shared;
+    }
+
+    /**
+     * 取得文件对应的值，没有缓存或已经过期时用 loader 重新加载
+     *
+     * @param kind 值的种类，同一个文件可以按不同的方式解析，解析结果还依赖其它配置时也要包含在内
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String kind, File file, Loader<T> loader) throws IOException {
+        String key = kind + ':' + file.getAbsolutePath();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+        }
+
+        synchronized (entry) {
+            BasicFileAttributes attributes = attributes(file);
+            if (attributes == null) {
+                // 文件不存在，交给 loader 处理，比如转换旧格式的文件
+                entry.value = null;
+                update(key, entry, 0);
+                return loader.load(file);
+            }
+            if (entry.value != null && isFresh(entry, file, attributes)) {
+                hits.incrementAndGet();
+                return (T) entry.value;
+            }
+            misses.incrementAndGet();
+
+            // 先记下摘要再加载，中间文件被改写时下次核对不通过，只会多加载一次
+            long[] digest = isRacy(attributes) ? digest(file) : null;
+            T value = loader.load(file);
+            BasicFileAttributes loaded = attributes(file);
+            boolean cacheable = value != null && loaded != null && sameStamp(attributes, loaded)
+                    && attributes.size() <= maxBytes / 2;
+            entry.value = cacheable ? value : null;
+            entry.length = attributes.size();
+            entry.lastModified = attributes.lastModifiedTime().toMillis();
+            entry.fileKey = attributes.fileKey();
+            entry.digest = digest;
+            update(key, entry, cacheable ? attributes.size() : 0);
+            return value;
+        }
+    }
+
+    /**
+     * 丢弃所有值，用于释放内存
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " 个值，约 " + (totalBytes >> 10) + "KB，命中 " + hits.get() + " 次，加载 "
+                + misses.get() + " 次";
+    }
+
+    /**
+     * 更新值的占用并按需淘汰。加载期间被淘汰的条目已经不在表中，它的值只返回给本次调用
+     */
+    private synchronized void update(String key, Entry entry, long weight) {
+        if (entries.get(key) != entry) {
+            entry.value = null;
+            return;
+        }
+        totalBytes += weight - entry.weight;
+        entry.weight = weight;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getValue() == entry) {
+                continue;
+            }
+            totalBytes -= eldest.getValue().weight;
+            iterator.remove();
+        }
+    }
+
+    private boolean isFresh(Entry entry, File file, BasicFileAttributes attributes) throws IOException {
+        if (entry.length != attributes.size() || entry.lastModified != attributes.lastModifiedTime().toMillis()
+                || (entry.fileKey != null && !entry.fileKey.equals(attributes.fileKey()))) {
+            return false;
+        }
+        if (entry.digest == null) {
+            return true;
+        }
+        long[] digest = digest(file);
+        if (digest[0] != entry.digest[0] || digest[1] != entry.digest[1]) {
+            return false;
+        }
+        if (!isRacy(attributes)) {
+            // 之后再写入文件修改时间一定会变化，不需要再核对
+            entry.digest = null;
+        }
+        return true;
+    }
+
+    private static boolean isRacy(BasicFileAttributes attributes) {
+        return System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() < RACY_MILLIS;
+    }
+
+    private static boolean sameStamp(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime())
+                && (a.fileKey() == null ? b.fileKey() == null : a.fileKey().equals(b.fileKey()));
+    }
+
+    private static BasicFileAttributes attributes(File file) throws IOException {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static long[] digest(File file) throws IOException {
+        long[] digest = new long[2];
+        DigestAlgorithm.MURMUR3.digest(Files.readAllBytes(file.toPath()), digest);
+        return digest;
+    }
+}
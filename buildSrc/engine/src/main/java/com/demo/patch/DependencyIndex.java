@@ -0,0 +1,339 @@
+package com.demo.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 所有插桩过的类的依赖索引，每次编译后保存为 deps.idx。
+ * <p>
+ * 只有本次重新解析过的类会生成新的记录，其余的类在摘要没有变化时沿用上一次的记录。
+ * 生成补丁时用本次的索引在内存中建立反向引用表，从有变化的类出发查找受影响的类：
+ * 结构（ABI）变化的类，引用它的类都受影响，子类的结构也随之变化，继续向下查找；
+ * 编译期常量变化的类，常量池中含有旧常量值的类可能内联了它，也受影响
+ */
+public class DependencyIndex {
+
+    public static final String FILE_NAME = "deps.idx";
+
+    private static final int MAGIC = 0x50444550; // "PDEP"
+    private static final int VERSION = 1;
+
+    private static final DaemonCache.Loader<DependencyIndex> LOADER = new DaemonCache.Loader<DependencyIndex>() {
+        @Override
+        public DependencyIndex load(File file) {
+            return read(file);
+        }
+    };
+
+    /**
+     * 路径到依赖记录
+     */
+    private final Map<String, ClassDependencies> classes = new ConcurrentHashMap<>();
+
+    public void put(ClassDependencies dependencies) {
+        classes.put(dependencies.path, dependencies);
+    }
+
+    /**
+     * 合并插桩工作项收集的依赖
+     */
+    public void putAll(DependencyIndex other) {
+        classes.putAll(other.classes);
+    }
+
+    public ClassDependencies get(String path) {
+        return classes.get(path);
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * 对本次没有重新解析的类，沿用上一次摘要相同的记录
+     *
+     * @param prev  上一次的索引，可以为 null
+     * @param hexes 本次编译的全部摘要
+     */
+    public void carryForward(DependencyIndex prev, DigestTable hexes) {
+        if (prev == null) {
+            return;
+        }
+        for (int id = 0; id < hexes.size(); id++) {
+            String path = hexes.keyAt(id);
+            if (classes.containsKey(path)) {
+                continue;
+            }
+            ClassDependencies prevDependencies = prev.get(path);
+            if (prevDependencies != null && prevDependencies.high == hexes.high(id)
+                    && prevDependencies.low == hexes.low(id)) {
+                classes.put(path, prevDependencies);
+            }
+        }
+    }
+
+    /**
+     * 查找受 changedPaths 中的类影响、但自身没有变化的类
+     *
+     * @param prev         上一次的索引，用来判断结构和常量是否变化
+     * @param changedPaths 有变化的类的路径
+     * @return 受影响的类的路径，不包含 changedPaths 中的类
+     */
+    public Set<String> affectedBy(DependencyIndex prev, Collection<String> changedPaths) {
+        Set<String> affected = new TreeSet<>();
+        if (prev == null || changedPaths.isEmpty()) {
+            return affected;
+        }
+
+        // 反向引用：类名 -> 引用它的类，以及父类 -> 子类
+        Map<String, List<ClassDependencies>> referrers = new HashMap<>();
+        Map<String, List<ClassDependencies>> subclasses = new HashMap<>();
+        // 字面量 -> 常量池中有这个字面量的类
+        Map<Long, List<ClassDependencies>> literalUsers = new HashMap<>();
+        for (ClassDependencies dependencies : classes.values()) {
+            for (String reference : dependencies.references) {
+                add(referrers, reference, dependencies);
+            }
+            for (String superName : dependencies.supers) {
+                add(subclasses, superName, dependencies);
+            }
+            for (long literal : dependencies.literals) {
+                add(literalUsers, literal, dependencies);
+            }
+        }
+
+        Deque<ClassDependencies> queue = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        for (String path : changedPaths) {
+            ClassDependencies current = classes.get(path);
+            ClassDependencies previous = prev.get(path);
+            // 新增的类之前没有被引用过，不会影响其他类
+            if (current == null || previous == null) {
+                continue;
+            }
+            if (current.abi != previous.abi && visited.add(current.name)) {
+                queue.add(current);
+            }
+            // 值发生了变化或被删除的常量，在常量池中查找旧值
+            Set<Long> currentConstants = new HashSet<>();
+            for (long constant : current.constants) {
+                currentConstants.add(constant);
+            }
+            for (long constant : previous.constants) {
+                if (!currentConstants.contains(constant)) {
+                    addAll(affected, literalUsers.get(constant));
+                }
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            ClassDependencies changed = queue.poll();
+            addAll(affected, referrers.get(changed.name));
+            List<ClassDependencies> children = subclasses.get(changed.name);
+            if (children != null) {
+                for (ClassDependencies child : children) {
+                    affected.add(child.path);
+                    // 父类结构变化后子类的结构也变了，继续查找引用子类的类
+                    if (visited.add(child.name)) {
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+
+        affected.removeAll(changedPaths);
+        return affected;
+    }
+
+    private static <K> void add(Map<K, List<ClassDependencies>> map, K key, ClassDependencies value) {
+        List<ClassDependencies> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    private static void addAll(Set<String> paths, List<ClassDependencies> list) {
+        if (list != null) {
+            for (ClassDependencies dependencies : list) {
+                paths.add(dependencies.path);
+            }
+        }
+    }
+
+    /**
+     * 读取索引文件，文件不存在或格式不对时返回 null
+     */
+    public static DependencyIndex read(File indexFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                return null;
+            }
+            // 类名在多条记录中重复出现，统一放在字符串表中，记录中只保存下标
+            String[] names = new String[inputStream.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = inputStream.readUTF();
+            }
+            DependencyIndex index = new DependencyIndex();
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = inputStream.readUTF();
+                String name = names[inputStream.readInt()];
+                long high = inputStream.readLong();
+                long low = inputStream.readLong();
+                long abi = inputStream.readLong();
+                String[] supers = readNames(inputStream, names);
+                String[] references = readNames(inputStream, names);
+                long[] constants = readLongs(inputStream);
+                long[] literals = readLongs(inputStream);
+                index.put(new ClassDependencies(name, path, high, low, abi, supers, references, constants,
+                        literals));
+            }
+            return index;
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启了守护进程缓存时从缓存中取得，得到的索引会被共用，只能读取
+     *
+     * @param daemonCache 为 null 时直接读取索引文件
+     */
+    public static DependencyIndex read(File indexFile, DaemonCache daemonCache) {
+        if (daemonCache == null) {
+            return read(indexFile);
+        }
+        try {
+            return daemonCache.get("deps", indexFile, LOADER);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 按路径排序写入索引文件，先写临时文件再原子替换
+     */
+    public void write(File indexFile) throws IOException {
+        Map<String, ClassDependencies> sortedClasses = new TreeMap<>(classes);
+        Map<String, Integer> names = new LinkedHashMap<>();
+        for (ClassDependencies dependencies : sortedClasses.values()) {
+            nameId(names, dependencies.name);
+            for (String superName : dependencies.supers) {
+                nameId(names, superName);
+            }
+            for (String reference : dependencies.references) {
+                nameId(names, reference);
+            }
+        }
+
+        indexFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(names.size());
+            for (String name : names.keySet()) {
+                outputStream.writeUTF(name);
+            }
+            outputStream.writeInt(sortedClasses.size());
+            for (ClassDependencies dependencies : sortedClasses.values()) {
+                outputStream.writeUTF(dependencies.path);
+                outputStream.writeInt(names.get(dependencies.name));
+                outputStream.writeLong(dependencies.high);
+                outputStream.writeLong(dependencies.low);
+                outputStream.writeLong(dependencies.abi);
+                writeNames(outputStream, dependencies.supers, names);
+                writeNames(outputStream, dependencies.references, names);
+                writeLongs(outputStream, dependencies.constants);
+                writeLongs(outputStream, dependencies.literals);
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void nameId(Map<String, Integer> names, String name) {
+        if (!names.containsKey(name)) {
+            names.put(name, names.size());
+        }
+    }
+
+    private static void writeNames(DataOutputStream outputStream, String[] values, Map<String, Integer> names)
+            throws IOException {
+        outputStream.writeShort(values.length);
+        for (String value : values) {
+            outputStream.writeInt(names.get(value));
+        }
+    }
+
+    private static String[] readNames(DataInputStream inputStream, String[] names) throws IOException {
+        String[] values = new String[inputStream.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = names[inputStream.readInt()];
+        }
+        return values;
+    }
+
+    private static void writeLongs(DataOutputStream outputStream, long[] values) throws IOException {
+        outputStream.writeShort(values.length);
+        for (long value : values) {
+            outputStream.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream inputStream) throws IOException {
+        long[] values = new long[inputStream.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = inputStream.readLong();
+        }
+        return values;
+    }
+}
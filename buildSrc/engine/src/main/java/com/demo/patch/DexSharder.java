@@ -0,0 +1,180 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 把补丁 class 分成多个 dex 分片。dex 中方法和字段的 id 只有 16 位，一个 dex 最多引用 65536 个方法、
+ * 65536 个字段，大的补丁（比如升级了整个库）放进一个 dex 会编译失败。
+ * <p>
+ * 引用数从常量池中的方法、字段引用和类中声明的成员估算，同一个分片中重复的引用只计算一次。
+ * 类按类名排序后以外部类分组，内部类和外部类总在同一个分片中，同一个包中的类也尽量相邻，
+ * 只有单个外部类的引用就超过上限时才拆开
+ */
+final class DexSharder {
+
+    /**
+     * 每个分片的方法和字段引用数上限，低于 65536 留出估算误差的余量
+     */
+    static final int MAX_REFERENCES = 60000;
+
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * 一组必须放在同一个分片中的类及其引用
+     */
+    private static class Group {
+        final Map<String, byte[]> classes = new TreeMap<>();
+        final Set<String> methods = new HashSet<>();
+        final Set<String> fields = new HashSet<>();
+    }
+
+    private DexSharder() {
+    }
+
+    /**
+     * @param classes       class 路径（比如 com/demo/Foo.class）与 class 内容
+     * @param maxReferences 每个分片的方法和字段引用数上限
+     * @return 按类名顺序排列的分片，没有 class 时为空
+     */
+    static List<Map<String, byte[]>> shard(Map<String, byte[]> classes, int maxReferences) {
+        List<Group> groups = new ArrayList<>();
+        for (Group group : group(classes)) {
+            if (group.classes.size() > 1 && exceeds(group, maxReferences)) {
+                // 单个外部类就放不进一个分片，只能按类拆开
+                for (Map.Entry<String, byte[]> entry : group.classes.entrySet()) {
+                    groups.add(single(entry.getKey(), entry.getValue()));
+                }
+            } else {
+                groups.add(group);
+            }
+        }
+
+        List<Map<String, byte[]>> shards = new ArrayList<>();
+        Group current = null;
+        for (Group group : groups) {
+            if (current != null && (newCount(current.methods, group.methods) > maxReferences
+                    || newCount(current.fields, group.fields) > maxReferences)) {
+                shards.add(current.classes);
+                current = null;
+            }
+            if (current == null) {
+                current = new Group();
+            }
+            current.classes.putAll(group.classes);
+            current.methods.addAll(group.methods);
+            current.fields.addAll(group.fields);
+        }
+        if (current != null) {
+            shards.add(current.classes);
+        }
+        return shards;
+    }
+
+    /**
+     * 按外部类分组，组的顺序是组中第一个类的顺序
+     */
+    private static List<Group> group(Map<String, byte[]> classes) {
+        Map<String, Group> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : new TreeMap<>(classes).entrySet()) {
+            String className = entry.getKey();
+            // 先去掉 .class 后缀，否则 Foo.class 和 Foo$1.class 的外部类名不同，会被分到不同的分片中
+            String name = className.endsWith(CLASS_SUFFIX)
+                    ? className.substring(0, className.length() - CLASS_SUFFIX.length()) : className;
+            int index = name.indexOf('$', name.lastIndexOf('/') + 1);
+            String outerName = index < 0 ? name : name.substring(0, index);
+            Group group = groups.get(outerName);
+            if (group == null) {
+                group = new Group();
+                groups.put(outerName, group);
+            }
+            group.classes.put(className, entry.getValue());
+            collect(entry.getValue(), group.methods, group.fields);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static Group single(String className, byte[] bytes) {
+        Group group = new Group();
+        group.classes.put(className, bytes);
+        collect(bytes, group.methods, group.fields);
+        return group;
+    }
+
+    private static boolean exceeds(Group group, int maxReferences) {
+        return group.methods.size() > maxReferences || group.fields.size() > maxReferences;
+    }
+
+    /**
+     * 把 added 加入 current 之后的引用数
+     */
+    private static int newCount(Set<String> current, Set<String> added) {
+        int count = current.size();
+        for (String reference : added) {
+            if (!current.contains(reference)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 收集一个类的方法和字段引用：常量池中的引用加上类中声明的成员，只解析常量池和类结构，不解析方法体
+     */
+    static void collect(byte[] bytes, final Set<String> methods, final Set<String> fields) {
+        ClassReader classReader = new ClassReader(bytes);
+        char[] buffer = new char[classReader.getMaxStringLength()];
+        for (int i = 1; i < classReader.getItemCount(); i++) {
+            int offset = classReader.getItem(i);
+            // long 和 double 占两个位置，第二个位置的偏移为 0
+            if (offset <= 0) {
+                continue;
+            }
+            int tag = classReader.readByte(offset - 1);
+            if (tag != CONSTANT_FIELDREF && tag != CONSTANT_METHODREF && tag != CONSTANT_INTERFACE_METHODREF) {
+                continue;
+            }
+            String owner = classReader.readClass(offset, buffer);
+            int nameAndType = classReader.getItem(classReader.readUnsignedShort(offset + 2));
+            String reference = owner + '.' + classReader.readUTF8(nameAndType, buffer) + ':'
+                    + classReader.readUTF8(nameAndType + 2, buffer);
+            if (tag == CONSTANT_FIELDREF) {
+                fields.add(reference);
+            } else {
+                methods.add(reference);
+            }
+        }
+
+        final String className = classReader.getClassName();
+        classReader.accept(new ClassVisitor(Opcodes.ASM6) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature,
+                                           Object value) {
+                fields.add(className + '.' + name + ':' + desc);
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                methods.add(className + '.' + name + ':' + desc);
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+}
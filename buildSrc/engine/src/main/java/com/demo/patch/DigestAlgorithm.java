@@ -0,0 +1,226 @@
+package com.demo.patch;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 判断 class 是否变化时使用的 128 位摘要算法。摘要以高低两个 long 表示，
+ * 计算结果写入调用方传入的数组，不会为每个 class 创建摘要对象或字符串
+ */
+public enum DigestAlgorithm {
+
+    /**
+     * 与旧版本 hex.txt 兼容的 md5
+     */
+    MD5(1) {
+        @Override
+        public void digest(byte[] bytes, int offset, int length, long[] out) {
+            MessageDigest messageDigest = MD5_DIGEST.get();
+            byte[] buffer = MD5_BUFFER.get();
+            messageDigest.update(bytes, offset, length);
+            try {
+                messageDigest.digest(buffer, 0, buffer.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            out[0] = readLong(buffer, 0);
+            out[1] = readLong(buffer, 8);
+        }
+    },
+
+    /**
+     * 非加密的 MurmurHash3 x64 128 位哈希，比 md5 快得多，用于变化检测足够
+     */
+    MURMUR3(2) {
+        @Override
+        public void digest(byte[] bytes, int offset, int length, long[] out) {
+            murmur3(bytes, offset, length, out);
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> MD5_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16];
+        }
+    };
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * 写入索引文件时使用的算法编号
+     */
+    public final int id;
+
+    DigestAlgorithm(int id) {
+        this.id = id;
+    }
+
+    /**
+     * 计算 bytes 中 [offset, offset + length) 的摘要，out[0] 为高 64 位，out[1] 为低 64 位
+     */
+    public abstract void digest(byte[] bytes, int offset, int length, long[] out);
+
+    public void digest(byte[] bytes, long[] out) {
+        digest(bytes, 0, bytes.length, out);
+    }
+
+    public static DigestAlgorithm of(int id) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("未知的摘要算法编号：" + id);
+    }
+
+    /**
+     * 根据 patch{} 中的配置名称获取算法，名称不区分大小写
+     */
+    public static DigestAlgorithm of(String name) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name().equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("不支持的摘要算法：" + name + "，可选值为 md5、murmur3");
+    }
+
+    /**
+     * 以 32 位十六进制形式输出摘要，只在日志和报告中使用
+     */
+    public static String toHex(long high, long low) {
+        return String.format("%016x%016x", high, low);
+    }
+
+    // 剩余字节的 switch 按 MurmurHash3 的参考实现依次贯穿各个 case
+    @SuppressWarnings("fallthrough")
+    private static void murmur3(byte[] bytes, int offset, int length, long[] out) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            int index = offset + (i << 4);
+            long k1 = readLongLittleEndian(bytes, index);
+            long k2 = readLongLittleEndian(bytes, index + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // 处理剩余不足 16 字节的部分
+        int tail = offset + (blocks << 4);
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15:
+                k2 ^= (bytes[tail + 14] & 0xffL) << 48;
+            case 14:
+                k2 ^= (bytes[tail + 13] & 0xffL) << 40;
+            case 13:
+                k2 ^= (bytes[tail + 12] & 0xffL) << 32;
+            case 12:
+                k2 ^= (bytes[tail + 11] & 0xffL) << 24;
+            case 11:
+                k2 ^= (bytes[tail + 10] & 0xffL) << 16;
+            case 10:
+                k2 ^= (bytes[tail + 9] & 0xffL) << 8;
+            case 9:
+                k2 ^= bytes[tail + 8] & 0xffL;
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8:
+                k1 ^= (bytes[tail + 7] & 0xffL) << 56;
+            case 7:
+                k1 ^= (bytes[tail + 6] & 0xffL) << 48;
+            case 6:
+                k1 ^= (bytes[tail + 5] & 0xffL) << 40;
+            case 5:
+                k1 ^= (bytes[tail + 4] & 0xffL) << 32;
+            case 4:
+                k1 ^= (bytes[tail + 3] & 0xffL) << 24;
+            case 3:
+                k1 ^= (bytes[tail + 2] & 0xffL) << 16;
+            case 2:
+                k1 ^= (bytes[tail + 1] & 0xffL) << 8;
+            case 1:
+                k1 ^= bytes[tail] & 0xffL;
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long readLongLittleEndian(byte[] bytes, int index) {
+        return (bytes[index] & 0xffL)
+                | (bytes[index + 1] & 0xffL) << 8
+                | (bytes[index + 2] & 0xffL) << 16
+                | (bytes[index + 3] & 0xffL) << 24
+                | (bytes[index + 4] & 0xffL) << 32
+                | (bytes[index + 5] & 0xffL) << 40
+                | (bytes[index + 6] & 0xffL) << 48
+                | (bytes[index + 7] & 0xffL) << 56;
+    }
+
+    static long readLong(byte[] bytes, int index) {
+        return (bytes[index] & 0xffL) << 56
+                | (bytes[index + 1] & 0xffL) << 48
+                | (bytes[index + 2] & 0xffL) << 40
+                | (bytes[index + 3] & 0xffL) << 32
+                | (bytes[index + 4] & 0xffL) << 24
+                | (bytes[index + 5] & 0xffL) << 16
+                | (bytes[index + 6] & 0xffL) << 8
+                | (bytes[index + 7] & 0xffL);
+    }
+}
@@ -0,0 +1,167 @@
+package com.demo.patch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * class 路径到 128 位摘要的哈希表，用来替代 Map&lt;String, String&gt;。
+ * 路径和摘要按加入顺序保存在紧凑的数组中，数组下标就是路径的 id，扩容时只重建开放寻址的槽位，
+ * 已经分配的 id 不会改变。摘要以 long 保存，比较时只做 long 的相等判断。
+ * <p>
+ * 不是线程安全的：每个插桩工作项写入自己的表，由 patch 任务按顺序用 {@link #putAll(DigestTable)} 合并，
+ * 工作项之间不会竞争同一把锁
+ */
+public class DigestTable {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * 开放寻址的槽位，保存 id + 1，0 表示空槽位
+     */
+    private int[] slots;
+    private String[] keys;
+    private long[] highs;
+    private long[] lows;
+    private int size;
+
+    public DigestTable() {
+        this(16);
+    }
+
+    public DigestTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        slots = new int[capacity];
+        int length = Math.max(4, expectedSize);
+        keys = new String[length];
+        highs = new long[length];
+        lows = new long[length];
+    }
+
+    public void put(String path, long high, long low) {
+        int slot = slot(path);
+        int id = slots[slot] - 1;
+        if (id < 0) {
+            if (size == keys.length) {
+                int length = keys.length << 1;
+                keys = Arrays.copyOf(keys, length);
+                highs = Arrays.copyOf(highs, length);
+                lows = Arrays.copyOf(lows, length);
+            }
+            id = size++;
+            keys[id] = path;
+            slots[slot] = id + 1;
+            if (size > slots.length * LOAD_FACTOR) {
+                rehash(slots.length << 1);
+            }
+        }
+        highs[id] = high;
+        lows[id] = low;
+    }
+
+    public void putAll(DigestTable other) {
+        for (int id = 0; id < other.size; id++) {
+            put(other.keys[id], other.highs[id], other.lows[id]);
+        }
+    }
+
+    /**
+     * 查找路径的 id，不存在时返回 -1
+     */
+    public int indexOf(String path) {
+        return slots[slot(path)] - 1;
+    }
+
+    public boolean matches(String path, long high, long low) {
+        int id = indexOf(path);
+        return id >= 0 && highs[id] == high && lows[id] == low;
+    }
+
+    public long high(int id) {
+        return highs[id];
+    }
+
+    public long low(int id) {
+        return lows[id];
+    }
+
+    /**
+     * 路径的数量，id 的范围是 [0, size)
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * id 对应的路径，配合 {@link #size()} 按加入顺序遍历所有路径
+     */
+    public String keyAt(int id) {
+        return keys[id];
+    }
+
+    /**
+     * 按路径排序后的所有 id，用于生成内容确定的输出
+     */
+    public int[] sortedIds() {
+        Integer[] ids = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        final String[] sortKeys = keys;
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return sortKeys[o1].compareTo(sortKeys[o2]);
+            }
+        });
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = ids[i];
+        }
+        return result;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(size);
+        for (int id : sortedIds()) {
+            output.writeUTF(keys[id]);
+            output.writeLong(highs[id]);
+            output.writeLong(lows[id]);
+        }
+    }
+
+    public static DigestTable read(DataInput input) throws IOException {
+        int count = input.readInt();
+        DigestTable table = new DigestTable(count);
+        for (int i = 0; i < count; i++) {
+            table.put(input.readUTF(), input.readLong(), input.readLong());
+        }
+        return table;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < size; id++) {
+            slots[slot(keys[id])] = id + 1;
+        }
+    }
+
+    /**
+     * 线性探测查找路径所在的槽位，路径不存在时返回第一个空槽位
+     */
+    private int slot(String path) {
+        int mask = slots.length - 1;
+        int hash = path.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0 && !keys[slots[slot] - 1].equals(path)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
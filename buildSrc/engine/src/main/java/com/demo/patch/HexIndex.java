@@ -0,0 +1,450 @@
+package com.demo.patch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 以二进制格式保存的 class 路径与摘要索引，用来替代 hex.txt。文件格式为：
+ * <pre>
+ * 文件头  magic(int) version(int) count(int) algorithm(int) instrumentVersion(int)
+ * 记录    count 条 pathOffset(int) pathLength(int) high(long) low(long)，按路径的 UTF-8 字节序排列
+ * 字符串表 所有路径的 UTF-8 字节
+ * </pre>
+ * 读取时通过内存映射二分查找，不需要把所有记录加载到堆上；开启守护进程缓存时则把整个文件读到堆上，
+ * 由 {@link DaemonCache} 在多次构建之间共用。版本 1 的文件头最后一项是摘要长度，摘要固定为 md5；
+ * 版本 1、2 的文件头没有 instrumentVersion，记录的布局与版本 3 相同
+ */
+public class HexIndex implements Closeable {
+
+    public static final String FILE_NAME = "hex.idx";
+
+    /**
+     * 旧版本使用的文本格式备份文件，每行为 path:md5
+     */
+    public static final String LEGACY_FILE_NAME = "hex.txt";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HexIndex.class);
+
+    private static final int MAGIC = 0x50484558; // "PHEX"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 20;
+    /**
+     * 没有记录插桩版本的 hex.txt 和版本 1、2 的索引，都可能来自改用 ClassWriter(classReader, 0) 之前的插件
+     */
+    private static final int UNVERSIONED_INSTRUMENT_VERSION = 1;
+    private static final int DIGEST_LENGTH = 16;
+    private static final int RECORD_SIZE = 8 + DIGEST_LENGTH;
+
+    private static final DaemonCache.Loader<HexIndex> LOADER = new DaemonCache.Loader<HexIndex>() {
+        @Override
+        public HexIndex load(File file) throws IOException {
+            return HexIndex.load(file);
+        }
+    };
+
+    private ByteBuffer buffer;
+    private final int headerSize;
+    private final int count;
+    private final DigestAlgorithm algorithm;
+    private final int instrumentVersion;
+
+    private HexIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("不是有效的 hex 索引文件");
+        }
+        int version = buffer.getInt(4);
+        if (version == 1) {
+            if (buffer.getInt(12) != DIGEST_LENGTH) {
+                throw new IOException("不支持的摘要长度：" + buffer.getInt(12));
+            }
+            this.algorithm = DigestAlgorithm.MD5;
+            this.headerSize = 16;
+            this.instrumentVersion = UNVERSIONED_INSTRUMENT_VERSION;
+        } else if (version == 2) {
+            this.algorithm = DigestAlgorithm.of(buffer.getInt(12));
+            this.headerSize = 16;
+            this.instrumentVersion = UNVERSIONED_INSTRUMENT_VERSION;
+        } else if (version == VERSION && buffer.capacity() >= HEADER_SIZE) {
+            this.algorithm = DigestAlgorithm.of(buffer.getInt(12));
+            this.headerSize = HEADER_SIZE;
+            this.instrumentVersion = buffer.getInt(16);
+        } else {
+            throw new IOException("不支持的 hex 索引版本：" + version);
+        }
+        this.count = buffer.getInt(8);
+    }
+
+    /**
+     * 打开索引文件。索引文件不存在而同目录下有旧的 hex.txt 时，会先把 hex.txt 转换成索引文件，
+     * 转换完成后删除 hex.txt。两者都不存在时返回 null
+     */
+    public static HexIndex open(File indexFile) throws IOException {
+        if (!convertLegacy(indexFile)) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // 映射建立后关闭文件不影响映射的使用
+            return new HexIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 把整个索引文件读到堆上，不建立内存映射，可以被多个线程、多次构建共用，也不妨碍文件被替换
+     */
+    public static HexIndex load(File indexFile) throws IOException {
+        if (!convertLegacy(indexFile)) {
+            return null;
+        }
+        return new HexIndex(ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath())));
+    }
+
+    /**
+     * 开启了守护进程缓存时从缓存中取得读到堆上的索引，否则通过内存映射打开
+     *
+     * @param daemonCache 为 null 时不缓存
+     */
+    public static HexIndex open(File indexFile, DaemonCache daemonCache) throws IOException {
+        return daemonCache == null ? open(indexFile) : daemonCache.get("hex", indexFile, LOADER);
+    }
+
+    /**
+     * 索引文件不存在时把同目录下旧的 hex.txt 转换成索引文件，返回索引文件是否存在
+     */
+    private static boolean convertLegacy(File indexFile) throws IOException {
+        if (indexFile.exists()) {
+            return true;
+        }
+        File legacyFile = new File(indexFile.getParentFile(), LEGACY_FILE_NAME);
+        if (!legacyFile.exists()) {
+            return false;
+        }
+        write(readLegacy(legacyFile), DigestAlgorithm.MD5, UNVERSIONED_INSTRUMENT_VERSION, indexFile);
+        legacyFile.delete();
+        return true;
+    }
+
+    /**
+     * 写入本次插桩得到的摘要，见 {@link #write(DigestTable, DigestAlgorithm, int, File)}
+     */
+    public static void write(DigestTable hexes, DigestAlgorithm algorithm, File indexFile) throws IOException {
+        write(hexes, algorithm, ClassUtils.INSTRUMENT_VERSION, indexFile);
+    }
+
+    /**
+     * 将 class 路径与摘要写入索引文件。先写到临时文件再原子替换，写入过程中崩溃不会破坏原有的索引
+     *
+     * @param instrumentVersion 计算摘要时的 {@link ClassUtils#INSTRUMENT_VERSION}
+     */
+    public static void write(DigestTable hexes, DigestAlgorithm algorithm, int instrumentVersion, File indexFile)
+            throws IOException {
+        int[] ids = hexes.sortedIds();
+        final byte[][] paths = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            paths[i] = hexes.keyAt(ids[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        // 按 UTF-8 字节序排列，与查找时的比较方式一致
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return compareBytes(paths[o1], paths[o2]);
+            }
+        });
+
+        indexFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(order.length);
+            outputStream.writeInt(algorithm.id);
+            outputStream.writeInt(instrumentVersion);
+            int offset = 0;
+            for (Integer i : order) {
+                outputStream.writeInt(offset);
+                outputStream.writeInt(paths[i].length);
+                outputStream.writeLong(hexes.high(ids[i]));
+                outputStream.writeLong(hexes.low(ids[i]));
+                offset += paths[i].length;
+            }
+            for (Integer i : order) {
+                outputStream.write(paths[i]);
+            }
+            outputStream.flush();
+            // 确保数据落盘后再替换，避免断电后留下不完整的索引
+            fileOutputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * 生成索引时使用的摘要算法，与本次编译使用的算法不同时索引中的摘要无法比较
+     */
+    public DigestAlgorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * 计算摘要时的插桩版本，与 {@link ClassUtils#INSTRUMENT_VERSION} 不同时同样的源码插桩出的 class 也不同，
+     * 摘要无法比较
+     */
+    public int instrumentVersion() {
+        return instrumentVersion;
+    }
+
+    /**
+     * 判断索引中 class 的摘要是否与给定的摘要相同，直接比较映射中的 long，不创建中间对象
+     */
+    public boolean matches(String path, long high, long low) {
+        int record = find(path);
+        if (record < 0) {
+            return false;
+        }
+        int digestOffset = recordOffset(record) + 8;
+        return buffer.getLong(digestOffset) == high && buffer.getLong(digestOffset + 8) == low;
+    }
+
+    public boolean contains(String path) {
+        return find(path) >= 0;
+    }
+
+    /**
+     * 读出索引中的全部记录，用于需要遍历基准的场合，比如列出被删除的类
+     */
+    public DigestTable toTable() {
+        DigestTable table = new DigestTable(count);
+        int stringTableOffset = stringTableOffset();
+        // 在副本上移动 position，不影响其它线程对映射的绝对位置读取
+        ByteBuffer view = buffer.duplicate();
+        byte[] path = new byte[256];
+        for (int record = 0; record < count; record++) {
+            int offset = recordOffset(record);
+            int length = buffer.getInt(offset + 4);
+            if (path.length < length) {
+                path = new byte[length];
+            }
+            view.position(stringTableOffset + buffer.getInt(offset));
+            view.get(path, 0, length);
+            table.put(new String(path, 0, length, StandardCharsets.UTF_8), buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16));
+        }
+        return table;
+    }
+
+    /**
+     * 在映射中二分查找路径对应的记录下标，只使用绝对位置读取，多线程并发查找是安全的
+     */
+    private int find(String path) {
+        byte[] key = null;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) >= 0x80) {
+                // 只有包含非 ASCII 字符时才需要编码，class 路径绝大多数都是 ASCII
+                key = path.getBytes(StandardCharsets.UTF_8);
+                break;
+            }
+        }
+        int stringTableOffset = stringTableOffset();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = recordOffset(mid);
+            int start = stringTableOffset + buffer.getInt(offset);
+            int length = buffer.getInt(offset + 4);
+            int cmp = key == null ? compareMapped(start, length, path) : compareMapped(start, length, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareMapped(int start, int length, byte[] key) {
+        int min = Math.min(length, key.length);
+        for (int i = 0; i < min; i++) {
+            int cmp = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private int compareMapped(int start, int length, String asciiKey) {
+        int min = Math.min(length, asciiKey.length());
+        for (int i = 0; i < min; i++) {
+            int cmp = (buffer.get(start + i) & 0xff) - asciiKey.charAt(i);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - asciiKey.length();
+    }
+
+    private int recordOffset(int record) {
+        return headerSize + record * RECORD_SIZE;
+    }
+
+    private int stringTableOffset() {
+        return headerSize + count * RECORD_SIZE;
+    }
+
+    /**
+     * 解除内存映射。Windows 上被映射的文件无法被替换，所以写入新索引之前要先关闭旧的索引。
+     * 读到堆上的索引可能正被其它地方共用，关闭时什么也不做
+     */
+    @Override
+    public void close() {
+        if (!(buffer instanceof MappedByteBuffer)) {
+            return;
+        }
+        MappedByteBuffer mapped = (MappedByteBuffer) buffer;
+        buffer = null;
+        try {
+            unmap(mapped);
+        } catch (Exception e) {
+            // 无法主动释放时交给 GC 处理，在此之前 Windows 上无法替换这个文件
+            LOGGER.warn("无法解除 hex 索引的内存映射，将由 GC 释放：" + e);
+        }
+    }
+
+    /**
+     * Java 9 起 DirectBuffer 所在的模块不再开放，cleaner() 无法通过反射调用，改用 Unsafe.invokeCleaner；
+     * Java 8 的 Unsafe 没有这个方法，依然通过 DirectBuffer.cleaner() 释放映射
+     */
+    private static void unmap(MappedByteBuffer mapped) throws Exception {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner;
+        try {
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(mapped);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            return;
+        }
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), mapped);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int min = Math.min(a.length, b.length);
+        for (int i = 0; i < min; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * 读取旧版本的 hex.txt，其中的摘要都是 md5
+     */
+    private static DigestTable readLegacy(File legacyFile) throws IOException {
+        Map<String, String> hexes = readHex(legacyFile);
+        DigestTable table = new DigestTable(hexes.size());
+        for (Map.Entry<String, String> entry : hexes.entrySet()) {
+            String hex = entry.getValue();
+            if (hex.length() != DIGEST_LENGTH * 2) {
+                throw new IOException("md5 长度不正确：" + hex);
+            }
+            try {
+                table.put(entry.getKey(), Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                        Long.parseUnsignedLong(hex.substring(16), 16));
+            } catch (NumberFormatException e) {
+                throw new IOException("md5 格式不正确：" + hex, e);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 读取旧版本 path:md5 格式的 hex.txt
+     */
+    static Map<String, String> readHex(File hexFile) {
+        Map<String, String> hashMap = new HashMap<>();
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(hexFile), StandardCharsets.UTF_8));
+            String line;
+            while ((line = br.readLine()) != null) {
+                // md5 中不会有冒号，以最后一个冒号分隔，路径中带冒号的记录也能正确读取
+                int index = line.lastIndexOf(':');
+                if (index > 0 && index < line.length() - 1) {
+                    hashMap.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return hashMap;
+    }
+}
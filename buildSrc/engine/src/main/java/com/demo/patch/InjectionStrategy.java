@@ -0,0 +1,182 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * 插入 AntiLazyLoad 引用的方式。
+ * <p>
+ * Dalvik 在安装时校验类的所有方法，只要任意一个方法引用了另一个 dex 中的 AntiLazyLoad，
+ * 类就不会被打上 CLASS_ISPREVERIFIED 标记，引用放在哪个方法中、是否会被执行都不影响效果，
+ * 区别只在于运行时的开销
+ */
+public enum InjectionStrategy {
+
+    /**
+     * 在每个构造方法的 RETURN 之前加载 AntiLazyLoad，每次创建对象都会执行一次
+     */
+    CONSTRUCTOR {
+        @Override
+        ClassVisitor visitor(ClassVisitor next) {
+            return new ClassVisitor(Opcodes.ASM6, next) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+                    if (!"<init>".equals(name)) {
+                        // 直接返回 ClassWriter 的 MethodVisitor，方法体会被原样拷贝
+                        return methodVisitor;
+                    }
+                    return new MethodVisitor(api, methodVisitor) {
+                        @Override
+                        public void visitInsn(int opcode) {
+                            if (opcode == Opcodes.RETURN) {
+                                // 在构造方法末尾插入 AntiLazyLoad 引用
+                                super.visitLdcInsn(Type.getObjectType(ClassUtils.ANTI_LAZY_LOAD));
+                            }
+                            super.visitInsn(opcode);
+                        }
+
+                        @Override
+                        public void visitMaxs(int maxStack, int maxLocals) {
+                            // LDC 会在操作数栈上多压入一个值
+                            super.visitMaxs(maxStack + 1, maxLocals);
+                        }
+                    };
+                }
+            };
+        }
+    },
+
+    /**
+     * 在静态初始化方法的开头加载 AntiLazyLoad，没有静态初始化方法时新增一个，每个类只在初始化时执行一次。
+     * <p>
+     * 是否有静态初始化方法会参与默认 serialVersionUID 的计算，新增 {@code <clinit>} 会改变没有显式声明
+     * serialVersionUID 的可序列化类的版本号，与插桩前的版本序列化的数据就无法互相读取。直接实现
+     * Serializable 或 Externalizable 的这类类改为像 {@link #METHOD} 一样新增私有方法，私有方法不参与计算；
+     * 通过父类或父接口间接实现的在插桩时无法判断，依然会新增 {@code <clinit>}，这些类需要显式声明 serialVersionUID
+     */
+    CLINIT {
+        @Override
+        ClassVisitor visitor(ClassVisitor next) {
+            return new ClassVisitor(Opcodes.ASM6, next) {
+                private boolean hasClinit;
+                private boolean serializable;
+                private boolean hasSerialVersionUid;
+
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName,
+                                  String[] interfaces) {
+                    if (interfaces != null) {
+                        for (String anInterface : interfaces) {
+                            if ("java/io/Serializable".equals(anInterface)
+                                    || "java/io/Externalizable".equals(anInterface)) {
+                                serializable = true;
+                            }
+                        }
+                    }
+                    super.visit(version, access, name, signature, superName, interfaces);
+                }
+
+                @Override
+                public FieldVisitor visitField(int access, String name, String desc, String signature,
+                                               Object value) {
+                    if ((access & Opcodes.ACC_STATIC) != 0 && "serialVersionUID".equals(name) && "J".equals(desc)) {
+                        hasSerialVersionUid = true;
+                    }
+                    return super.visitField(access, name, desc, signature, value);
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                                 String[] exceptions) {
+                    MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+                    if (!"<clinit>".equals(name)) {
+                        return methodVisitor;
+                    }
+                    hasClinit = true;
+                    return new MethodVisitor(api, methodVisitor) {
+                        @Override
+                        public void visitCode() {
+                            super.visitCode();
+                            // 入口处的操作数栈为空，LDC 之后立即 POP，后面的栈帧都不受影响
+                            super.visitLdcInsn(Type.getObjectType(ClassUtils.ANTI_LAZY_LOAD));
+                            super.visitInsn(Opcodes.POP);
+                        }
+
+                        @Override
+                        public void visitMaxs(int maxStack, int maxLocals) {
+                            super.visitMaxs(Math.max(maxStack, 1), maxLocals);
+                        }
+                    };
+                }
+
+                @Override
+                public void visitEnd() {
+                    if (!hasClinit && serializable && !hasSerialVersionUid) {
+                        // 不能新增静态初始化方法，否则默认的 serialVersionUID 会变化
+                        writeReference(super.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC
+                                | Opcodes.ACC_SYNTHETIC, ANTI_LAZY_LOAD_METHOD, "()V", null, null));
+                    } else if (!hasClinit) {
+                        writeReference(super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null));
+                    }
+                    super.visitEnd();
+                }
+            };
+        }
+    },
+
+    /**
+     * 新增一个不会被调用的私有静态方法引用 AntiLazyLoad，运行时没有任何开销，只增加 dex 的体积
+     */
+    METHOD {
+        @Override
+        ClassVisitor visitor(ClassVisitor next) {
+            return new ClassVisitor(Opcodes.ASM6, next) {
+                @Override
+                public void visitEnd() {
+                    writeReference(super.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC
+                            | Opcodes.ACC_SYNTHETIC, ANTI_LAZY_LOAD_METHOD, "()V", null, null));
+                    super.visitEnd();
+                }
+            };
+        }
+    };
+
+    /**
+     * {@link #METHOD} 方式新增的方法名，{@link #CLINIT} 方式不能新增静态初始化方法时也使用它
+     */
+    static final String ANTI_LAZY_LOAD_METHOD = "patch$antiLazyLoad";
+
+    /**
+     * 返回插入引用的 ClassVisitor，它把修改后的类转发给 next
+     */
+    abstract ClassVisitor visitor(ClassVisitor next);
+
+    /**
+     * 生成只加载 AntiLazyLoad 的方法体，没有分支，不需要栈帧
+     */
+    private static void writeReference(MethodVisitor methodVisitor) {
+        methodVisitor.visitCode();
+        methodVisitor.visitLdcInsn(Type.getObjectType(ClassUtils.ANTI_LAZY_LOAD));
+        methodVisitor.visitInsn(Opcodes.POP);
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(1, 0);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * 根据 patch{} 中的配置名称获取插入方式，名称不区分大小写
+     */
+    public static InjectionStrategy of(String name) {
+        for (InjectionStrategy strategy : values()) {
+            if (strategy.name().equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("不支持的插桩方式：" + name + "，可选值为 constructor、clinit、method");
+    }
+}
@@ -0,0 +1,199 @@
+package com.demo.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录上一次处理过的每个输入文件的长度、修改时间，以及从中得到的 class 和摘要。
+ * 下一次编译时长度和修改时间都没有变化的输入文件不需要再打开，直接沿用记录中的摘要，见 {@link #getUpToDate(File)}；
+ * 记录中有而本次输入中没有的文件说明已被删除，其中的 class 也就不会再写入备份文件
+ */
+public class InputState {
+
+    public static final String FILE_NAME = "inputs.bin";
+
+    private static final int MAGIC = 0x50494e53; // "PINS"
+    private static final int VERSION = 2;
+
+    /**
+     * 一个输入文件的处理记录
+     */
+    public static class Record {
+        public final String path;
+        public final long length;
+        public final long lastModified;
+        /**
+         * 输入文件中插桩过的 class 及其摘要，跳过的 class 不在其中
+         */
+        public final DigestTable hexes;
+
+        public Record(String path, long length, long lastModified, DigestTable hexes) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hexes = hexes;
+        }
+
+        /**
+         * 处理完成后记录文件当前的状态，所以要在插桩改写文件之后调用
+         */
+        public static Record of(File file, DigestTable hexes) {
+            return new Record(file.getAbsolutePath(), file.length(), file.lastModified(), hexes);
+        }
+
+        public boolean isUpToDate(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+    /**
+     * 从文件读取时为记录文件的修改时间，新建的记录不限制
+     */
+    private long writtenAt = Long.MAX_VALUE;
+
+    /**
+     * @param fingerprint 影响插桩结果的配置，配置变化后记录全部失效
+     */
+    public InputState(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public Record get(File file) {
+        return records.get(file.getAbsolutePath());
+    }
+
+    /**
+     * 文件的长度和修改时间都与记录相同、并且修改时间早于记录文件的写入时间时返回记录，否则返回 null。
+     * 修改时间的精度可能只有一秒甚至更粗，与记录文件在同一时刻修改的文件即使长度和修改时间都没变，
+     * 内容也可能与记录时不同（与 git 的 racy clean 是同一个问题），这种文件要重新读取内容
+     */
+    public Record getUpToDate(File file) {
+        Record record = get(file);
+        if (record == null || !record.isUpToDate(file) || file.lastModified() >= writtenAt) {
+            return null;
+        }
+        return record;
+    }
+
+    public void put(Record record) {
+        records.put(record.path, record);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public Collection<Record> records() {
+        return records.values();
+    }
+
+    /**
+     * 读取记录文件，文件不存在、格式不对或配置发生了变化时返回 null，需要全量处理
+     */
+    public static InputState read(File stateFile, String fingerprint) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        // 在读取内容之前取得，读取期间记录文件被替换时只会更保守
+        long writtenAt = stateFile.lastModified();
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile), 64 * 1024));
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION
+                    || !fingerprint.equals(inputStream.readUTF())) {
+                return null;
+            }
+            InputState state = new InputState(fingerprint);
+            state.writtenAt = writtenAt;
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = inputStream.readUTF();
+                long length = inputStream.readLong();
+                long lastModified = inputStream.readLong();
+                state.put(new Record(path, length, lastModified, DigestTable.read(inputStream)));
+            }
+            return state;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启了守护进程缓存时从缓存中取得，得到的记录会被共用，只能读取
+     *
+     * @param daemonCache 为 null 时直接读取记录文件
+     */
+    public static InputState read(File stateFile, final String fingerprint, DaemonCache daemonCache) {
+        if (daemonCache == null) {
+            return read(stateFile, fingerprint);
+        }
+        try {
+            // 指纹不同时解析结果不同，指纹也是缓存的一部分
+            return daemonCache.get("inputs:" + fingerprint, stateFile, new DaemonCache.Loader<InputState>() {
+                @Override
+                public InputState load(File file) {
+                    return read(file, fingerprint);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 写入记录文件，先写临时文件再原子替换
+     */
+    public void write(File stateFile) throws IOException {
+        stateFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(stateFile.getName(), ".tmp", stateFile.getParentFile());
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeUTF(fingerprint);
+            Map<String, Record> sortedRecords = new TreeMap<>(records);
+            outputStream.writeInt(sortedRecords.size());
+            for (Record record : sortedRecords.values()) {
+                outputStream.writeUTF(record.path);
+                outputStream.writeLong(record.length);
+                outputStream.writeLong(record.lastModified);
+                record.hexes.write(outputStream);
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
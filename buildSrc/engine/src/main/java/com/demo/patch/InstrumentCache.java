@@ -0,0 +1,363 @@
+package com.demo.patch;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 插桩结果的持久化缓存，以插桩前字节内容的 md5 为 key，保存插桩后的字节内容及其摘要。
+ * 输入没有变化的 class 或 jar 包可以直接使用缓存，跳过 ASM 解析、栈帧计算和摘要计算。
+ * key 使用 md5 而不是更快的非加密哈希，是因为 key 冲突会直接导致使用错误的插桩结果。
+ * <p>
+ * 缓存文件都是先写临时文件再原子替换，多个变体、多个线程共用一个缓存目录是安全的；
+ * 命中时会更新文件的修改时间（至多每小时一次），超出容量上限时按修改时间淘汰最久未使用的文件（LRU）
+ */
+public class InstrumentCache {
+
+    /**
+     * 缓存格式及插桩逻辑的版本，插桩方式发生变化时需要修改，使旧的缓存失效
+     */
+    private static final String VERSION = "4";
+
+    private static final int DIGEST_LENGTH = 16;
+
+    /**
+     * 命中时更新修改时间的最小间隔。淘汰只需要粗略的使用时间，频繁修改还会使守护进程缓存中的记录失效
+     */
+    private static final long TOUCH_INTERVAL = 60 * 60 * 1000L;
+
+    private static final DaemonCache.Loader<DigestTable> HEX_LOADER = new DaemonCache.Loader<DigestTable>() {
+        @Override
+        public DigestTable load(File file) throws IOException {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return DigestTable.read(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+    };
+
+    private final File cacheDir;
+    private final long maxBytes;
+    private final byte[] fingerprint;
+    /**
+     * jar 包中 class 的摘要放在守护进程缓存中，为 null 时每次都从缓存目录读取
+     */
+    private final DaemonCache daemonCache;
+
+    /**
+     * @param cacheDir    缓存目录
+     * @param maxBytes    缓存容量上限
+     * @param fingerprint 影响插桩结果的配置，如 Application 类名，不同配置的缓存互不干扰
+     * @param algorithm   缓存中保存的插桩后摘要使用的算法
+     * @param daemonCache 守护进程缓存，没有开启时为 null
+     */
+    public InstrumentCache(File cacheDir, long maxBytes, String fingerprint, DigestAlgorithm algorithm,
+                           DaemonCache daemonCache) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        this.daemonCache = daemonCache;
+        this.fingerprint = (VERSION + ":" + algorithm + ":" + fingerprint + "\n").getBytes(StandardCharsets.UTF_8);
+        cacheDir.mkdirs();
+    }
+
+    /**
+     * 缓存中的一个 class
+     */
+    public static class CachedClass {
+        public final long high;
+        public final long low;
+        public final byte[] bytes;
+
+        CachedClass(long high, long low, byte[] bytes) {
+            this.high = high;
+            this.low = low;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 缓存中的一个 jar 包
+     */
+    public static class CachedJar {
+        /**
+         * 插桩后的 jar 包
+         */
+        public final File jar;
+        /**
+         * jar 包中插桩过的 class 及其摘要
+         */
+        public final DigestTable hexes;
+        /**
+         * 输入本身就是插桩后的 jar 包，不需要再覆盖输入文件
+         */
+        public final boolean instrumented;
+
+        CachedJar(File jar, DigestTable hexes, boolean instrumented) {
+            this.jar = jar;
+            this.hexes = hexes;
+            this.instrumented = instrumented;
+        }
+    }
+
+    public String key(byte[] bytes) {
+        return key(bytes, bytes.length);
+    }
+
+    /**
+     * 只使用 bytes 的前 length 个字节，用于池化的缓冲区
+     */
+    public String key(byte[] bytes, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint);
+        digest.update(bytes, 0, length);
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    public String key(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint);
+        byte[] buffer = new byte[64 * 1024];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * 根据插桩前的内容查找缓存，没有命中返回 null
+     */
+    public CachedClass getClass(String key) {
+        File file = resolve(key, ".class");
+        if (file == null) {
+            return null;
+        }
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            touch(file);
+            return new CachedClass(DigestAlgorithm.readLong(content, 0), DigestAlgorithm.readLong(content, 8),
+                    Arrays.copyOfRange(content, DIGEST_LENGTH, content.length));
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // 缓存文件可能正在被其它变体淘汰，当作未命中处理
+            return null;
+        }
+    }
+
+    /**
+     * 保存插桩结果，同时记录插桩后内容的 key，下次输入已经是插桩后的 class 时也能命中
+     */
+    public void putClass(String key, long high, long low, byte[] bytes) {
+        putClass(key, high, low, bytes, bytes.length);
+    }
+
+    public void putClass(String key, long high, long low, byte[] bytes, int length) {
+        try {
+            byte[] content = new byte[DIGEST_LENGTH + length];
+            writeLong(content, 0, high);
+            writeLong(content, 8, low);
+            System.arraycopy(bytes, 0, content, DIGEST_LENGTH, length);
+            writeAtomically(file(key, ".class"), content);
+            alias(key(bytes, length), key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public CachedJar getJar(String key) {
+        File jar = resolve(key, ".jar");
+        if (jar == null) {
+            return null;
+        }
+        String target = jar.getName().substring(0, jar.getName().length() - ".jar".length());
+        File hexFile = file(target, ".hex");
+        if (!hexFile.exists()) {
+            return null;
+        }
+        try {
+            // 缓存文件以内容命名，写入后不会再变化，摘要可以放在守护进程缓存中共用
+            DigestTable hexes = daemonCache == null ? HEX_LOADER.load(hexFile)
+                    : daemonCache.get("jar-hex", hexFile, HEX_LOADER);
+            touch(jar);
+            touch(hexFile);
+            return new CachedJar(jar, hexes, !target.equals(key));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 保存插桩后的 jar 包及其中 class 的摘要
+     */
+    public void putJar(String key, File instrumentedJar, DigestTable hexes) {
+        try {
+            File hexFile = file(key, ".hex");
+            File tempHex = tempFile(hexFile);
+            DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempHex)));
+            try {
+                hexes.write(outputStream);
+            } finally {
+                outputStream.close();
+            }
+            move(tempHex, hexFile);
+
+            File jar = file(key, ".jar");
+            File tempJar = tempFile(jar);
+            Files.copy(instrumentedJar.toPath(), tempJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            move(tempJar, jar);
+
+            alias(key(instrumentedJar), key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 缓存超出容量上限时，按最近使用时间淘汰
+     */
+    public synchronized void trim() {
+        List<File> files = new ArrayList<>();
+        collect(cacheDir, files);
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * 查找 key 对应的缓存文件，key 是插桩后内容时通过 .alias 文件找到原始条目
+     */
+    private File resolve(String key, String suffix) {
+        File file = file(key, suffix);
+        if (file.exists()) {
+            return file;
+        }
+        File alias = file(key, ".alias");
+        if (!alias.exists()) {
+            return null;
+        }
+        try {
+            String target = new String(Files.readAllBytes(alias.toPath()), StandardCharsets.US_ASCII);
+            File targetFile = file(target, suffix);
+            if (targetFile.exists()) {
+                touch(alias);
+                return targetFile;
+            }
+        } catch (IOException e) {
+            // 当作未命中处理
+        }
+        return null;
+    }
+
+    private void alias(String aliasKey, String key) throws IOException {
+        if (!aliasKey.equals(key)) {
+            writeAtomically(file(aliasKey, ".alias"), key.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private File file(String key, String suffix) {
+        // 取 key 的前两位作为子目录，避免单个目录下文件过多
+        return new File(new File(cacheDir, key.substring(0, 2)), key + suffix);
+    }
+
+    private File tempFile(File target) throws IOException {
+        target.getParentFile().mkdirs();
+        return File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+    }
+
+    private void writeAtomically(File target, byte[] content) throws IOException {
+        File temp = tempFile(target);
+        Files.write(temp.toPath(), content);
+        move(temp, target);
+    }
+
+    private void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeLong(byte[] bytes, int index, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void touch(File file) {
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL) {
+            file.setLastModified(now);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
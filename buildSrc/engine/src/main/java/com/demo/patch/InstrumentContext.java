@@ -0,0 +1,106 @@
+package com.demo.patch;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个插桩工作项处理的各个输入文件共用的状态
+ */
+class InstrumentContext {
+
+    final Logger logger;
+
+    /**
+     * 需要插桩的类
+     */
+    final ClassFilter classFilter;
+
+    /**
+     * 记录类本次编译的摘要
+     */
+    final DigestTable newHexes = new DigestTable(1024);
+
+    /**
+     * 判断 class 是否变化时使用的摘要算法
+     */
+    final DigestAlgorithm algorithm;
+
+    /**
+     * 插入 AntiLazyLoad 引用的方式
+     */
+    final InjectionStrategy strategy;
+
+    /**
+     * 不插桩的枚举类的内部名
+     */
+    final Set<String> skippedEnums;
+
+    /**
+     * 收集补丁 class，只计算摘要、预览补丁内容时为 null
+     */
+    final PatchGenerator patchGenerator;
+
+    /**
+     * 插桩结果缓存，没有开启时为 null
+     */
+    final InstrumentCache cache;
+
+    /**
+     * 本次处理输入文件的记录
+     */
+    final InputState newState;
+
+    /**
+     * 是否校验插桩结果
+     */
+    final boolean verify;
+
+    /**
+     * 记录各阶段的耗时和处理数量
+     */
+    final PatchReport report;
+
+    /**
+     * 本次编译的类依赖索引，没有开启 includeDependents 时为 null
+     */
+    final DependencyIndex dependencies;
+
+    /**
+     * 混淆名索引，不为 null 时在原始名字下计算摘要
+     */
+    final MappingStore mapping;
+
+    /**
+     * 读取 class 内容使用的缓冲区池，受内存预算限制
+     */
+    final BufferPool bufferPool;
+
+    /**
+     * 类的路径到它所在的输入文件（class 文件或 jar 包），用于读取受影响的类的内容
+     */
+    final Map<String, File> sources = new ConcurrentHashMap<>();
+
+    InstrumentContext(Logger logger, ClassFilter classFilter, DigestAlgorithm algorithm,
+                      InjectionStrategy strategy, Set<String> skippedEnums, PatchGenerator patchGenerator,
+                      InstrumentCache cache, InputState newState, boolean verify, PatchReport report,
+                      DependencyIndex dependencies, MappingStore mapping,
+                      BufferPool bufferPool) {
+        this.logger = logger;
+        this.classFilter = classFilter;
+        this.algorithm = algorithm;
+        this.strategy = strategy;
+        this.skippedEnums = skippedEnums;
+        this.patchGenerator = patchGenerator;
+        this.cache = cache;
+        this.newState = newState;
+        this.verify = verify;
+        this.report = report;
+        this.dependencies = dependencies;
+        this.mapping = mapping;
+        this.bufferPool = bufferPool;
+    }
+}
@@ -0,0 +1,565 @@
+package com.demo.patch;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.jar.JarFile;
+
+/**
+ * 对输入的 class 文件和 jar 包插桩，计算摘要并与上一次编译比较。不依赖 Project，
+ * 在插桩工作项中执行，每个工作项使用各自的 {@link InstrumentContext}
+ */
+final class InstrumentProcessor {
+
+    private InstrumentProcessor() {
+    }
+
+    /**
+     * 插桩，并做摘要比较，不一致的放入补丁包。开启增量处理时，没有变化的输入文件
+     * 由调用方直接沿用上次的记录，不会交给这里处理
+     *
+     * @param root class 文件所在的 class 目录，用于计算类路径，不知道时为 null，见 {@link #classPath(File, File)}
+     */
+    static void processFile(InstrumentContext context, File file, File root) {
+        String filePath = file.getAbsolutePath();
+        if (!filePath.endsWith(".class") && !filePath.endsWith(".jar")) {
+            return;
+        }
+
+        context.report.inputProcessed(false);
+
+        // 本输入文件中插桩过的 class 及其摘要
+        DigestTable hexes = new DigestTable();
+        if (filePath.endsWith(".class")) {
+            processClass(context, file, root, hexes);
+        } else {
+            processJar(context, file, hexes);
+        }
+        context.newHexes.putAll(hexes);
+        context.newState.put(InputState.Record.of(file, hexes));
+        recordSources(context, file, hexes);
+    }
+
+    /**
+     * 只计算输入文件中插桩后的 class 的摘要，插桩在内存中进行，不改写输入文件，
+     * 用于预览补丁的内容。class 文件的插桩结果仍会写入插桩缓存
+     *
+     * @param root  class 文件所在的 class 目录，不知道时为 null
+     * @param hexes 保存类名及其摘要
+     */
+    static void digestFile(InstrumentContext context, File file, File root, DigestTable hexes) {
+        String filePath = file.getAbsolutePath();
+        try {
+            if (filePath.endsWith(".class")) {
+                digestClass(context, file, root, hexes);
+            } else if (filePath.endsWith(".jar")) {
+                digestJar(context, file, hexes);
+            }
+        } catch (PatchException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PatchException("计算摘要失败：" + filePath, e);
+        }
+    }
+
+    private static void digestClass(InstrumentContext context, File file, File root, DigestTable hexes)
+            throws IOException {
+        String classPath = classPath(file, root);
+        if (!context.classFilter.accept(classPath)) {
+            return;
+        }
+        InstrumentCache cache = context.cache;
+        BufferPool.Buffer input = context.bufferPool.read(file);
+        try {
+            long[] digest = new long[2];
+            String key = cache == null ? null : cache.key(input.array, input.length);
+            InstrumentCache.CachedClass cachedClass = key == null ? null : cache.getClass(key);
+            if (cachedClass != null) {
+                digest[0] = cachedClass.high;
+                digest[1] = cachedClass.low;
+            } else {
+                byte[] bytes = instrument(context, classPath, input, null);
+                byte[] output = bytes != null ? bytes : input.array;
+                int length = bytes != null ? bytes.length : input.length;
+                digest(context, output, length, digest);
+                if (cache != null) {
+                    cache.putClass(key, digest[0], digest[1], output, length);
+                }
+            }
+            hexes.put(classPath, digest[0], digest[1]);
+        } finally {
+            context.bufferPool.release(input);
+        }
+    }
+
+    /**
+     * jar 包只使用整包的插桩缓存，没有命中时逐个 class 在内存中插桩，不把单个 class 写入缓存
+     */
+    private static void digestJar(InstrumentContext context, File file, DigestTable hexes) throws IOException {
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            if (!hasInstrumentableClass(zipFile, context.classFilter)) {
+                return;
+            }
+            InstrumentCache cache = context.cache;
+            InstrumentCache.CachedJar cachedJar = cache == null ? null : cache.getJar(cache.key(file));
+            if (cachedJar != null) {
+                hexes.putAll(cachedJar.hexes);
+                return;
+            }
+            long[] digest = new long[2];
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry zipEntry = entries.nextElement();
+                String className = zipEntry.getName();
+                if (!isInstrumentable(className, context.classFilter)) {
+                    continue;
+                }
+                InputStream inputStream = zipFile.getInputStream(zipEntry);
+                BufferPool.Buffer input;
+                try {
+                    input = context.bufferPool.read(inputStream, zipEntry.getSize());
+                } finally {
+                    inputStream.close();
+                }
+                try {
+                    byte[] bytes = instrument(context, className, input, null);
+                    digest(context, bytes != null ? bytes : input.array,
+                            bytes != null ? bytes.length : input.length, digest);
+                    hexes.put(className, digest[0], digest[1]);
+                } finally {
+                    context.bufferPool.release(input);
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * class 文件的类路径，即包名之后的部分。知道 class 目录时取相对于它的路径，以 / 分隔，
+     * 比如 bin/com/demo/plugin/Test.class 的类路径是 com/demo/plugin/Test.class。
+     * <p>
+     * Gradle 中 dex 任务的输入只有文件，不知道 class 目录，截取绝对路径中 classes 之后的部分，比如文件路径为
+     * app\build\intermediates\javac\debug\compileDebugJavaWithJavac\classes\com\demo\plugin\Test.class，
+     * 那么截取后的 classPath 就是 com\demo\plugin\Test.class
+     *
+     * @param root class 文件所在的 class 目录，不知道时为 null
+     */
+    static String classPath(File file, File root) {
+        if (root != null) {
+            Path relative = root.toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath());
+            return relative.toString().replace(File.separatorChar, '/');
+        }
+        String[] parts = file.getAbsolutePath().split("classes");
+        if (parts.length < 2 || parts[1].length() < 2) {
+            throw new PatchException("无法确定 class 文件的类路径，路径中没有 classes 目录：" + file.getAbsolutePath());
+        }
+        return parts[1].substring(1);
+    }
+
+    /**
+     * 记录类所在的输入文件，只有开启了 includeDependents 才需要
+     */
+    private static void recordSources(InstrumentContext context, File file, DigestTable hexes) {
+        if (context.dependencies == null) {
+            return;
+        }
+        for (int id = 0; id < hexes.size(); id++) {
+            context.sources.put(hexes.keyAt(id), file);
+        }
+    }
+
+    /**
+     * 需要收集依赖时返回新的 Builder，否则返回 null
+     */
+    private static ClassDependencies.Builder newDependencies(InstrumentContext context) {
+        return context.dependencies == null ? null : new ClassDependencies.Builder();
+    }
+
+    private static void putDependencies(InstrumentContext context, ClassDependencies.Builder builder,
+                                        String className, long[] digest) {
+        if (builder != null) {
+            context.dependencies.put(builder.build(className, digest[0], digest[1]));
+        }
+    }
+
+    /**
+     * 没有经过插桩的类（命中插桩缓存）只在内容有变化时才需要重新收集依赖，
+     * 没有变化的类会沿用上一次索引中的记录
+     */
+    private static void putChangedDependencies(InstrumentContext context, String className, byte[] bytes,
+                                               long high, long low) {
+        if (context.dependencies != null && context.patchGenerator.isChanged(className, high, low)) {
+            context.dependencies.put(ClassDependencies.of(className, bytes, high, low));
+        }
+    }
+
+    /**
+     * 对 class 文件执行插桩，并记录插装后的 md5，与上一次编译的备份 md5
+     * 做比较，如果比较结果不相同，说明文件发生了变化，需要打包进补丁包中
+     *
+     * @param context  本次插桩的状态
+     * @param file     待处理的 class 文件
+     * @param root     class 文件所在的 class 目录，不知道时为 null
+     * @param newHexes 记录类名与对应摘要
+     */
+    static void processClass(InstrumentContext context, File file, File root, DigestTable newHexes) {
+        String filePath = file.getAbsolutePath();
+        String classPath = classPath(file, root);
+
+        if (!context.classFilter.accept(classPath)) {
+            context.report.classSkipped();
+            return;
+        }
+
+        InstrumentCache cache = context.cache;
+        PatchReport report = context.report;
+        BufferPool.Buffer input = null;
+        try {
+            context.logger.info("开始处理 class 文件：" + filePath);
+            long begin = report.begin();
+            input = context.bufferPool.read(file);
+            report.end(PatchReport.Phase.SCAN, begin, input.length, 0);
+
+            // 插桩后的内容，为 null 时说明不需要改写，直接使用缓冲区中的原始内容
+            byte[] bytes;
+            long[] digest = new long[2];
+            String key = cache == null ? null : cache.key(input.array, input.length);
+            InstrumentCache.CachedClass cachedClass = key == null ? null : cache.getClass(key);
+            if (cachedClass != null) {
+                // 命中缓存，直接使用上次的插桩结果
+                bytes = input.contentEquals(cachedClass.bytes) ? null : cachedClass.bytes;
+                digest[0] = cachedClass.high;
+                digest[1] = cachedClass.low;
+                report.classesFromCache(1);
+                putChangedDependencies(context, classPath, cachedClass.bytes, digest[0], digest[1]);
+            } else {
+                // 插桩，同时收集类的依赖
+                ClassDependencies.Builder dependencies = newDependencies(context);
+                bytes = instrument(context, classPath, input, dependencies);
+                byte[] output = bytes != null ? bytes : input.array;
+                int length = bytes != null ? bytes.length : input.length;
+                // 计算这个 class 文件的摘要
+                digest(context, output, length, digest);
+                putDependencies(context, dependencies, classPath, digest);
+                if (cache != null) {
+                    cache.putClass(key, digest[0], digest[1], output, length);
+                }
+            }
+
+            // 输出插桩后的 class 文件，输入已经是插桩后的内容时不需要再写
+            if (bytes != null) {
+                begin = report.begin();
+                Files.write(file.toPath(), bytes);
+                report.end(PatchReport.Phase.WRITE_JARS, begin, 0, bytes.length);
+            }
+
+            // 将本次的摘要存入缓存，并与上一次的摘要进行对比
+            newHexes.put(classPath, digest[0], digest[1]);
+            if (bytes != null) {
+                context.patchGenerator.checkClass(classPath, digest[0], digest[1], bytes);
+            } else {
+                context.patchGenerator.checkClass(classPath, digest[0], digest[1], input.array, input.length);
+            }
+        } catch (PatchException e) {
+            throw e;
+        } catch (Exception e) {
+            // 跳过这个 class 会让它从本次的摘要中消失，下一次编译会把它当作新增的类，只能中断
+            throw new PatchException("插桩 class 文件失败：" + filePath, e);
+        } finally {
+            if (input != null) {
+                context.bufferPool.release(input);
+            }
+        }
+    }
+
+    /**
+     * 对 jar 包中的 class 文件执行插桩，并记录插装后的 md5，与上一次编译的备份 md5
+     * 做比较，如果比较结果不相同，说明文件发生了变化，需要打包进补丁包中
+     *
+     * @param context 本次插桩的状态
+     * @param file    条件限定，这个 file 是个 jar 包
+     * @param hexes   保存类名及其摘要
+     */
+    static void processJar(InstrumentContext context, File file, DigestTable hexes) {
+        PatchGenerator patchGenerator = context.patchGenerator;
+        InstrumentCache cache = context.cache;
+        PatchReport report = context.report;
+        ClassFilter classFilter = context.classFilter;
+        File backupJar = new File(file.getParent(), file.getName() + ".bak");
+        ZipFile zipFile = null;
+        ZipArchiveOutputStream zipOutputStream = null;
+        try {
+            // 先只看中央目录里的文件名，没有需要插桩的 class 时不用计算缓存 key，也不用改写 jar 包
+            long begin = report.begin();
+            zipFile = new ZipFile(file);
+            report.end(PatchReport.Phase.SCAN, begin);
+            if (!hasInstrumentableClass(zipFile, classFilter)) {
+                report.classesSkipped(countClasses(zipFile));
+                return;
+            }
+
+            String key = cache == null ? null : cache.key(file);
+            InstrumentCache.CachedJar cachedJar = key == null ? null : cache.getJar(key);
+            if (cachedJar != null) {
+                zipFile.close();
+                zipFile = null;
+                if (processCachedJar(context, file, cachedJar, hexes)) {
+                    context.logger.info("jar 包命中插桩缓存：" + file.getAbsolutePath());
+                    return;
+                }
+                // 其它变体淘汰缓存时可能刚好删掉了这个条目，当作未命中重新插桩
+                context.logger.info("jar 包的插桩缓存已被淘汰：" + file.getAbsolutePath());
+                zipFile = new ZipFile(file);
+            }
+
+            zipOutputStream = new ZipArchiveOutputStream(backupJar);
+            // 本 jar 包中插桩过的 class 及其摘要，用于写入缓存
+            DigestTable jarHexes = new DigestTable();
+            long[] digest = new long[2];
+            // 是否有 class 的内容被插桩改变了，都没有改变说明 jar 包已经插过桩，不需要改写
+            boolean modified = false;
+
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry zipEntry = entries.nextElement();
+                String className = zipEntry.getName();
+
+                if (!isInstrumentable(className, classFilter)) {
+                    if (className.endsWith(".class")) {
+                        report.classSkipped();
+                    }
+                    // 其它文件直接拷贝压缩后的原始数据，不需要解压再压缩
+                    begin = report.begin();
+                    InputStream rawInputStream = zipFile.getRawInputStream(zipEntry);
+                    try {
+                        zipOutputStream.addRawArchiveEntry(zipEntry, rawInputStream);
+                    } finally {
+                        rawInputStream.close();
+                    }
+                    long rawSize = Math.max(0, zipEntry.getCompressedSize());
+                    report.end(PatchReport.Phase.WRITE_JARS, begin, rawSize, rawSize);
+                    continue;
+                }
+
+                context.logger.info("开始处理 jar 包中的 class 文件：" + className);
+                begin = report.begin();
+                // 按条目声明的大小借用缓冲区读取，不为每个 class 分配新的数组
+                InputStream inputStream = zipFile.getInputStream(zipEntry);
+                BufferPool.Buffer input;
+                try {
+                    input = context.bufferPool.read(inputStream, zipEntry.getSize());
+                } finally {
+                    inputStream.close();
+                }
+                try {
+                    report.end(PatchReport.Phase.SCAN, begin, input.length, 0);
+                    ClassDependencies.Builder dependencies = newDependencies(context);
+                    byte[] bytes = instrument(context, className, input, dependencies);
+                    modified |= bytes != null;
+                    byte[] output = bytes != null ? bytes : input.array;
+                    int length = bytes != null ? bytes.length : input.length;
+                    digest(context, output, length, digest);
+                    putDependencies(context, dependencies, className, digest);
+                    jarHexes.put(className, digest[0], digest[1]);
+                    // 对比备份的摘要，不一致则放入补丁
+                    patchGenerator.checkClass(className, digest[0], digest[1], output, length);
+
+                    // 只有插桩后的 class 需要重新压缩
+                    begin = report.begin();
+                    ZipArchiveEntry newEntry = new ZipArchiveEntry(className);
+                    newEntry.setMethod(ZipArchiveEntry.DEFLATED);
+                    newEntry.setTime(zipEntry.getTime());
+                    zipOutputStream.putArchiveEntry(newEntry);
+                    zipOutputStream.write(output, 0, length);
+                    zipOutputStream.closeArchiveEntry();
+                    report.end(PatchReport.Phase.WRITE_JARS, begin, 0, newEntry.getCompressedSize());
+                } finally {
+                    context.bufferPool.release(input);
+                }
+            }
+
+            begin = report.begin();
+            zipOutputStream.close();
+            zipOutputStream = null;
+            zipFile.close();
+            zipFile = null;
+            if (modified) {
+                Files.move(backupJar.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            report.end(PatchReport.Phase.WRITE_JARS, begin);
+
+            hexes.putAll(jarHexes);
+            if (cache != null) {
+                cache.putJar(key, file, jarHexes);
+            }
+        } catch (PatchException e) {
+            throw e;
+        } catch (Exception e) {
+            // 处理到一半的 jar 包没有完整插桩，其中的类也没有记录摘要，不能当作成功继续
+            throw new PatchException("插桩 jar 包失败：" + file.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(zipOutputStream);
+            ZipFile.closeQuietly(zipFile);
+            backupJar.delete();
+        }
+    }
+
+    /**
+     * 对 class 插桩，开启了校验时用 ASM 的 Analyzer 检查插桩结果，校验失败会中断构建
+     *
+     * @param input        读入缓冲区的 class 内容
+     * @param dependencies 不为 null 时在插桩的同时收集类的依赖
+     * @return 插桩后的内容，不需要改写时返回 null
+     */
+    private static byte[] instrument(InstrumentContext context, String className, BufferPool.Buffer input,
+                                     ClassDependencies.Builder dependencies) {
+        long begin = context.report.begin();
+        byte[] bytes = ClassUtils.instrument(input.array, input.length, context.strategy, context.skippedEnums,
+                dependencies);
+        if (context.verify && bytes != null) {
+            try {
+                ClassUtils.verify(bytes);
+            } catch (AnalyzerException e) {
+                throw new PatchException("插桩后的 class 校验失败：" + className, e);
+            }
+        }
+        context.report.end(PatchReport.Phase.INSTRUMENT, begin, input.length,
+                bytes != null ? bytes.length : input.length);
+        context.report.classInstrumented();
+        return bytes;
+    }
+
+    /**
+     * 计算插桩后的 class 的摘要。开启混淆时先把混淆名换回原始名字，只是混淆名发生变化的类摘要不变
+     */
+    private static void digest(InstrumentContext context, byte[] bytes, int length, long[] digest) {
+        long begin = context.report.begin();
+        if (context.mapping == null) {
+            context.algorithm.digest(bytes, 0, length, digest);
+        } else {
+            context.algorithm.digest(context.mapping.remap(bytes, length), digest);
+        }
+        context.report.end(PatchReport.Phase.HASH, begin, length, 0);
+    }
+
+    /**
+     * 判断 jar 包中的文件是否需要插桩
+     *
+     * @param className jar 包中的文件路径
+     */
+    private static boolean isInstrumentable(String className, ClassFilter classFilter) {
+        return className.endsWith(".class") && classFilter.accept(className);
+    }
+
+    /**
+     * 只看中央目录中的文件名判断 jar 包中是否有需要插桩的类。条目通常按目录排列，
+     * 同一个目录只判断一次是否整体被排除，被排除的目录中的条目不再逐个匹配
+     */
+    private static boolean hasInstrumentableClass(ZipFile zipFile, ClassFilter classFilter) {
+        String lastName = null;
+        int lastDirectoryLength = -1;
+        boolean lastRejected = false;
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (!name.endsWith(".class")) {
+                continue;
+            }
+            int directoryLength = name.lastIndexOf('/') + 1;
+            if (lastName == null || directoryLength != lastDirectoryLength
+                    || !name.regionMatches(0, lastName, 0, directoryLength)) {
+                lastName = name;
+                lastDirectoryLength = directoryLength;
+                lastRejected = classFilter.rejectsAll(name, directoryLength);
+            }
+            if (!lastRejected && classFilter.accept(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countClasses(ZipFile zipFile) {
+        int count = 0;
+        Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+        while (entries.hasMoreElements()) {
+            if (entries.nextElement().getName().endsWith(".class")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 使用缓存中插桩后的 jar 包替换输入文件，只有需要放入补丁包的 class 才会读取内容
+     *
+     * @return 缓存中的 jar 包在查找之后被淘汰时返回 false，输入文件保持不变
+     */
+    static boolean processCachedJar(InstrumentContext context, File file, InstrumentCache.CachedJar cachedJar,
+                                     DigestTable hexes) throws IOException {
+        PatchGenerator patchGenerator = context.patchGenerator;
+        PatchReport report = context.report;
+        if (!cachedJar.instrumented) {
+            long begin = report.begin();
+            // 先拷贝到临时文件，拷贝到一半时缓存文件被删除也不会破坏输入文件
+            File tempJar = new File(file.getParent(), file.getName() + ".cached");
+            try {
+                Files.copy(cachedJar.jar.toPath(), tempJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException | FileNotFoundException e) {
+                tempJar.delete();
+                return false;
+            }
+            Files.move(tempJar.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            report.end(PatchReport.Phase.WRITE_JARS, begin, file.length(), file.length());
+        }
+        hexes.putAll(cachedJar.hexes);
+        report.classesFromCache(cachedJar.hexes.size());
+
+        JarFile jarFile = null;
+        try {
+            DigestTable cachedHexes = cachedJar.hexes;
+            for (int id = 0; id < cachedHexes.size(); id++) {
+                String className = cachedHexes.keyAt(id);
+                long high = cachedHexes.high(id);
+                long low = cachedHexes.low(id);
+                if (!patchGenerator.isChanged(className, high, low)) {
+                    continue;
+                }
+                if (jarFile == null) {
+                    jarFile = new JarFile(file);
+                }
+                long begin = report.begin();
+                InputStream inputStream = jarFile.getInputStream(jarFile.getJarEntry(className));
+                byte[] bytes;
+                try {
+                    bytes = IOUtils.toByteArray(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+                report.end(PatchReport.Phase.SCAN, begin, bytes.length, 0);
+                patchGenerator.checkClass(className, high, low, bytes);
+                putChangedDependencies(context, className, bytes, high, low);
+            }
+        } finally {
+            if (jarFile != null) {
+                jarFile.close();
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package com.demo.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一批输入文件的插桩结果，由 {@link PatchEngine#generate} 按顺序合并。Gradle 插件中由工作项写入 work 目录，
+ * 所有工作项完成后由 patch 任务读取。
+ * <p>
+ * 结果文件中只有各输入文件的摘要和需要放入补丁的 class，完全由输入文件的内容和插桩配置决定，
+ * patch 任务把它声明为输入；输入文件的绝对路径、修改时间以及报告中的计数（包括耗时）写在同名的 .state 文件中，
+ * 它每次都不同，不声明为输入，否则不同机器上的相同构建无法命中构建缓存。类依赖索引写在同名的 .deps 文件中
+ */
+public class InstrumentResult {
+
+    static final String EXTENSION = ".bin";
+    static final String STATE_EXTENSION = ".state";
+    static final String DEPENDENCIES_EXTENSION = ".deps";
+
+    private static final int MAGIC = 0x50465247; // "PFRG"
+    private static final int VERSION = 2;
+
+    final List<InputState.Record> records = new ArrayList<>();
+    final Map<String, byte[]> patchClasses = new TreeMap<>();
+    /**
+     * 这批输入文件中的类依赖，没有开启 includeDependents 时为 null。不写入结果文件
+     */
+    DependencyIndex dependencies;
+
+    /**
+     * 写入结果文件和 .state 文件，报告中的计数写在 .state 文件中
+     */
+    void write(File resultFile, PatchReport report) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(resultFile), 64 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(records.size());
+            for (InputState.Record record : records) {
+                record.hexes.write(outputStream);
+            }
+            outputStream.writeInt(patchClasses.size());
+            for (Map.Entry<String, byte[]> entry : patchClasses.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeInt(entry.getValue().length);
+                outputStream.write(entry.getValue());
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(companionFile(resultFile, STATE_EXTENSION))));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(records.size());
+            for (InputState.Record record : records) {
+                outputStream.writeUTF(record.path);
+                outputStream.writeLong(record.length);
+                outputStream.writeLong(record.lastModified);
+            }
+            report.writeCounters(outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * 读取结果文件和 .state 文件，报告中的计数合并到 report 中
+     */
+    static InstrumentResult read(File resultFile, PatchReport report) throws IOException {
+        File stateFile = companionFile(resultFile, STATE_EXTENSION);
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(resultFile), 64 * 1024));
+        DataInputStream stateStream = null;
+        try {
+            stateStream = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                throw new IOException("插桩结果文件格式错误：" + resultFile);
+            }
+            if (stateStream.readInt() != MAGIC || stateStream.readInt() != VERSION) {
+                throw new IOException("插桩结果文件格式错误：" + stateFile);
+            }
+            InstrumentResult result = new InstrumentResult();
+            int count = inputStream.readInt();
+            if (stateStream.readInt() != count) {
+                throw new IOException("插桩结果与 " + stateFile.getName() + " 不是同一次写入的：" + resultFile);
+            }
+            for (int i = 0; i < count; i++) {
+                String path = stateStream.readUTF();
+                long length = stateStream.readLong();
+                long lastModified = stateStream.readLong();
+                result.records.add(new InputState.Record(path, length, lastModified, DigestTable.read(inputStream)));
+            }
+            count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String className = inputStream.readUTF();
+                byte[] bytes = new byte[inputStream.readInt()];
+                inputStream.readFully(bytes);
+                result.patchClasses.put(className, bytes);
+            }
+            report.mergeCounters(stateStream);
+            return result;
+        } finally {
+            inputStream.close();
+            if (stateStream != null) {
+                stateStream.close();
+            }
+        }
+    }
+
+    /**
+     * 结果文件对应的 .state、.deps 文件
+     */
+    static File companionFile(File resultFile, String extension) {
+        String name = resultFile.getName();
+        return new File(resultFile.getParentFile(),
+                name.substring(0, name.length() - EXTENSION.length()) + extension);
+    }
+}
@@ -0,0 +1,154 @@
+package com.demo.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * 一个变体插桩时的配置，作为 Worker API 工作项的参数传递，所以只包含可以序列化的值
+ */
+public class InstrumentSettings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 需要插桩的类
+     */
+    final ClassFilter classFilter;
+    final String digest;
+    final InjectionStrategy strategy;
+    /**
+     * 不插桩的枚举类的内部名
+     */
+    final HashSet<String> skippedEnums;
+    final boolean verify;
+    final boolean includeDependents;
+    /**
+     * 上一次编译的摘要备份，工作项只读取不修改
+     */
+    final File hexFile;
+    /**
+     * 插桩缓存目录，没有开启缓存时为 null
+     */
+    final File cacheDir;
+    final long cacheMaxBytes;
+    /**
+     * 混淆名索引，没有开启混淆时为 null。索引在混淆任务结束后才会更新，所以只在执行时读取
+     */
+    final File mappingFile;
+    /**
+     * 发布历史的目录
+     */
+    final File historyDir;
+    /**
+     * 需要生成补丁的发布版本，为空时只与上一次编译比较
+     */
+    final ArrayList<String> patchBaselines;
+    /**
+     * 各发布版本的摘要和补丁所在的目录，每个版本一个子目录
+     */
+    final File releasesDir;
+    /**
+     * 同一个 Gradle 进程中所有插桩工作项读取 class 时可以占用的缓冲区总大小
+     */
+    final long memoryBudgetBytes;
+    /**
+     * 守护进程缓存的容量上限，为 0 时不开启
+     */
+    final long daemonCacheBytes;
+
+    public InstrumentSettings(ClassFilter classFilter, String digest, InjectionStrategy strategy,
+                              HashSet<String> skippedEnums, boolean verify, boolean includeDependents,
+                              File hexFile, File cacheDir, long cacheMaxBytes, File mappingFile,
+                              File historyDir, ArrayList<String> patchBaselines, File releasesDir,
+                              long memoryBudgetBytes, long daemonCacheBytes) {
+        this.classFilter = classFilter;
+        this.digest = digest;
+        this.strategy = strategy;
+        this.skippedEnums = skippedEnums;
+        this.verify = verify;
+        this.includeDependents = includeDependents;
+        this.hexFile = hexFile;
+        this.cacheDir = cacheDir;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.mappingFile = mappingFile;
+        this.historyDir = historyDir;
+        this.patchBaselines = patchBaselines;
+        this.releasesDir = releasesDir;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.daemonCacheBytes = daemonCacheBytes;
+    }
+
+    DigestAlgorithm algorithm() {
+        return DigestAlgorithm.of(digest);
+    }
+
+    /**
+     * 输入文件记录的配置指纹，配置变化后上一次的记录全部失效
+     */
+    String stateFingerprint() {
+        return instrumentFingerprint() + ":" + algorithm();
+    }
+
+    /**
+     * 影响插桩结果的配置。开启混淆时摘要在原始名字下计算，mapping 变化后缓存的摘要也要失效
+     */
+    String instrumentFingerprint() {
+        return classFilter.fingerprint() + ":" + strategy + ":" + new TreeSet<>(skippedEnums) + ":"
+                + MappingStore.readFingerprint(mappingFile);
+    }
+
+    BaselineHistory history() {
+        return new BaselineHistory(historyDir);
+    }
+
+    File releaseDir(String tag) {
+        return new File(releasesDir, tag);
+    }
+
+    /**
+     * 插桩任务从发布历史中取出的版本摘要
+     */
+    File releaseHexFile(String tag) {
+        return new File(releaseDir(tag), HexIndex.FILE_NAME);
+    }
+
+    /**
+     * 插桩时比较的所有基准：上一次编译的备份，以及各个需要生成补丁的发布版本。
+     * 与任何一个基准不同的类都会被收集，由补丁任务再按基准分开
+     */
+    List<File> baselineHexFiles() {
+        List<File> files = new ArrayList<>();
+        files.add(hexFile);
+        for (String tag : patchBaselines) {
+            files.add(releaseHexFile(tag));
+        }
+        return files;
+    }
+
+    /**
+     * 同一个 Gradle 守护进程中共用的缓存，没有开启时返回 null
+     */
+    DaemonCache daemonCache() {
+        return DaemonCache.shared(daemonCacheBytes);
+    }
+
+    /**
+     * 加载混淆名索引，没有开启混淆或还没有生成索引时返回 null
+     */
+    MappingStore loadMapping() throws IOException {
+        return MappingStore.load(mappingFile, daemonCache());
+    }
+
+    /**
+     * 创建插桩缓存，没有开启缓存时返回 null。多个工作项各自创建实例，缓存文件都是原子写入的，可以共用目录
+     */
+    InstrumentCache createCache() {
+        return cacheDir == null ? null : new InstrumentCache(cacheDir, cacheMaxBytes, instrumentFingerprint(),
+                algorithm(), daemonCache());
+    }
+}
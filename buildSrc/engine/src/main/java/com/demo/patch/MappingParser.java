@@ -0,0 +1,189 @@
+package com.demo.patch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式解析 ProGuard/R8 的 mapping.txt，逐个类回调，不会把整个文件读入内存。文件格式为：
+ * <pre>
+ * com.demo.plugin.Test -> a.a:
+ *     int count -> a
+ *     1:5:void show(java.lang.String,int) -> a
+ * </pre>
+ * 每个类的段落（类名行和它的成员行）会计算一个摘要，段落没有变化时 {@link MappingStore}
+ * 直接沿用上一次的记录，不再解析成员行
+ */
+final class MappingParser {
+
+    interface Listener {
+
+        /**
+         * 读到一个完整的类段落
+         *
+         * @param original    原始的全类名
+         * @param obfuscated  混淆后的全类名
+         * @param high        段落摘要的高 64 位
+         * @param low         段落摘要的低 64 位
+         * @param memberLines 成员行，已经去掉首尾空白，监听者不能持有这个列表
+         */
+        void visitClass(String original, String obfuscated, long high, long low, List<String> memberLines);
+    }
+
+    private MappingParser() {
+    }
+
+    static void parse(File mappingFile, Listener listener) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mappingFile),
+                StandardCharsets.UTF_8), 256 * 1024);
+        try {
+            String original = null;
+            String obfuscated = null;
+            List<String> memberLines = new ArrayList<>();
+            // 当前段落的原始文本，用于计算段落摘要
+            StringBuilder block = new StringBuilder();
+            long[] digest = new long[2];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                char first = line.charAt(0);
+                if (first == '#') {
+                    // R8 写入的注释和元数据
+                    continue;
+                }
+                if (first == ' ' || first == '\t') {
+                    if (original != null) {
+                        String memberLine = line.trim();
+                        memberLines.add(memberLine);
+                        block.append(memberLine).append('\n');
+                    }
+                    continue;
+                }
+
+                if (original != null) {
+                    visit(listener, original, obfuscated, memberLines, block, digest);
+                }
+                original = null;
+                int arrow = line.indexOf(" -> ");
+                if (arrow < 0 || !line.endsWith(":")) {
+                    continue;
+                }
+                original = line.substring(0, arrow);
+                obfuscated = line.substring(arrow + 4, line.length() - 1);
+                block.append(line).append('\n');
+            }
+            if (original != null) {
+                visit(listener, original, obfuscated, memberLines, block, digest);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void visit(Listener listener, String original, String obfuscated, List<String> memberLines,
+                              StringBuilder block, long[] digest) {
+        DigestAlgorithm.MURMUR3.digest(block.toString().getBytes(StandardCharsets.UTF_8), digest);
+        listener.visitClass(original, obfuscated, digest[0], digest[1], memberLines);
+        memberLines.clear();
+        block.setLength(0);
+    }
+
+    /**
+     * 解析一行成员映射，如 {@code 1:5:void show(java.lang.String,int):12:16 -> a}。
+     * R8 记录内联调用时方法名带有所在类的全类名，这类行不是本类声明的成员，返回 false
+     *
+     * @param out 依次填入混淆后的名字、原始名字和用原始类名表示的描述符
+     */
+    static boolean parseMember(String memberLine, String[] out) {
+        int arrow = memberLine.indexOf(" -> ");
+        if (arrow < 0) {
+            return false;
+        }
+        String obfuscatedName = memberLine.substring(arrow + 4);
+        // 去掉开头的行号范围
+        int start = 0;
+        for (int i = 0; i < 2 && start < arrow && Character.isDigit(memberLine.charAt(start)); i++) {
+            int colon = memberLine.indexOf(':', start);
+            if (colon < 0 || colon > arrow) {
+                return false;
+            }
+            start = colon + 1;
+        }
+        int space = memberLine.indexOf(' ', start);
+        if (space < 0 || space > arrow) {
+            return false;
+        }
+        String type = memberLine.substring(start, space);
+        int paren = memberLine.indexOf('(', space);
+        String name;
+        String desc;
+        if (paren >= 0 && paren < arrow) {
+            int closeParen = memberLine.indexOf(')', paren);
+            if (closeParen < 0 || closeParen > arrow) {
+                return false;
+            }
+            name = memberLine.substring(space + 1, paren);
+            StringBuilder builder = new StringBuilder().append('(');
+            int argStart = paren + 1;
+            while (argStart < closeParen) {
+                int comma = memberLine.indexOf(',', argStart);
+                int argEnd = comma < 0 || comma > closeParen ? closeParen : comma;
+                appendDescriptor(builder, memberLine.substring(argStart, argEnd));
+                argStart = argEnd + 1;
+            }
+            appendDescriptor(builder.append(')'), type);
+            desc = builder.toString();
+        } else {
+            name = memberLine.substring(space + 1, arrow);
+            desc = appendDescriptor(new StringBuilder(), type).toString();
+        }
+        if (name.indexOf('.') >= 0) {
+            return false;
+        }
+        out[0] = obfuscatedName;
+        out[1] = name;
+        out[2] = desc;
+        return true;
+    }
+
+    /**
+     * 把 Java 源码中的类型名转换成描述符，如 java.lang.String[] 转换成 [Ljava/lang/String;
+     */
+    private static StringBuilder appendDescriptor(StringBuilder builder, String type) {
+        int end = type.length();
+        while (end >= 2 && type.charAt(end - 1) == ']' && type.charAt(end - 2) == '[') {
+            builder.append('[');
+            end -= 2;
+        }
+        String element = type.substring(0, end);
+        switch (element) {
+            case "void":
+                return builder.append('V');
+            case "boolean":
+                return builder.append('Z');
+            case "byte":
+                return builder.append('B');
+            case "char":
+                return builder.append('C');
+            case "short":
+                return builder.append('S');
+            case "int":
+                return builder.append('I');
+            case "long":
+                return builder.append('J');
+            case "float":
+                return builder.append('F');
+            case "double":
+                return builder.append('D');
+            default:
+                return builder.append('L').append(element.replace('.', '/')).append(';');
+        }
+    }
+}
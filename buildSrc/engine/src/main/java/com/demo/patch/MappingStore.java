@@ -0,0 +1,481 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 由 mapping.txt 生成的混淆名索引，保存为 mapping.idx。所有名字放在一张去重的字符串表中，
+ * 类按混淆后的内部名排列，每个类的成员连续存放，查找时二分查找类、顺序比较成员，
+ * 比 mapping.txt 小得多，也不需要为每个名字创建 Map 的节点。文件格式为：
+ * <pre>
+ * 文件头  magic(int) version(int) sourceHigh(long) sourceLow(long)
+ * 字符串表 count(int) 之后每项 writeUTF
+ * 类      count(int) 之后每项 obfuscated(int) original(int) high(long) low(long) memberCount(int)
+ *         以及 memberCount 个成员 obfuscated(int) original(int) desc(int)
+ * </pre>
+ * 类名为内部名，成员描述符使用原始类名。high 和 low 是类在 mapping.txt 中段落的摘要，
+ * 更新索引时段落没有变化的类直接复制上一次的记录。
+ * <p>
+ * 判断 class 是否变化前，先用 {@link #remap(byte[])} 把混淆后的名字换回原始名字再计算摘要，
+ * 只是混淆名变了而内容没变的类不会被放进补丁
+ */
+public class MappingStore {
+
+    public static final String FILE_NAME = "mapping.idx";
+
+    private static final int MAGIC = 0x504d4150; // "PMAP"
+    private static final int VERSION = 1;
+
+    private static final DaemonCache.Loader<MappingStore> LOADER = new DaemonCache.Loader<MappingStore>() {
+        @Override
+        public MappingStore load(File file) throws IOException {
+            return read(file);
+        }
+    };
+
+    private final String[] strings;
+    private final int[] classObfuscated;
+    private final int[] classOriginal;
+    private final long[] classHigh;
+    private final long[] classLow;
+    /**
+     * 第 i 个类的成员是 [memberStart[i], memberStart[i + 1])
+     */
+    private final int[] memberStart;
+    private final int[] memberObfuscated;
+    private final int[] memberOriginal;
+    private final int[] memberDesc;
+    /**
+     * 整个 mapping 文件的摘要，由各段落的摘要依次组合而成
+     */
+    private final long sourceHigh;
+    private final long sourceLow;
+
+    private final Remapper remapper = new Remapper() {
+        @Override
+        public String map(String typeName) {
+            int index = findClass(typeName);
+            return index < 0 ? typeName : strings[classOriginal[index]];
+        }
+
+        @Override
+        public String mapMethodName(String owner, String name, String desc) {
+            return mapMember(owner, name, desc, true);
+        }
+
+        @Override
+        public String mapFieldName(String owner, String name, String desc) {
+            return mapMember(owner, name, desc, false);
+        }
+    };
+
+    private MappingStore(String[] strings, int[] classObfuscated, int[] classOriginal, long[] classHigh,
+                         long[] classLow, int[] memberStart, int[] memberObfuscated, int[] memberOriginal,
+                         int[] memberDesc, long sourceHigh, long sourceLow) {
+        this.strings = strings;
+        this.classObfuscated = classObfuscated;
+        this.classOriginal = classOriginal;
+        this.classHigh = classHigh;
+        this.classLow = classLow;
+        this.memberStart = memberStart;
+        this.memberObfuscated = memberObfuscated;
+        this.memberOriginal = memberOriginal;
+        this.memberDesc = memberDesc;
+        this.sourceHigh = sourceHigh;
+        this.sourceLow = sourceLow;
+    }
+
+    /**
+     * 用本次混淆生成的 mapping.txt 更新索引。流式读取 mapping.txt，段落没有变化的类沿用上一次的记录，
+     * mapping 整体没有变化时不会重写索引文件
+     *
+     * @return 索引是否有变化
+     */
+    public static boolean update(File storeFile, File mappingFile, Logger logger) throws IOException {
+        MappingStore prev = null;
+        if (storeFile.exists()) {
+            try {
+                prev = read(storeFile);
+            } catch (IOException e) {
+                // 索引损坏时重新解析全部类
+                e.printStackTrace();
+            }
+        }
+
+        Builder builder = new Builder(prev);
+        MappingParser.parse(mappingFile, builder);
+        MappingStore store = builder.build();
+        logger.info("mapping 索引：共 " + store.classCount() + " 个类，重新解析 " + builder.parsedClasses + " 个");
+        if (prev != null && prev.sourceHigh == store.sourceHigh && prev.sourceLow == store.sourceLow) {
+            return false;
+        }
+        store.write(storeFile);
+        return true;
+    }
+
+    /**
+     * 加载索引，文件不存在时返回 null。工作项在同一个 Gradle 进程中执行，开启了守护进程缓存时
+     * 共用缓存中的索引，文件没有变化时不再重复读取
+     *
+     * @param daemonCache 为 null 时每次都重新读取
+     */
+    public static MappingStore load(File storeFile, DaemonCache daemonCache) throws IOException {
+        if (storeFile == null || !storeFile.exists()) {
+            return null;
+        }
+        return daemonCache == null ? read(storeFile) : daemonCache.get("mapping", storeFile, LOADER);
+    }
+
+    /**
+     * 只读取文件头中的 mapping 摘要，用作配置指纹的一部分。文件不存在或损坏时返回空字符串
+     */
+    public static String readFingerprint(File storeFile) {
+        if (storeFile == null || !storeFile.exists()) {
+            return "";
+        }
+        try {
+            DataInputStream inputStream = new DataInputStream(new FileInputStream(storeFile));
+            try {
+                if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                    return "";
+                }
+                return DigestAlgorithm.toHex(inputStream.readLong(), inputStream.readLong());
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    static MappingStore read(File storeFile) throws IOException {
+        DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(storeFile), 256 * 1024));
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException("不是有效的 mapping 索引文件：" + storeFile.getAbsolutePath());
+            }
+            int version = inputStream.readInt();
+            if (version != VERSION) {
+                throw new IOException("不支持的 mapping 索引版本：" + version);
+            }
+            long sourceHigh = inputStream.readLong();
+            long sourceLow = inputStream.readLong();
+            String[] strings = new String[inputStream.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = inputStream.readUTF();
+            }
+            int classCount = inputStream.readInt();
+            int[] classObfuscated = new int[classCount];
+            int[] classOriginal = new int[classCount];
+            long[] classHigh = new long[classCount];
+            long[] classLow = new long[classCount];
+            int[] memberStart = new int[classCount + 1];
+            int memberCount = inputStream.readInt();
+            int[] memberObfuscated = new int[memberCount];
+            int[] memberOriginal = new int[memberCount];
+            int[] memberDesc = new int[memberCount];
+            int member = 0;
+            for (int i = 0; i < classCount; i++) {
+                classObfuscated[i] = inputStream.readInt();
+                classOriginal[i] = inputStream.readInt();
+                classHigh[i] = inputStream.readLong();
+                classLow[i] = inputStream.readLong();
+                int count = inputStream.readInt();
+                memberStart[i] = member;
+                for (int j = 0; j < count; j++, member++) {
+                    memberObfuscated[member] = inputStream.readInt();
+                    memberOriginal[member] = inputStream.readInt();
+                    memberDesc[member] = inputStream.readInt();
+                }
+            }
+            memberStart[classCount] = member;
+            if (member != memberCount) {
+                throw new IOException("mapping 索引文件不完整：" + storeFile.getAbsolutePath());
+            }
+            return new MappingStore(strings, classObfuscated, classOriginal, classHigh, classLow, memberStart,
+                    memberObfuscated, memberOriginal, memberDesc, sourceHigh, sourceLow);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 先写到临时文件再原子替换，写入过程中崩溃不会破坏原有的索引
+     */
+    void write(File storeFile) throws IOException {
+        storeFile.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(storeFile.getName(), ".tmp", storeFile.getParentFile());
+        DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 256 * 1024));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeLong(sourceHigh);
+            outputStream.writeLong(sourceLow);
+            outputStream.writeInt(strings.length);
+            for (String string : strings) {
+                outputStream.writeUTF(string);
+            }
+            outputStream.writeInt(classCount());
+            outputStream.writeInt(memberObfuscated.length);
+            for (int i = 0; i < classCount(); i++) {
+                outputStream.writeInt(classObfuscated[i]);
+                outputStream.writeInt(classOriginal[i]);
+                outputStream.writeLong(classHigh[i]);
+                outputStream.writeLong(classLow[i]);
+                outputStream.writeInt(memberStart[i + 1] - memberStart[i]);
+                for (int member = memberStart[i]; member < memberStart[i + 1]; member++) {
+                    outputStream.writeInt(memberObfuscated[member]);
+                    outputStream.writeInt(memberOriginal[member]);
+                    outputStream.writeInt(memberDesc[member]);
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public int classCount() {
+        return classObfuscated.length;
+    }
+
+    /**
+     * 混淆后的内部名对应的原始内部名，没有被混淆或不在 mapping 中时返回 null
+     */
+    public String originalClass(String obfuscated) {
+        int index = findClass(obfuscated);
+        return index < 0 ? null : strings[classOriginal[index]];
+    }
+
+    /**
+     * 把 class 中混淆后的类名、方法名和字段名换回原始名字。结果只用于计算摘要，不会写入输出
+     */
+    public byte[] remap(byte[] bytes) {
+        return remap(bytes, bytes.length);
+    }
+
+    public byte[] remap(byte[] bytes, int length) {
+        ClassReader classReader = new ClassReader(bytes, 0, length);
+        ClassWriter classWriter = new ClassWriter(0);
+        classReader.accept(new ClassRemapper(classWriter, remapper), 0);
+        return classWriter.toByteArray();
+    }
+
+    private int findClass(String obfuscated) {
+        int low = 0;
+        int high = classObfuscated.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = strings[classObfuscated[mid]].compareTo(obfuscated);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * mapping 中成员的描述符使用原始类名，先按名字筛选，名字相同时才把混淆后的描述符换回原始类名再比较。
+     * 在父类中声明、通过子类引用的成员查不到，保持混淆后的名字，两次编译的结果仍然一致
+     */
+    private String mapMember(String owner, String name, String desc, boolean method) {
+        int index = findClass(owner);
+        if (index < 0) {
+            return name;
+        }
+        String originalDesc = null;
+        for (int member = memberStart[index]; member < memberStart[index + 1]; member++) {
+            if (!strings[memberObfuscated[member]].equals(name)) {
+                continue;
+            }
+            if (originalDesc == null) {
+                originalDesc = method ? remapper.mapMethodDesc(desc) : remapper.mapDesc(desc);
+            }
+            if (strings[memberDesc[member]].equals(originalDesc)) {
+                return strings[memberOriginal[member]];
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 在解析 mapping.txt 的同时生成新的索引
+     */
+    private static class Builder implements MappingParser.Listener {
+
+        private final MappingStore prev;
+        /**
+         * 上一次索引中原始类名到类下标，用于查找段落没有变化的类
+         */
+        private final Map<String, Integer> prevClasses = new HashMap<>();
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final List<ClassRecord> classes = new ArrayList<>();
+        private final long[] source = new long[2];
+        private final byte[] sourceBuffer = new byte[32];
+        private final String[] member = new String[3];
+        int parsedClasses;
+
+        Builder(MappingStore prev) {
+            this.prev = prev;
+            if (prev != null) {
+                for (int i = 0; i < prev.classCount(); i++) {
+                    prevClasses.put(prev.strings[prev.classOriginal[i]], i);
+                }
+            }
+        }
+
+        @Override
+        public void visitClass(String original, String obfuscated, long high, long low, List<String> memberLines) {
+            ClassRecord record = new ClassRecord(intern(obfuscated.replace('.', '/')),
+                    intern(original.replace('.', '/')), high, low);
+            Integer prevIndex = prevClasses.get(record.originalName());
+            if (prevIndex != null && prev.classHigh[prevIndex] == high && prev.classLow[prevIndex] == low) {
+                // 段落没有变化，直接复制上一次的成员记录
+                for (int i = prev.memberStart[prevIndex]; i < prev.memberStart[prevIndex + 1]; i++) {
+                    record.addMember(intern(prev.strings[prev.memberObfuscated[i]]),
+                            intern(prev.strings[prev.memberOriginal[i]]), intern(prev.strings[prev.memberDesc[i]]));
+                }
+            } else {
+                parsedClasses++;
+                for (String memberLine : memberLines) {
+                    if (MappingParser.parseMember(memberLine, member)) {
+                        record.addMember(intern(member[0]), intern(member[1]), intern(member[2]));
+                    }
+                }
+            }
+            classes.add(record);
+
+            // 按 mapping.txt 中的顺序组合段落摘要，得到整个文件的摘要
+            writeLong(sourceBuffer, 0, source[0] ^ high);
+            writeLong(sourceBuffer, 8, source[1] ^ low);
+            writeLong(sourceBuffer, 16, source[0]);
+            writeLong(sourceBuffer, 24, source[1]);
+            DigestAlgorithm.MURMUR3.digest(sourceBuffer, source);
+        }
+
+        private int intern(String string) {
+            Integer id = stringIds.get(string);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(string, id);
+                strings.add(string);
+            }
+            return id;
+        }
+
+        MappingStore build() {
+            final String[] table = strings.toArray(new String[0]);
+            Collections.sort(classes, new Comparator<ClassRecord>() {
+                @Override
+                public int compare(ClassRecord o1, ClassRecord o2) {
+                    return table[o1.obfuscated].compareTo(table[o2.obfuscated]);
+                }
+            });
+            int classCount = classes.size();
+            int[] classObfuscated = new int[classCount];
+            int[] classOriginal = new int[classCount];
+            long[] classHigh = new long[classCount];
+            long[] classLow = new long[classCount];
+            int[] memberStart = new int[classCount + 1];
+            int memberCount = 0;
+            for (ClassRecord record : classes) {
+                memberCount += record.memberCount;
+            }
+            int[] memberObfuscated = new int[memberCount];
+            int[] memberOriginal = new int[memberCount];
+            int[] memberDesc = new int[memberCount];
+            int member = 0;
+            for (int i = 0; i < classCount; i++) {
+                ClassRecord record = classes.get(i);
+                classObfuscated[i] = record.obfuscated;
+                classOriginal[i] = record.original;
+                classHigh[i] = record.high;
+                classLow[i] = record.low;
+                memberStart[i] = member;
+                for (int j = 0; j < record.memberCount; j++, member++) {
+                    memberObfuscated[member] = record.members[j * 3];
+                    memberOriginal[member] = record.members[j * 3 + 1];
+                    memberDesc[member] = record.members[j * 3 + 2];
+                }
+            }
+            memberStart[classCount] = member;
+            return new MappingStore(table, classObfuscated, classOriginal, classHigh, classLow, memberStart,
+                    memberObfuscated, memberOriginal, memberDesc, source[0], source[1]);
+        }
+
+        private static void writeLong(byte[] bytes, int offset, long value) {
+            for (int i = 0; i < 8; i++) {
+                bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+            }
+        }
+
+        private class ClassRecord {
+            final int obfuscated;
+            final int original;
+            final long high;
+            final long low;
+            /**
+             * 每个成员依次占三项：混淆后的名字、原始名字、描述符
+             */
+            int[] members = new int[0];
+            int memberCount;
+
+            ClassRecord(int obfuscated, int original, long high, long low) {
+                this.obfuscated = obfuscated;
+                this.original = original;
+                this.high = high;
+                this.low = low;
+            }
+
+            String originalName() {
+                return strings.get(original);
+            }
+
+            void addMember(int obfuscatedName, int originalName, int desc) {
+                if (members.length < (memberCount + 1) * 3) {
+                    int[] newMembers = new int[Math.max(12, members.length * 2)];
+                    System.arraycopy(members, 0, newMembers, 0, memberCount * 3);
+                    members = newMembers;
+                }
+                members[memberCount * 3] = obfuscatedName;
+                members[memberCount * 3 + 1] = originalName;
+                members[memberCount * 3 + 2] = desc;
+                memberCount++;
+            }
+        }
+    }
+}
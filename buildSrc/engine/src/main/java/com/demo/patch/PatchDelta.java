@@ -0,0 +1,427 @@
+package com.demo.patch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 补丁包之间的二进制差分。对同一个 release 连续发布多个补丁时，新旧补丁中的 dex 大部分内容相同，
+ * 设备上已经有旧补丁的情况下只需要下载差分文件，再用旧补丁中的 dex 还原出新的 dex。
+ * <p>
+ * 差分以固定大小的块为单位：旧 dex 按块建立滚动哈希索引，在新 dex 上逐字节滑动窗口查找相同的块，
+ * 找到后向前后扩展，输出 COPY（从旧 dex 拷贝）和 INSERT（新数据）两种指令，指令部分整体再做 deflate 压缩。
+ * 本类只依赖 JDK，还原部分可以直接在 JVM 或设备上使用
+ */
+public final class PatchDelta {
+
+    public static final String DELTA_FILE_NAME = "patch.delta";
+    public static final String MANIFEST_FILE_NAME = "patch.delta.manifest";
+
+    private static final int MAGIC = 0x50444c54; // "PDLT"
+    private static final int VERSION = 1;
+
+    /**
+     * 块大小。dex 中的索引表会因为新增的字符串、方法整体偏移，较小的块更容易在改动之间找到相同的内容
+     */
+    static final int BLOCK_SIZE = 32;
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    private PatchDelta() {
+    }
+
+    /**
+     * 对比两个补丁包中的 dex，生成差分文件和记录校验值的清单文件
+     *
+     * @param basePatch   设备上已有的旧补丁包
+     * @param targetPatch 新生成的补丁包
+     */
+    public static void write(File basePatch, File targetPatch, File deltaFile, File manifestFile)
+            throws IOException {
+        Map<String, byte[]> baseEntries = readDexEntries(basePatch);
+        Map<String, byte[]> targetEntries = readDexEntries(targetPatch);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(targetEntries.size());
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater);
+            DataOutputStream opsOutput = new DataOutputStream(deflaterOutput);
+            for (Map.Entry<String, byte[]> entry : targetEntries.entrySet()) {
+                byte[] base = baseEntries.get(entry.getKey());
+                opsOutput.writeUTF(entry.getKey());
+                opsOutput.write(diff(base == null ? new byte[0] : base, entry.getValue()));
+            }
+            opsOutput.flush();
+            deflaterOutput.finish();
+        } finally {
+            deflater.end();
+        }
+        output.flush();
+        byte[] delta = body.toByteArray();
+        Files.write(deltaFile.toPath(), delta);
+
+        // 清单中记录旧 dex、新 dex 以及差分文件本身的校验值，按名称排序保证内容稳定
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("version=").append(VERSION).append('\n');
+        manifest.append("delta.size=").append(delta.length).append('\n');
+        manifest.append("delta.sha256=").append(sha256(delta)).append('\n');
+        for (Map.Entry<String, byte[]> entry : targetEntries.entrySet()) {
+            String name = entry.getKey();
+            byte[] base = baseEntries.get(name);
+            if (base != null) {
+                manifest.append("base.").append(name).append(".size=").append(base.length).append('\n');
+                manifest.append("base.").append(name).append(".sha256=").append(sha256(base)).append('\n');
+            }
+            manifest.append("target.").append(name).append(".size=").append(entry.getValue().length).append('\n');
+            manifest.append("target.").append(name).append(".sha256=").append(sha256(entry.getValue()))
+                    .append('\n');
+        }
+        Files.write(manifestFile.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 用旧补丁中的 dex 和差分文件还原新补丁中的 dex，并用清单中的校验值检查输入和结果
+     *
+     * @param baseEntries 旧补丁中的 dex，条目名到内容
+     * @param delta       差分文件内容
+     * @param manifest    清单内容，为 null 时不做校验
+     * @return 新补丁中的 dex，条目名到内容
+     */
+    public static Map<String, byte[]> apply(Map<String, byte[]> baseEntries, byte[] delta,
+                                            Map<String, String> manifest) throws IOException {
+        if (manifest != null) {
+            checkDigest("delta", delta, manifest);
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(delta));
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("不是有效的补丁差分文件");
+        }
+        int count = input.readInt();
+        DataInputStream opsInput = new DataInputStream(new InflaterInputStream(input));
+        Map<String, byte[]> targetEntries = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = opsInput.readUTF();
+            byte[] base = baseEntries.get(name);
+            if (base == null) {
+                base = new byte[0];
+            } else if (manifest != null) {
+                checkDigest("base." + name, base, manifest);
+            }
+            byte[] target = apply(base, opsInput);
+            if (manifest != null) {
+                checkDigest("target." + name, target, manifest);
+            }
+            targetEntries.put(name, target);
+        }
+        return targetEntries;
+    }
+
+    /**
+     * 读取 key=value 格式的清单文件
+     */
+    public static Map<String, String> readManifest(InputStream inputStream) throws IOException {
+        Map<String, String> manifest = new TreeMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int index = line.indexOf('=');
+            if (index > 0) {
+                manifest.put(line.substring(0, index), line.substring(index + 1));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * 读取补丁包中的所有 dex 条目
+     */
+    public static Map<String, byte[]> readDexEntries(File patch) throws IOException {
+        Map<String, byte[]> entries = new TreeMap<>();
+        ZipFile zipFile = new ZipFile(patch);
+        try {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if (zipEntry.getName().endsWith(".dex")) {
+                    InputStream inputStream = zipFile.getInputStream(zipEntry);
+                    try {
+                        entries.put(zipEntry.getName(), readFully(inputStream));
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+        return entries;
+    }
+
+    /**
+     * 生成从 base 到 target 的差分指令，格式为：base 长度、target 长度、若干指令、结束标记。
+     * 长度和偏移都使用变长整数
+     */
+    static byte[] diff(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarInt(body, base.length);
+        writeVarInt(body, target.length);
+
+        BlockIndex index = new BlockIndex(base);
+        // [literalStart, position) 之间是还没有输出的新数据
+        int literalStart = 0;
+        int position = 0;
+        int hash = 0;
+        boolean hashValid = false;
+        while (position + BLOCK_SIZE <= target.length) {
+            if (!hashValid) {
+                hash = RollingHash.of(target, position, BLOCK_SIZE);
+                hashValid = true;
+            }
+            int match = index.find(hash, target, position);
+            if (match < 0) {
+                // 窗口向后滑动一个字节
+                if (position + BLOCK_SIZE < target.length) {
+                    hash = RollingHash.roll(hash, target[position], target[position + BLOCK_SIZE], BLOCK_SIZE);
+                }
+                position++;
+                continue;
+            }
+
+            // 向前扩展到未输出的新数据中，向后扩展到不再相同为止
+            int baseStart = match;
+            int targetStart = position;
+            while (baseStart > 0 && targetStart > literalStart && base[baseStart - 1] == target[targetStart - 1]) {
+                baseStart--;
+                targetStart--;
+            }
+            int baseEnd = match + BLOCK_SIZE;
+            int targetEnd = position + BLOCK_SIZE;
+            while (baseEnd < base.length && targetEnd < target.length && base[baseEnd] == target[targetEnd]) {
+                baseEnd++;
+                targetEnd++;
+            }
+
+            writeInsert(body, target, literalStart, targetStart);
+            body.write(OP_COPY);
+            writeVarInt(body, baseStart);
+            writeVarInt(body, baseEnd - baseStart);
+            position = targetEnd;
+            literalStart = targetEnd;
+            hashValid = false;
+        }
+        writeInsert(body, target, literalStart, target.length);
+        body.write(OP_END);
+        return body.toByteArray();
+    }
+
+    /**
+     * 执行一个条目的差分指令
+     */
+    static byte[] apply(byte[] base, DataInputStream input) throws IOException {
+        if (readVarInt(input) != base.length) {
+            throw new IOException("旧 dex 的长度与差分文件不一致");
+        }
+        byte[] target = new byte[readVarInt(input)];
+        int position = 0;
+        while (true) {
+            int op = input.read();
+            if (op == OP_END) {
+                break;
+            }
+            int length;
+            switch (op) {
+                case OP_COPY:
+                    int offset = readVarInt(input);
+                    length = readVarInt(input);
+                    if (offset + length > base.length || position + length > target.length) {
+                        throw new IOException("差分指令越界");
+                    }
+                    System.arraycopy(base, offset, target, position, length);
+                    break;
+                case OP_INSERT:
+                    length = readVarInt(input);
+                    if (position + length > target.length) {
+                        throw new IOException("差分指令越界");
+                    }
+                    input.readFully(target, position, length);
+                    break;
+                default:
+                    throw new IOException("未知的差分指令：" + op);
+            }
+            position += length;
+        }
+        if (position != target.length) {
+            throw new IOException("差分文件不完整");
+        }
+        return target;
+    }
+
+    private static void writeInsert(OutputStream output, byte[] target, int start, int end) throws IOException {
+        if (end > start) {
+            output.write(OP_INSERT);
+            writeVarInt(output, end - start);
+            output.write(target, start, end - start);
+        }
+    }
+
+    private static void writeVarInt(OutputStream output, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            output.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private static int readVarInt(InputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+
+    private static void checkDigest(String name, byte[] bytes, Map<String, String> manifest) throws IOException {
+        String expectedSize = manifest.get(name + ".size");
+        String expectedDigest = manifest.get(name + ".sha256");
+        if (expectedSize == null || expectedDigest == null) {
+            throw new IOException("清单中没有 " + name + " 的校验值");
+        }
+        if (Integer.parseInt(expectedSize) != bytes.length || !expectedDigest.equals(sha256(bytes))) {
+            throw new IOException(name + " 的校验值与清单不一致");
+        }
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * rsync 使用的弱滚动哈希，窗口滑动一个字节时 O(1) 更新
+     */
+    private static final class RollingHash {
+
+        static int of(byte[] bytes, int offset, int length) {
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < length; i++) {
+                int value = bytes[offset + i] & 0xff;
+                a += value;
+                b += (length - i) * value;
+            }
+            return (a & 0xffff) | (b << 16);
+        }
+
+        static int roll(int hash, byte out, byte in, int length) {
+            int a = hash & 0xffff;
+            int b = hash >>> 16;
+            a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+            b = (b - length * (out & 0xff) + a) & 0xffff;
+            return a | (b << 16);
+        }
+    }
+
+    /**
+     * 旧 dex 中每个块的滚动哈希索引，哈希相同的块用链表串起来，命中后逐字节比较确认
+     */
+    private static final class BlockIndex {
+        private final byte[] base;
+        private final int[] heads;
+        private final int[] next;
+        private final int mask;
+
+        BlockIndex(byte[] base) {
+            this.base = base;
+            int blocks = base.length / BLOCK_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(16, blocks * 2) - 1) << 1;
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            next = new int[blocks];
+            mask = capacity - 1;
+            // 倒序插入，链表中偏移小的块在前面
+            for (int block = blocks - 1; block >= 0; block--) {
+                int slot = spread(RollingHash.of(base, block * BLOCK_SIZE, BLOCK_SIZE)) & mask;
+                next[block] = heads[slot];
+                heads[slot] = block;
+            }
+        }
+
+        /**
+         * 查找与 target[position, position + BLOCK_SIZE) 内容相同的块，返回块在旧 dex 中的偏移，没有时返回 -1
+         */
+        int find(int hash, byte[] target, int position) {
+            for (int block = heads[spread(hash) & mask]; block >= 0; block = next[block]) {
+                int offset = block * BLOCK_SIZE;
+                if (regionMatches(offset, target, position)) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionMatches(int offset, byte[] target, int position) {
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                if (base[offset + i] != target[position + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 15) ^ (hash >>> 7);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.demo.patch;
+
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DexIndexedConsumer;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.origin.Origin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在进程内使用 D8 把补丁 class 直接从内存编译成 dex，不需要先写 jar 包再启动 dx 进程，
+ * 编译结果也留在内存中，由 {@link PatchJarWriter} 写成补丁包。Gradle 中使用 AGP 自带的 D8，
+ * 命令行中使用 classpath 上的 D8。D8 的类和编译线程池在守护进程的多次构建之间复用，
+ * 只有第一次生成补丁时需要加载和预热
+ */
+public class PatchDexer {
+
+    private static ExecutorService executor;
+
+    /**
+     * 守护进程内共用的编译线程池，使用守护线程，不会阻止守护进程退出。生成补丁包时的并行压缩也使用它
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "patch-d8-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * 把 class 编译成 dex，输出到内存中，由调用方写入补丁包
+     *
+     * @param classes     类名与 class 内容
+     * @param minApiLevel app 的 minSdkVersion
+     * @return dex 文件名（classes.dex、classes2.dex...）与内容
+     */
+    public static Map<String, byte[]> dex(Map<String, byte[]> classes, int minApiLevel)
+            throws CompilationFailedException {
+        D8Command.Builder builder = D8Command.builder();
+        for (byte[] bytes : classes.values()) {
+            builder.addClassProgramData(bytes, Origin.unknown());
+        }
+        final Map<String, byte[]> dexFiles = new TreeMap<>();
+        // 与 dx 一样不做脱糖，补丁中的类与原 dex 中的类保持一致
+        builder.setMinApiLevel(minApiLevel)
+                .setMode(CompilationMode.RELEASE)
+                .setDisableDesugaring(true)
+                .setProgramConsumer(new DexIndexedConsumer() {
+                    @Override
+                    public void accept(int fileIndex, byte[] data, Set<String> descriptors,
+                                       DiagnosticsHandler handler) {
+                        synchronized (dexFiles) {
+                            dexFiles.put(dexFileName(fileIndex), data);
+                        }
+                    }
+
+                    @Override
+                    public void finished(DiagnosticsHandler handler) {
+                    }
+                });
+        D8.run(builder.build(), getExecutor());
+        return dexFiles;
+    }
+
+    /**
+     * 把分片后的 class 分别编译成 dex，多个分片同时编译，按分片顺序依次命名为 classes.dex、classes2.dex...
+     * <p>
+     * D8 在共用线程池中执行并等待它的子任务，分片的编译不能再提交到同一个线程池，否则线程都在等待时会死锁，
+     * 所以每个分片使用单独的线程发起编译，实际的编译工作仍由共用线程池完成
+     *
+     * @param shards      {@link DexSharder} 分出的分片，每个分片的引用数不超过单个 dex 的上限
+     * @param minApiLevel app 的 minSdkVersion
+     * @return dex 文件名与内容
+     */
+    public static Map<String, byte[]> dex(List<Map<String, byte[]>> shards, final int minApiLevel)
+            throws CompilationFailedException {
+        List<FutureTask<Map<String, byte[]>>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            final Map<String, byte[]> shard = shards.get(i);
+            FutureTask<Map<String, byte[]>> task = new FutureTask<>(new Callable<Map<String, byte[]>>() {
+                @Override
+                public Map<String, byte[]> call() throws CompilationFailedException {
+                    return dex(shard, minApiLevel);
+                }
+            });
+            tasks.add(task);
+            if (i == shards.size() - 1) {
+                // 最后一个分片在当前线程编译，只有一个分片时不需要创建线程
+                task.run();
+            } else {
+                Thread thread = new Thread(task, "patch-d8-shard-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        Map<String, byte[]> dexFiles = new TreeMap<>();
+        int index = 0;
+        for (FutureTask<Map<String, byte[]>> task : tasks) {
+            // 引用数是估算的，个别分片仍被 D8 拆成多个 dex 时顺延编号
+            Map<String, byte[]> shardFiles = get(task);
+            for (int i = 0; i < shardFiles.size(); i++) {
+                dexFiles.put(dexFileName(index++), shardFiles.get(dexFileName(i)));
+            }
+        }
+        return dexFiles;
+    }
+
+    private static Map<String, byte[]> get(FutureTask<Map<String, byte[]>> task) throws CompilationFailedException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // 分片线程不响应中断，等它们结束后再恢复中断状态
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompilationFailedException) {
+                throw (CompilationFailedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 与 Android 打包时的 dex 文件名一致，第一个为 classes.dex，之后为 classes2.dex、classes3.dex...
+     */
+    static String dexFileName(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+}
@@ -0,0 +1,470 @@
+package com.demo.patch;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 补丁引擎，不依赖 Gradle 和 Android 插件：对 class 文件和 jar 包插桩，与基准摘要比较，生成补丁包。
+ * <ul>
+ * <li>{@link #instrument(Logger, InstrumentSettings, File[], PatchReport)}：插桩一批输入文件，输入文件被原地改写。
+ * Gradle 插件中每个 Worker API 工作项调用一次</li>
+ * <li>{@link #generate(List, PatchReport)}：按顺序合并各批的结果，保存本次的摘要备份，生成补丁包和报告。
+ * Gradle 插件在 patch 任务中调用</li>
+ * <li>{@link #run(List, int, PatchReport)}：在线程池中插桩所有输入后生成补丁，命令行中使用</li>
+ * </ul>
+ * 输出目录的结构与 Gradle 插件相同：patch.jar、patch.manifest、report.json、inputs.bin，
+ * baseline 目录中是本次的摘要备份和依赖索引，作为下一次的基准
+ */
+public class PatchEngine {
+
+    /**
+     * 新的备份所在的目录
+     */
+    public static final String BASELINE_DIR_NAME = "baseline";
+
+    public static final String PATCH_FILE_NAME = "patch.jar";
+
+    /**
+     * 需要打补丁的类组成的 jar 包，只在使用 dx 时生成
+     */
+    static final String PATCH_CLASS_FILE_NAME = "patchClass.jar";
+
+    /**
+     * 每批处理的 class 文件数量，class 文件很小，逐个提交的调度开销比插桩本身还大
+     */
+    static final int CLASS_BATCH_SIZE = 256;
+
+    private final Logger logger;
+    private final InstrumentSettings settings;
+    private final PatchSettings patchSettings;
+    private final File outputDir;
+
+    /**
+     * 生成补丁的结果
+     */
+    public static class Result {
+        /**
+         * 与上一次编译相比的补丁 class，按类名排序
+         */
+        public final Map<String, byte[]> patchClasses;
+        /**
+         * 补丁包，没有补丁 class 或生成失败时不存在
+         */
+        public final File patchFile;
+        /**
+         * 本次编译是否作为新的发布版本记录到了发布历史中
+         */
+        public final boolean recorded;
+
+        Result(Map<String, byte[]> patchClasses, File patchFile, boolean recorded) {
+            this.patchClasses = patchClasses;
+            this.patchFile = patchFile;
+            this.recorded = recorded;
+        }
+    }
+
+    /**
+     * @param settings      插桩配置，settings.hexFile 是上一次编译的摘要备份，同目录下的 deps.idx 是上一次的依赖索引
+     * @param patchSettings 生成补丁包的配置
+     * @param outputDir     补丁输出目录
+     */
+    public PatchEngine(Logger logger, InstrumentSettings settings, PatchSettings patchSettings, File outputDir) {
+        this.logger = logger;
+        this.settings = settings;
+        this.patchSettings = patchSettings;
+        this.outputDir = outputDir;
+    }
+
+    public File getPatchFile() {
+        return new File(outputDir, PATCH_FILE_NAME);
+    }
+
+    public File getManifestFile() {
+        return new File(outputDir, PatchManifest.FILE_NAME);
+    }
+
+    /**
+     * 每个输入文件的处理记录，下一次插桩时用于增量处理
+     */
+    public File getStateFile() {
+        return new File(outputDir, InputState.FILE_NAME);
+    }
+
+    public File getReportFile() {
+        return new File(outputDir, PatchReport.FILE_NAME);
+    }
+
+    /**
+     * 本次编译的摘要备份和依赖索引所在的目录
+     */
+    public File getBaselineDir() {
+        return new File(outputDir, BASELINE_DIR_NAME);
+    }
+
+    /**
+     * 插桩之前的准备：从发布历史中取出需要生成补丁的版本，写成插桩时可以直接映射的摘要索引；
+     * 需要时把旧的 hex.txt 转换成索引文件，避免多个工作项同时转换。
+     * 发布版本的插桩版本与当前插件不同时中断构建；上一次编译的备份不同时只提示，
+     * 比较时会跳过它，见 {@link PatchGenerator}
+     */
+    public static void prepare(Logger logger, InstrumentSettings settings) throws IOException {
+        if (!settings.patchBaselines.isEmpty()) {
+            BaselineHistory history = settings.history();
+            for (String tag : settings.patchBaselines) {
+                // 已经发布的版本无法重新生成基准，与它比较时所有类都会有变化，补丁就成了整个应用
+                int instrumentVersion = history.instrumentVersion(tag);
+                if (instrumentVersion != ClassUtils.INSTRUMENT_VERSION) {
+                    throw new PatchException("发布版本 " + tag + " 是由插桩版本 " + instrumentVersion
+                            + " 的插件记录的，当前插件的插桩版本是 " + ClassUtils.INSTRUMENT_VERSION
+                            + "，同样的类插桩出的内容不同，无法判断哪些类有变化。请用记录这个版本时的插件为它生成补丁");
+                }
+                File hexFile = settings.releaseHexFile(tag);
+                history.materialize(tag, hexFile);
+                logger.info("发布版本 " + tag + " 的摘要：" + hexFile.getAbsolutePath());
+            }
+        }
+        HexIndex baseline = HexIndex.open(settings.hexFile);
+        if (baseline != null) {
+            int instrumentVersion = baseline.instrumentVersion();
+            baseline.close();
+            if (instrumentVersion != ClassUtils.INSTRUMENT_VERSION) {
+                logger.warn("备份文件 " + settings.hexFile.getAbsolutePath() + " 由插桩版本 " + instrumentVersion
+                        + " 的插件生成，当前插件的插桩版本是 " + ClassUtils.INSTRUMENT_VERSION
+                        + "，所有类都会被当作有变化。本次编译只更新备份，不生成补丁");
+            }
+        }
+    }
+
+    /**
+     * 插桩一批输入文件并与所有基准比较，不知道 class 文件所在的 class 目录，
+     * 按路径中的 classes 目录计算类路径。Gradle 插件中 dex 任务的输入都在 classes 目录下
+     *
+     * @see #instrument(Logger, InstrumentSettings, File[], File[], PatchReport)
+     */
+    public static InstrumentResult instrument(Logger logger, InstrumentSettings settings, File[] inputs,
+                                              PatchReport report) {
+        return instrument(logger, settings, inputs, new File[inputs.length], report);
+    }
+
+    /**
+     * 插桩一批输入文件并与所有基准比较。各批之间不共享状态，可以在多个线程中同时执行
+     *
+     * @param inputs class 文件和 jar 包，原地改写
+     * @param roots  与 inputs 一一对应，class 文件所在的 class 目录，类路径是相对于它的路径；
+     *               jar 包或不知道 class 目录时为 null
+     * @param report 收集计数和耗时，可以被多批共用
+     * @return 输入文件记录、补丁 class，开启 includeDependents 时还有类依赖索引
+     */
+    public static InstrumentResult instrument(Logger logger, InstrumentSettings settings, File[] inputs,
+                                              File[] roots, PatchReport report) {
+        DigestAlgorithm algorithm = settings.algorithm();
+        PatchGenerator patchGenerator = new PatchGenerator(logger, algorithm, settings.baselineHexFiles(),
+                settings.daemonCache(), report);
+        DependencyIndex dependencies = settings.includeDependents ? new DependencyIndex() : null;
+        MappingStore mapping;
+        try {
+            mapping = settings.loadMapping();
+        } catch (IOException e) {
+            throw new PatchException("读取 mapping 索引失败：" + settings.mappingFile.getAbsolutePath(), e);
+        }
+        InstrumentContext context = new InstrumentContext(logger, settings.classFilter, algorithm,
+                settings.strategy, settings.skippedEnums, patchGenerator, settings.createCache(),
+                new InputState(settings.stateFingerprint()), settings.verify, report, dependencies,
+                mapping, BufferPool.shared(settings.memoryBudgetBytes));
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                InstrumentProcessor.processFile(context, inputs[i], roots[i]);
+            }
+        } finally {
+            patchGenerator.close();
+        }
+
+        InstrumentResult result = new InstrumentResult();
+        result.records.addAll(context.newState.records());
+        result.patchClasses.putAll(patchGenerator.getPatchClasses());
+        result.dependencies = dependencies;
+        return result;
+    }
+
+    /**
+     * 按顺序合并各批的结果，查找受影响的类，保存本次编译的摘要备份和输入文件记录，然后生成补丁包和报告。
+     * 同一个类出现在多个输入文件中时，与串行处理的结果一致
+     *
+     * @param results 各批的插桩结果，按提交顺序排列
+     */
+    public Result generate(List<InstrumentResult> results, PatchReport report) {
+        File patchFile = getPatchFile();
+        // 记录每个输入文件处理结果的文件，用于增量处理
+        File stateFile = getStateFile();
+        // 各阶段耗时与处理数量的报告
+        File reportFile = getReportFile();
+        // 上一次的类依赖索引，用于查找受有变化的类影响的类
+        File dependencyFile = new File(settings.hexFile.getParentFile(), DependencyIndex.FILE_NAME);
+        // 本次的摘要备份和依赖索引
+        File newHexFile = new File(getBaselineDir(), HexIndex.FILE_NAME);
+        File newDependencyFile = new File(getBaselineDir(), DependencyIndex.FILE_NAME);
+
+        // 本次没有补丁 class 时不能留下上一次的补丁包；开启差分时它是下一次差分的基准，需要保留
+        if (!patchSettings.delta) {
+            patchFile.delete();
+            getManifestFile().delete();
+        }
+
+        DigestAlgorithm algorithm = settings.algorithm();
+        PatchGenerator patchGenerator = new PatchGenerator(logger, algorithm, patchSettings, patchFile,
+                new File(outputDir, PATCH_CLASS_FILE_NAME), settings.hexFile, settings.daemonCache(), report);
+
+        // 上一次的依赖索引用来判断类的结构和常量是否变化
+        DependencyIndex prevDependencies = null;
+        DependencyIndex dependencies = null;
+        if (settings.includeDependents) {
+            prevDependencies = DependencyIndex.read(dependencyFile, settings.daemonCache());
+            dependencies = new DependencyIndex();
+        }
+
+        DigestTable newHexes = new DigestTable(1024);
+        InputState newState = new InputState(settings.stateFingerprint());
+        Map<String, File> sources = new HashMap<>();
+        // 各批收集的补丁 class，是与所有基准比较的结果的并集
+        Map<String, byte[]> changedClasses = new TreeMap<>();
+        for (InstrumentResult result : results) {
+            for (InputState.Record record : result.records) {
+                newHexes.putAll(record.hexes);
+                newState.put(record);
+                if (dependencies != null) {
+                    File source = new File(record.path);
+                    for (int id = 0; id < record.hexes.size(); id++) {
+                        sources.put(record.hexes.keyAt(id), source);
+                    }
+                }
+            }
+            changedClasses.putAll(result.patchClasses);
+            if (dependencies != null && result.dependencies != null) {
+                dependencies.putAll(result.dependencies);
+            }
+        }
+
+        patchGenerator.addChangedClasses(changedClasses, newHexes);
+
+        InstrumentCache cache = settings.createCache();
+        if (cache != null) {
+            cache.trim();
+        }
+
+        // 把受有变化的类影响的类也放入补丁，并保存本次的依赖索引
+        if (dependencies != null) {
+            dependencies.carryForward(prevDependencies, newHexes);
+            patchGenerator.addDependents(prevDependencies, dependencies, sources);
+            try {
+                dependencies.write(newDependencyFile);
+            } catch (IOException e) {
+                // 索引写入失败只会导致下次无法查找受影响的类
+                e.printStackTrace();
+                newDependencyFile.delete();
+            }
+        }
+
+        // 保存本次编译的摘要
+        patchGenerator.close();
+        long begin = report.begin();
+        try {
+            HexIndex.write(newHexes, algorithm, newHexFile);
+            report.end(PatchReport.Phase.WRITE_BASELINE, begin, 0, newHexFile.length());
+        } catch (IOException e) {
+            throw new PatchException("保存摘要备份文件失败：" + newHexFile.getAbsolutePath(), e);
+        }
+        try {
+            newState.write(stateFile);
+        } catch (IOException e) {
+            // 记录文件写入失败只会导致下次全量处理
+            e.printStackTrace();
+            stateFile.delete();
+        }
+
+        // 生成补丁文件。D8、dx 或写入补丁包失败时没有可用的补丁，不能当作成功返回
+        try {
+            patchGenerator.generate();
+        } catch (PatchException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PatchException("生成补丁包失败：" + patchFile.getAbsolutePath(), e);
+        }
+
+        // 同一次插桩的结果为每个发布版本分别生成补丁
+        for (String tag : settings.patchBaselines) {
+            generateForRelease(tag, changedClasses, newHexes, dependencies, sources, report);
+        }
+
+        // 本次编译是发布版本时记录到发布历史中
+        boolean recorded = false;
+        String baselineTag = patchSettings.baselineTag;
+        if (baselineTag != null) {
+            try {
+                recorded = settings.history().record(baselineTag, newHexes, algorithm,
+                        dependencies != null ? newDependencyFile : null);
+            } catch (IOException e) {
+                throw new PatchException("记录发布版本失败：" + baselineTag, e);
+            }
+        }
+
+        try {
+            report.write(reportFile);
+            logger.info("补丁报告：" + reportFile.getAbsolutePath());
+            if (settings.daemonCache() != null) {
+                logger.info("守护进程缓存：" + settings.daemonCache());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new Result(patchGenerator.getPatchClasses(), patchFile, recorded);
+    }
+
+    /**
+     * 与发布版本的摘要比较，生成这个版本的补丁包，输出到 releases/[tag] 目录
+     *
+     * @param changedClasses 各批收集的补丁 class
+     * @param newHexes       本次编译的全部摘要
+     * @param dependencies   本次的依赖索引，没有开启 includeDependents 时为 null
+     * @param sources        类的路径到它所在的输入文件
+     */
+    private void generateForRelease(String tag, Map<String, byte[]> changedClasses, DigestTable newHexes,
+                                    DependencyIndex dependencies, Map<String, File> sources, PatchReport report) {
+        File releaseDir = settings.releaseDir(tag);
+        File patchFile = new File(releaseDir, PATCH_FILE_NAME);
+        if (!patchSettings.delta) {
+            patchFile.delete();
+            new File(releaseDir, PatchManifest.FILE_NAME).delete();
+        }
+        // 每个版本使用单独的报告，生成的补丁数量记录在总的报告中
+        PatchReport releaseReport = new PatchReport();
+        PatchGenerator generator = new PatchGenerator(logger, settings.algorithm(), patchSettings, patchFile,
+                new File(releaseDir, PATCH_CLASS_FILE_NAME), settings.releaseHexFile(tag), settings.daemonCache(),
+                releaseReport);
+        generator.addChangedClasses(changedClasses, newHexes);
+        if (dependencies != null) {
+            DependencyIndex releaseDependencies = DependencyIndex.read(settings.history().dependencyFile(tag),
+                    settings.daemonCache());
+            generator.addDependents(releaseDependencies, dependencies, sources);
+        }
+        generator.close();
+        try {
+            generator.generate();
+        } catch (PatchException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PatchException("生成发布版本 " + tag + " 的补丁包失败：" + patchFile.getAbsolutePath(), e);
+        }
+        report.setAttribute("release." + tag, generator.getPatchClasses().size());
+        logger.info("发布版本 " + tag + " 的补丁包含 " + generator.getPatchClasses().size() + " 个类："
+                + patchFile.getAbsolutePath());
+    }
+
+    /**
+     * 插桩所有输入并生成补丁。每个 jar 包、每一批 class 文件是一个工作项，在线程池中并行处理，
+     * 结果按提交顺序合并，与 Gradle 插件中的处理方式相同。不做增量处理
+     *
+     * @param inputs      class 目录或 jar 包，原地改写。目录中 class 文件的类路径是相对于这个目录的路径；
+     *                    直接给出的 class 文件按路径中的 classes 目录计算类路径
+     * @param parallelism 并行处理的线程数
+     */
+    public Result run(List<File> inputs, int parallelism, final PatchReport report) throws IOException {
+        prepare(logger, settings);
+
+        List<File> jars = new ArrayList<>();
+        List<File> classFiles = new ArrayList<>();
+        // 与 classFiles 一一对应，类路径是 class 文件相对于作为输入的目录的路径
+        List<File> classRoots = new ArrayList<>();
+        for (File input : inputs) {
+            collectInputs(input, input.isDirectory() ? input : null, jars, classFiles, classRoots);
+        }
+        // 大的 jar 包先提交，避免最后只剩一个大 jar 包在单个线程上处理
+        Collections.sort(jars, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o2.length(), o1.length());
+            }
+        });
+        List<File[]> batches = new ArrayList<>();
+        List<File[]> batchRoots = new ArrayList<>();
+        for (File jar : jars) {
+            batches.add(new File[]{jar});
+            batchRoots.add(new File[1]);
+        }
+        for (int i = 0; i < classFiles.size(); i += CLASS_BATCH_SIZE) {
+            int end = Math.min(i + CLASS_BATCH_SIZE, classFiles.size());
+            batches.add(classFiles.subList(i, end).toArray(new File[0]));
+            batchRoots.add(classRoots.subList(i, end).toArray(new File[0]));
+        }
+        logger.info("共 " + jars.size() + " 个 jar 包、" + classFiles.size() + " 个 class 文件，分成 "
+                + batches.size() + " 个工作项");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        List<InstrumentResult> results = new ArrayList<>();
+        try {
+            List<Future<InstrumentResult>> futures = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                final File[] batch = batches.get(i);
+                final File[] roots = batchRoots.get(i);
+                futures.add(executor.submit(new Callable<InstrumentResult>() {
+                    @Override
+                    public InstrumentResult call() {
+                        return instrument(logger, settings, batch, roots, report);
+                    }
+                }));
+            }
+            for (Future<InstrumentResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("插桩被中断", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new PatchException("插桩失败", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return generate(results, report);
+    }
+
+    /**
+     * 目录中的 class 文件按路径排序，保证每次分批的方式相同
+     *
+     * @param root 作为输入的 class 目录，直接作为输入的 class 文件为 null
+     */
+    private static void collectInputs(File input, File root, List<File> jars, List<File> classFiles,
+                                      List<File> classRoots) {
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                collectInputs(file, root, jars, classFiles, classRoots);
+            }
+        } else if (input.getName().endsWith(".jar")) {
+            jars.add(input);
+        } else if (input.getName().endsWith(".class")) {
+            classFiles.add(input);
+            classRoots.add(root);
+        }
+    }
+}
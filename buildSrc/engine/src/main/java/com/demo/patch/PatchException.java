@@ -0,0 +1,18 @@
+package com.demo.patch;
+
+/**
+ * 补丁引擎中无法继续处理的错误，如配置不合法、校验失败。在 Gradle 中执行时会中断构建，
+ * 在命令行中执行时以非 0 的退出码结束
+ */
+public class PatchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PatchException(String message) {
+        super(message);
+    }
+
+    public PatchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,396 @@
+package com.demo.patch;
+
+import com.android.tools.r8.CompilationFailedException;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+public class PatchGenerator {
+
+    // 作为基准的 class 文件名和摘要，通过内存映射读取，开启守护进程缓存时使用缓存中读到堆上的索引。
+    // 一般只有上一次编译的备份，为多个发布版本生成补丁时还包括各个版本的摘要，只保留可以比较的基准
+    private List<HexIndex> prevHexes = new ArrayList<>();
+    private Logger logger;
+    // 在插桩工作项中使用时为 null，只比较摘要、收集补丁 class，不生成补丁
+    private File patchFile;
+    private File jarFile;
+    // 需要放入补丁包的 class，按类名排序，保证并行插桩时补丁包内容与处理顺序无关
+    private Map<String, byte[]> patchClasses = new ConcurrentSkipListMap<>();
+    private PatchSettings patchSettings;
+    private PatchReport report;
+
+    /**
+     * 生成补丁使用的构造方法
+     *
+     * @param patchFile   补丁包
+     * @param jarFile     需要打补丁的类组成的 jar 包，只在使用 dx 时生成
+     * @param hexFile     作为基准的摘要索引
+     * @param daemonCache 守护进程缓存，没有开启时为 null
+     */
+    public PatchGenerator(Logger logger, DigestAlgorithm algorithm, PatchSettings patchSettings, File patchFile,
+                          File jarFile, File hexFile, DaemonCache daemonCache, PatchReport report) {
+        this(logger, algorithm, Collections.singletonList(hexFile), daemonCache, report);
+        this.patchSettings = patchSettings;
+        this.patchFile = patchFile;
+        this.jarFile = jarFile;
+    }
+
+    /**
+     * 插桩工作项中使用的构造方法，只负责与上一次编译的摘要比较并收集需要放入补丁的 class，
+     * 结果由 patch 任务合并后再生成补丁
+     */
+    PatchGenerator(Logger logger, DigestAlgorithm algorithm, File hexFile, PatchReport report) {
+        this(logger, algorithm, Collections.singletonList(hexFile), null, report);
+    }
+
+    /**
+     * 与多个基准比较，与其中任何一个不同的 class 都会被收集
+     *
+     * @param daemonCache 守护进程缓存，没有开启时为 null
+     */
+    PatchGenerator(Logger logger, DigestAlgorithm algorithm, List<File> hexFiles, DaemonCache daemonCache,
+                   PatchReport report) {
+        this.logger = logger;
+        this.report = report;
+        try {
+            for (File hexFile : hexFiles) {
+                openBaseline(algorithm, hexFile, daemonCache);
+            }
+        } catch (PatchException e) {
+            // 已经打开的基准可能是内存映射，不能等到 GC 才释放
+            close();
+            throw e;
+        }
+    }
+
+    private void openBaseline(DigestAlgorithm algorithm, File hexFile, DaemonCache daemonCache) {
+        // 从备份文件中读取上一次编译生成的 class 文件名和 md5 值，如果备份文件不存在，可能是首次编译
+        long begin = report.begin();
+        try {
+            HexIndex hexes = HexIndex.open(hexFile, daemonCache);
+            report.end(PatchReport.Phase.READ_BASELINE, begin, hexFile.length(), 0);
+            if (hexes != null && hexes.algorithm() != algorithm) {
+                // 摘要无法比较，不能静默地得到一个空补丁当作成功，比如升级插件后默认算法变化时为已发布的版本打补丁
+                DigestAlgorithm baselineAlgorithm = hexes.algorithm();
+                hexes.close();
+                throw new PatchException("备份文件 " + hexFile.getAbsolutePath() + " 使用的摘要算法 "
+                        + baselineAlgorithm + " 与当前配置的 " + algorithm + " 不一致，无法判断哪些 class 有变化。"
+                        + "为这个基准打补丁请把摘要算法配置为 " + baselineAlgorithm.name().toLowerCase(Locale.ROOT)
+                        + "（patch{} 中的 digest 或命令行的 --digest）；要改用新的算法，先删除这个备份文件，"
+                        + "重新编译生成新的基准");
+            } else if (hexes != null && hexes.instrumentVersion() != ClassUtils.INSTRUMENT_VERSION) {
+                // 旧版本插件生成的备份与本次的插桩结果无法比较，当作首次编译，只保存新的备份。
+                // 发布版本在 PatchEngine.prepare 中已经检查过，这里只会是上一次编译的备份
+                logger.info("备份文件 " + hexFile.getAbsolutePath() + " 的插桩版本是 " + hexes.instrumentVersion()
+                        + "，不与它比较");
+                hexes.close();
+            } else if (hexes != null && hexes.isEmpty()) {
+                hexes.close();
+            } else if (hexes != null) {
+                logger.info("从备份文件 " + hexFile.getAbsolutePath() + " 中读取摘要");
+                prevHexes.add(hexes);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 检查本次编译的摘要与上一次的是否相同，如果不同说明文件
+     * 有变化，需要打包进补丁包。该方法会被多个插桩线程同时调用
+     *
+     * @param className class 文件全类名对应的路径
+     * @param high      新编译后 class 文件摘要的高 64 位
+     * @param low       新编译后 class 文件摘要的低 64 位
+     * @param bytes     新编译后 class 文件的字节内容
+     */
+    public void checkClass(String className, long high, long low, byte[] bytes) {
+        if (isChanged(className, high, low)) {
+            patchClasses.put(className, bytes);
+            logger.info("放入补丁包，文件路径：" + className);
+        }
+    }
+
+    /**
+     * 与 {@link #checkClass(String, long, long, byte[])} 相同，bytes 是池化的缓冲区，
+     * 只使用前 length 个字节，需要放入补丁包时才复制
+     */
+    public void checkClass(String className, long high, long low, byte[] bytes, int length) {
+        if (isChanged(className, high, low)) {
+            patchClasses.put(className, Arrays.copyOf(bytes, length));
+            logger.info("放入补丁包，文件路径：" + className);
+        }
+    }
+
+    /**
+     * 判断 class 是否需要放入补丁包，用于在读取 class 内容之前先做判断
+     */
+    public boolean isChanged(String className, long high, long low) {
+        // 如果摘要不在备份中或者与备份中的值不相等，就要放入补丁包
+        for (HexIndex hexes : prevHexes) {
+            if (!hexes.matches(className, high, low)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 本次收集到的补丁 class，按类名排序
+     */
+    public Map<String, byte[]> getPatchClasses() {
+        return Collections.unmodifiableMap(patchClasses);
+    }
+
+    /**
+     * 合并插桩工作项收集到的补丁 class，只保留与本生成器的基准相比有变化的类。
+     * 工作项与多个基准比较时，收集到的是所有基准的并集
+     *
+     * @param hexes 本次编译的全部摘要
+     */
+    public void addChangedClasses(Map<String, byte[]> classes, DigestTable hexes) {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            int id = hexes.indexOf(entry.getKey());
+            if (id >= 0 && isChanged(entry.getKey(), hexes.high(id), hexes.low(id))) {
+                patchClasses.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 把受有变化的类影响、自身没有变化的类也放入补丁包，需要在所有类检查完之后调用
+     *
+     * @param prev    上一次编译的依赖索引
+     * @param current 本次编译的依赖索引
+     * @param sources 类的路径到它所在的 class 文件或 jar 包
+     */
+    public void addDependents(DependencyIndex prev, DependencyIndex current, Map<String, File> sources) {
+        if (prev == null || patchClasses.isEmpty()) {
+            return;
+        }
+        Set<String> affected = current.affectedBy(prev, new ArrayList<>(patchClasses.keySet()));
+        // 按所在文件分组，每个 jar 包只打开一次
+        Map<File, List<String>> classesBySource = new LinkedHashMap<>();
+        for (String className : affected) {
+            File source = sources.get(className);
+            if (source == null) {
+                logger.warn("找不到受影响的类所在的文件：" + className);
+                continue;
+            }
+            List<String> classNames = classesBySource.get(source);
+            if (classNames == null) {
+                classNames = new ArrayList<>();
+                classesBySource.put(source, classNames);
+            }
+            classNames.add(className);
+        }
+
+        int count = 0;
+        for (Map.Entry<File, List<String>> entry : classesBySource.entrySet()) {
+            File source = entry.getKey();
+            try {
+                if (source.getName().endsWith(".jar")) {
+                    JarFile jar = new JarFile(source);
+                    try {
+                        for (String className : entry.getValue()) {
+                            JarEntry jarEntry = jar.getJarEntry(className);
+                            if (jarEntry == null) {
+                                continue;
+                            }
+                            InputStream inputStream = jar.getInputStream(jarEntry);
+                            try {
+                                patchClasses.put(className, IOUtils.toByteArray(inputStream));
+                                count++;
+                            } finally {
+                                inputStream.close();
+                            }
+                            logger.info("依赖的类有变化，放入补丁包：" + className);
+                        }
+                    } finally {
+                        jar.close();
+                    }
+                } else {
+                    String className = entry.getValue().get(0);
+                    patchClasses.put(className, Files.readAllBytes(source.toPath()));
+                    count++;
+                    logger.info("依赖的类有变化，放入补丁包：" + className);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        report.setDependents(count);
+    }
+
+    /**
+     * 释放上一次编译的备份文件，之后才能用本次编译的结果覆盖它
+     */
+    public void close() {
+        for (HexIndex hexes : prevHexes) {
+            hexes.close();
+        }
+        prevHexes.clear();
+    }
+
+    private long patchClassesSize() {
+        long size = 0;
+        for (byte[] bytes : patchClasses.values()) {
+            size += bytes.length;
+        }
+        return size;
+    }
+
+    /**
+     * 将需要打补丁的 class 编译成 dex 补丁包。默认在进程内使用 D8 直接编译内存中的 class，
+     * D8 不可用或编译失败时退回到 dx 命令。开启 delta 时还会生成与上一个补丁包的差分文件
+     */
+    public void generate() throws Exception {
+        report.setPatched(patchClasses.size());
+        if (patchClasses.isEmpty()) {
+            return;
+        }
+
+        File prevPatchFile = new File(patchFile.getParentFile(), "patch.prev.jar");
+        File deltaFile = new File(patchFile.getParentFile(), PatchDelta.DELTA_FILE_NAME);
+        File manifestFile = new File(patchFile.getParentFile(), PatchDelta.MANIFEST_FILE_NAME);
+        File patchManifestFile = new File(patchFile.getParentFile(), PatchManifest.FILE_NAME);
+        // 旧的差分文件对应的是上一个补丁包，无论本次能否生成差分都要删除
+        deltaFile.delete();
+        manifestFile.delete();
+        patchManifestFile.delete();
+        if (patchSettings.delta && patchFile.exists()) {
+            Files.copy(patchFile.toPath(), prevPatchFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        dex();
+
+        // 运行时加载补丁前按清单校验补丁文件
+        if (patchFile.exists()) {
+            PatchManifest.write(patchManifestFile, Collections.singletonList(patchFile));
+        }
+
+        if (patchSettings.delta && prevPatchFile.exists() && patchFile.exists()) {
+            long begin = report.begin();
+            try {
+                PatchDelta.write(prevPatchFile, patchFile, deltaFile, manifestFile);
+                report.end(PatchReport.Phase.DELTA, begin, prevPatchFile.length() + patchFile.length(),
+                        deltaFile.length() + manifestFile.length());
+                logger.info("差分文件：" + deltaFile + "，" + deltaFile.length() + " 字节，完整补丁包 "
+                        + patchFile.length() + " 字节");
+            } catch (IOException e) {
+                // 差分文件生成失败不影响完整的补丁包
+                e.printStackTrace();
+                deltaFile.delete();
+                manifestFile.delete();
+            }
+        }
+    }
+
+    private void dex() throws Exception {
+        // 引用数超过单个 dex 的上限时分成多个 dex，每个分片单独编译，补丁包中依次为 classes.dex、classes2.dex...
+        List<Map<String, byte[]>> shards = DexSharder.shard(patchClasses, DexSharder.MAX_REFERENCES);
+        report.setAttribute("dexShards", shards.size());
+        if (shards.size() > 1) {
+            logger.warn("补丁 class 引用的方法或字段超过单个 dex 的上限，分成 " + shards.size() + " 个 dex");
+        }
+        if ("d8".equalsIgnoreCase(patchSettings.dexer)) {
+            long begin = report.begin();
+            try {
+                Map<String, byte[]> dexFiles = PatchDexer.dex(shards, patchSettings.minApiLevel);
+                report.end(PatchReport.Phase.DEX, begin, patchClassesSize(), 0);
+                begin = report.begin();
+                PatchJarWriter.write(dexFiles, patchSettings.compressLevel, patchFile);
+                report.end(PatchReport.Phase.WRITE_PATCH, begin, 0, patchFile.length());
+                logger.info("\npatch generated in : " + patchFile);
+                return;
+            } catch (CompilationFailedException | LinkageError e) {
+                logger.warn("D8 生成补丁失败，改用 dx 命令：" + e);
+            }
+        }
+        generateWithDx(shards);
+    }
+
+    /**
+     * 运行 dx 命令将 class 编译成 dex 文件。每个分片写成一个 jar 包，分别编译成一个 dex 文件，
+     * 再与 D8 的输出一样写成可复现的补丁包
+     */
+    private void generateWithDx(List<Map<String, byte[]>> shards) throws Exception {
+        String dxPath = patchSettings.dxPath;
+        if (dxPath == null) {
+            throw new IOException("找不到 dx 命令，请配置 sdk 路径或使用 D8 生成补丁");
+        }
+        // 第一个分片使用 jarFile，之后的依次为 patchClass2.jar、patchClass3.jar...
+        String baseName = jarFile.getName().substring(0, jarFile.getName().lastIndexOf('.'));
+        List<File> shardJars = new ArrayList<>();
+        long begin = report.begin();
+        long jarsSize = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            File shardJar = i == 0 ? jarFile : new File(jarFile.getParentFile(), baseName + (i + 1) + ".jar");
+            PatchJarWriter.write(shards.get(i), patchSettings.compressLevel, shardJar);
+            shardJars.add(shardJar);
+            jarsSize += shardJar.length();
+        }
+        report.end(PatchReport.Phase.WRITE_PATCH, begin, patchClassesSize(), jarsSize);
+
+        // 输出文件以 .dex 结尾时 dx 直接输出 dex 文件，不打包成 jar 包
+        Map<String, byte[]> dexFiles = new LinkedHashMap<>();
+        begin = report.begin();
+        for (int i = 0; i < shardJars.size(); i++) {
+            File shardJar = shardJars.get(i);
+            File dexFile = new File(shardJar.getParentFile(),
+                    baseName + (i == 0 ? "" : String.valueOf(i + 1)) + ".dex");
+            exec(dxPath, "--dex", "--output=" + dexFile.getAbsolutePath(), shardJar.getAbsolutePath());
+            dexFiles.put(PatchDexer.dexFileName(i), Files.readAllBytes(dexFile.toPath()));
+            dexFile.delete();
+            // 删除 class 组成的 jar 包
+            shardJar.delete();
+        }
+        report.end(PatchReport.Phase.DEX, begin, jarsSize, 0);
+
+        // dx 的输出不带时间等信息，写成补丁包的规则与 D8 相同，补丁包可复现
+        begin = report.begin();
+        PatchJarWriter.write(dexFiles, patchSettings.compressLevel, patchFile);
+        report.end(PatchReport.Phase.WRITE_PATCH, begin, 0, patchFile.length());
+        logger.info("\npatch generated in : " + patchFile);
+    }
+
+    /**
+     * 执行命令并等待结束，输出写入日志，退出码不为 0 时抛出异常
+     */
+    private void exec(String... command) throws IOException, InterruptedException {
+        String commandLine = String.join(" ", command);
+        logger.info("执行命令：" + commandLine);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        InputStream inputStream = process.getInputStream();
+        try {
+            output = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        } finally {
+            inputStream.close();
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("命令执行失败：" + commandLine + "\n" + output);
+        }
+        if (!output.isEmpty()) {
+            logger.info(output);
+        }
+    }
+}
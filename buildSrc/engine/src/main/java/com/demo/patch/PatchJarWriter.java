@@ -0,0 +1,159 @@
+package com.demo.patch;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 生成内容可复现的补丁包：条目按名字排序，使用固定的时间，不写入与环境有关的扩展字段，
+ * 相同的输入总是得到字节完全相同的 jar 包。
+ * <p>
+ * 压缩在 D8 的线程池中并行执行，每个条目按 128KB 切块，每块以前一块末尾的 32KB 作为预置字典
+ * 单独压缩，除最后一块外都以 SYNC_FLUSH 结束，拼接起来就是一个完整的 deflate 流。
+ * 切块的方式只与内容有关，与线程数和调度顺序无关，所以结果也是确定的
+ */
+final class PatchJarWriter {
+
+    /**
+     * 与 Gradle 生成可复现归档时使用的时间相同，zip 的时间字段不能早于 1980 年
+     */
+    static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+    /**
+     * 压缩级别为 0 时不压缩，条目以 STORED 方式保存
+     */
+    static final int STORED = 0;
+
+    private static final int CHUNK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private PatchJarWriter() {
+    }
+
+    /**
+     * @param entries 条目名到内容
+     * @param level   压缩级别 0-9，0 表示不压缩
+     */
+    static void write(Map<String, byte[]> entries, int level, File jarFile) throws IOException {
+        if (level < STORED || level > Deflater.BEST_COMPRESSION) {
+            throw new PatchException("补丁包的压缩级别只能是 0-9：" + level);
+        }
+        SortedMap<String, byte[]> sortedEntries = new TreeMap<>(entries);
+        ExecutorService executor = PatchDexer.getExecutor();
+
+        // 先提交所有条目的所有切块，再按顺序取结果
+        List<List<Future<byte[]>>> chunks = new ArrayList<>();
+        for (byte[] data : sortedEntries.values()) {
+            chunks.add(level == STORED ? null : deflate(executor, data, level));
+        }
+
+        jarFile.getParentFile().mkdirs();
+        jarFile.delete();
+        ZipArchiveOutputStream outputStream = new ZipArchiveOutputStream(jarFile);
+        try {
+            outputStream.setUseZip64(Zip64Mode.Never);
+            int index = 0;
+            for (Map.Entry<String, byte[]> entry : sortedEntries.entrySet()) {
+                byte[] data = entry.getValue();
+                byte[] raw = level == STORED ? data : concat(chunks.get(index));
+                ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getKey());
+                zipEntry.setTime(ENTRY_TIME);
+                zipEntry.setMethod(level == STORED ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED);
+                zipEntry.setSize(data.length);
+                zipEntry.setCompressedSize(raw.length);
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                zipEntry.setCrc(crc.getValue());
+                outputStream.addRawArchiveEntry(zipEntry, new ByteArrayInputStream(raw));
+                index++;
+            }
+            outputStream.finish();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static List<Future<byte[]>> deflate(ExecutorService executor, final byte[] data, final int level) {
+        List<Future<byte[]>> futures = new ArrayList<>();
+        int start = 0;
+        do {
+            final int chunkStart = start;
+            final int chunkLength = Math.min(CHUNK_SIZE, data.length - start);
+            final boolean last = chunkStart + chunkLength == data.length;
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return deflateChunk(data, chunkStart, chunkLength, last, level);
+                }
+            }));
+            start += chunkLength;
+        } while (start < data.length);
+        return futures;
+    }
+
+    private static byte[] deflateChunk(byte[] data, int start, int length, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            int dictionaryLength = Math.min(DICTIONARY_SIZE, start);
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(data, start - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(data, start, length);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    outputStream.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // 输出缓冲区被填满说明还有没有输出的数据，需要继续 flush
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    outputStream.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] concat(List<Future<byte[]>> futures) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (Future<byte[]> future : futures) {
+            outputStream.write(get(future));
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("压缩补丁包被中断", e);
+        } catch (ExecutionException e) {
+            throw new IOException("压缩补丁包失败", e.getCause());
+        }
+    }
+}
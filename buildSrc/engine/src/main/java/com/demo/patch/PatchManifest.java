@@ -0,0 +1,78 @@
+package com.demo.patch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+/**
+ * 补丁清单 patch.manifest，与补丁包一起下发，运行时由 patchloader 模块中的 PatchManifest 读取。
+ * 格式与差分清单一致，每行一个 key=value：
+ * <pre>
+ * version=1
+ * patch.count=1
+ * patch.0.name=patch.jar
+ * patch.0.size=1024
+ * patch.0.sha256=...
+ * patch.0.dex=classes.dex,classes2.dex
+ * </pre>
+ * 补丁按下标顺序插入到 dexElements 的最前面，下标小的优先。
+ * dex 是补丁包中的 dex 文件，按加载顺序排列，没有这一项的旧清单只有 classes.dex
+ */
+public final class PatchManifest {
+
+    public static final String FILE_NAME = "patch.manifest";
+
+    private static final int VERSION = 1;
+
+    private PatchManifest() {
+    }
+
+    /**
+     * @param patchFiles 补丁文件，都在清单文件所在的目录中，按加载顺序排列
+     */
+    public static void write(File manifestFile, List<File> patchFiles) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("version=").append(VERSION).append('\n');
+        manifest.append("patch.count=").append(patchFiles.size()).append('\n');
+        for (int i = 0; i < patchFiles.size(); i++) {
+            File patchFile = patchFiles.get(i);
+            byte[] bytes = Files.readAllBytes(patchFile.toPath());
+            manifest.append("patch.").append(i).append(".name=").append(patchFile.getName()).append('\n');
+            manifest.append("patch.").append(i).append(".size=").append(bytes.length).append('\n');
+            manifest.append("patch.").append(i).append(".sha256=").append(PatchDelta.sha256(bytes)).append('\n');
+            manifest.append("patch.").append(i).append(".dex=").append(join(dexFiles(patchFile))).append('\n');
+        }
+        Files.write(manifestFile.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 补丁包中的 dex 文件，按 classes.dex、classes2.dex... 的顺序，遇到缺失的编号为止，与 ART 加载的规则一致
+     */
+    static List<String> dexFiles(File patchFile) throws IOException {
+        List<String> dexFiles = new ArrayList<>();
+        ZipFile zipFile = new ZipFile(patchFile);
+        try {
+            while (zipFile.getEntry(PatchDexer.dexFileName(dexFiles.size())) != null) {
+                dexFiles.add(PatchDexer.dexFileName(dexFiles.size()));
+            }
+        } finally {
+            zipFile.close();
+        }
+        return dexFiles;
+    }
+
+    private static String join(List<String> names) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,316 @@
+package com.demo.patch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记录一次插桩和生成补丁过程中每个阶段的耗时、读写字节数以及 class 的处理数量，
+ * 结束后以 json 格式写入变体的补丁输出目录，便于在 CI 中统计构建耗时的变化。
+ * 多个插桩线程会同时记录，所有计数都是原子的
+ */
+public class PatchReport {
+
+    public static final String FILE_NAME = "report.json";
+
+    private static final int VERSION = 1;
+
+    public enum Phase {
+        /**
+         * 读取上一次编译的摘要备份
+         */
+        READ_BASELINE,
+        /**
+         * 读取输入的 class 文件和 jar 包中的 class
+         */
+        SCAN,
+        /**
+         * 插桩以及插桩结果校验
+         */
+        INSTRUMENT,
+        /**
+         * 计算插桩后 class 的摘要
+         */
+        HASH,
+        /**
+         * 写回插桩后的 class 文件和 jar 包
+         */
+        WRITE_JARS,
+        /**
+         * 保存本次编译的摘要备份
+         */
+        WRITE_BASELINE,
+        /**
+         * 把补丁 class 写成 jar 包，只有使用 dx 时才有
+         */
+        WRITE_PATCH,
+        /**
+         * 把补丁 class 编译成 dex
+         */
+        DEX,
+        /**
+         * 生成与上一个补丁包的差分文件
+         */
+        DELTA
+    }
+
+    /**
+     * 一个阶段的统计。time 是所有线程在该阶段耗时的总和，wall 是该阶段第一次开始到最后一次结束的时间，
+     * 并行处理时 time 会大于 wall
+     */
+    private static class PhaseStats {
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+
+        long wallNanos() {
+            long start = firstStart.get();
+            long end = lastEnd.get();
+            return start == Long.MAX_VALUE ? 0 : end - start;
+        }
+    }
+
+    // 插桩工作项与 patch 任务在同一个进程中，合并时取最早的开始时间
+    private final AtomicLong startNanos = new AtomicLong(System.nanoTime());
+    private final long timestamp = System.currentTimeMillis();
+    private final PhaseStats[] phases = new PhaseStats[Phase.values().length];
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+
+    private final AtomicLong inputs = new AtomicLong();
+    private final AtomicLong upToDateInputs = new AtomicLong();
+    private final AtomicLong instrumented = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong carried = new AtomicLong();
+    private final AtomicLong patched = new AtomicLong();
+    private final AtomicLong dependents = new AtomicLong();
+
+    /**
+     * 插桩工作项写入结果文件的计数，顺序与 {@link #mergeCounters(DataInput)} 一致
+     */
+    private AtomicLong[] counters() {
+        return new AtomicLong[]{inputs, upToDateInputs, instrumented, skipped, cacheHits, carried};
+    }
+
+    public PatchReport() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new PhaseStats();
+        }
+    }
+
+    /**
+     * 报告开头输出的附加信息，如变体名和插件配置，值只能是字符串、数字或布尔值
+     */
+    public synchronized void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * 开始计时，返回值传给 {@link #end(Phase, long)}
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    public void end(Phase phase, long begin) {
+        long end = System.nanoTime();
+        PhaseStats stats = phases[phase.ordinal()];
+        stats.nanos.addAndGet(end - begin);
+        updateMin(stats.firstStart, begin);
+        updateMax(stats.lastEnd, end);
+    }
+
+    public void end(Phase phase, long begin, long bytesRead, long bytesWritten) {
+        end(phase, begin);
+        addBytes(phase, bytesRead, bytesWritten);
+    }
+
+    public void addBytes(Phase phase, long bytesRead, long bytesWritten) {
+        PhaseStats stats = phases[phase.ordinal()];
+        if (bytesRead != 0) {
+            stats.bytesRead.addAndGet(bytesRead);
+        }
+        if (bytesWritten != 0) {
+            stats.bytesWritten.addAndGet(bytesWritten);
+        }
+    }
+
+    /**
+     * 处理了一个输入文件，upToDate 表示增量处理时文件没有变化，直接沿用了上次的结果
+     */
+    public void inputProcessed(boolean upToDate) {
+        inputs.incrementAndGet();
+        if (upToDate) {
+            upToDateInputs.incrementAndGet();
+        }
+    }
+
+    public void classInstrumented() {
+        instrumented.incrementAndGet();
+    }
+
+    /**
+     * Application 或 Android 自身的类，不插桩
+     */
+    public void classSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    public void classesSkipped(int count) {
+        skipped.addAndGet(count);
+    }
+
+    /**
+     * 从插桩缓存中取得了结果
+     */
+    public void classesFromCache(int count) {
+        cacheHits.addAndGet(count);
+    }
+
+    /**
+     * 输入文件没有变化，沿用了上次记录的摘要
+     */
+    public void classesCarried(int count) {
+        carried.addAndGet(count);
+    }
+
+    public void setPatched(int count) {
+        patched.set(count);
+    }
+
+    /**
+     * 自身没有变化、因为依赖的类变化而放入补丁的类
+     */
+    public void setDependents(int count) {
+        dependents.set(count);
+    }
+
+    /**
+     * 把各阶段的统计和 class 计数写入插桩工作项的结果文件
+     */
+    void writeCounters(DataOutput output) throws IOException {
+        output.writeLong(startNanos.get());
+        for (AtomicLong counter : counters()) {
+            output.writeLong(counter.get());
+        }
+        output.writeInt(phases.length);
+        for (PhaseStats stats : phases) {
+            output.writeLong(stats.nanos.get());
+            output.writeLong(stats.firstStart.get());
+            output.writeLong(stats.lastEnd.get());
+            output.writeLong(stats.bytesRead.get());
+            output.writeLong(stats.bytesWritten.get());
+        }
+    }
+
+    /**
+     * 合并插桩工作项的统计
+     */
+    void mergeCounters(DataInput input) throws IOException {
+        updateMin(startNanos, input.readLong());
+        for (AtomicLong counter : counters()) {
+            counter.addAndGet(input.readLong());
+        }
+        int count = input.readInt();
+        if (count != phases.length) {
+            throw new IOException("报告阶段数量不一致");
+        }
+        for (PhaseStats stats : phases) {
+            stats.nanos.addAndGet(input.readLong());
+            updateMin(stats.firstStart, input.readLong());
+            updateMax(stats.lastEnd, input.readLong());
+            stats.bytesRead.addAndGet(input.readLong());
+            stats.bytesWritten.addAndGet(input.readLong());
+        }
+    }
+
+    /**
+     * 以 json 格式写入报告
+     */
+    public void write(File reportFile) throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        json.append("  \"version\": ").append(VERSION).append(",\n");
+        json.append("  \"timestamp\": ").append(timestamp).append(",\n");
+        synchronized (this) {
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                json.append("  ").append(quote(entry.getKey())).append(": ");
+                Object value = entry.getValue();
+                if (value instanceof Number || value instanceof Boolean) {
+                    json.append(value);
+                } else {
+                    json.append(quote(String.valueOf(value)));
+                }
+                json.append(",\n");
+            }
+        }
+        json.append("  \"wallNanos\": ").append(System.nanoTime() - startNanos.get()).append(",\n");
+        json.append("  \"inputs\": {\"total\": ").append(inputs.get())
+                .append(", \"upToDate\": ").append(upToDateInputs.get()).append("},\n");
+        json.append("  \"classes\": {\"instrumented\": ").append(instrumented.get())
+                .append(", \"skipped\": ").append(skipped.get())
+                .append(", \"cacheHits\": ").append(cacheHits.get())
+                .append(", \"carried\": ").append(carried.get())
+                .append(", \"patched\": ").append(patched.get())
+                .append(", \"dependents\": ").append(dependents.get()).append("},\n");
+        json.append("  \"phases\": [\n");
+        Phase[] values = Phase.values();
+        for (int i = 0; i < values.length; i++) {
+            PhaseStats stats = phases[i];
+            json.append("    {\"name\": ").append(quote(values[i].name().toLowerCase(Locale.US)))
+                    .append(", \"timeNanos\": ").append(stats.nanos.get())
+                    .append(", \"wallNanos\": ").append(stats.wallNanos())
+                    .append(", \"bytesRead\": ").append(stats.bytesRead.get())
+                    .append(", \"bytesWritten\": ").append(stats.bytesWritten.get())
+                    .append(i == values.length - 1 ? "}\n" : "},\n");
+        }
+        json.append("  ]\n");
+        json.append("}\n");
+
+        reportFile.getParentFile().mkdirs();
+        Files.write(reportFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String quote(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private static void updateMin(AtomicLong value, long candidate) {
+        long current;
+        while (candidate < (current = value.get())) {
+            if (value.compareAndSet(current, candidate)) {
+                return;
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong value, long candidate) {
+        long current;
+        while (candidate > (current = value.get())) {
+            if (value.compareAndSet(current, candidate)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.demo.patch;
+
+import java.io.Serializable;
+
+/**
+ * 生成补丁包的配置，与 {@link InstrumentSettings} 一起交给 {@link PatchEngine}。只包含与 Android 工程无关的值，
+ * 由 Gradle 插件从 patch{} 和 android{} 中读取，或者由命令行参数给出
+ */
+public class PatchSettings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 生成 dex 使用的工具，d8 或 dx
+     */
+    final String dexer;
+    /**
+     * 是否生成与上一个补丁包的差分文件
+     */
+    final boolean delta;
+    /**
+     * 补丁包的压缩级别，0 表示不压缩
+     */
+    final int compressLevel;
+    /**
+     * app 的 minSdkVersion
+     */
+    final int minApiLevel;
+    /**
+     * dx 命令的路径，D8 不可用时使用。找不到 sdk 时为 null，这时只能使用 D8
+     */
+    final String dxPath;
+    /**
+     * 把本次编译记录到发布历史中使用的 tag，为 null 时不记录
+     */
+    final String baselineTag;
+
+    public PatchSettings(String dexer, boolean delta, int compressLevel, int minApiLevel, String dxPath,
+                         String baselineTag) {
+        this.dexer = dexer;
+        this.delta = delta;
+        this.compressLevel = compressLevel;
+        this.minApiLevel = minApiLevel;
+        this.dxPath = dxPath;
+        this.baselineTag = baselineTag;
+    }
+}
@@ -0,0 +1,165 @@
+package com.demo.patch;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DexSharderTest {
+
+    @Test
+    public void emptyInputHasNoShard() {
+        assertTrue(DexSharder.shard(new HashMap<String, byte[]>(), 10).isEmpty());
+    }
+
+    @Test
+    public void smallPatchIsOneShard() {
+        Map<String, byte[]> classes = new HashMap<>();
+        put(classes, "com/demo/A", 3, 0);
+        put(classes, "com/demo/B", 3, 0);
+        put(classes, "com/demo/B$1", 3, 0);
+
+        List<Map<String, byte[]>> shards = DexSharder.shard(classes, 100);
+        assertEquals(1, shards.size());
+        assertEquals(classes.keySet(), shards.get(0).keySet());
+    }
+
+    @Test
+    public void innerClassesShareOuterClassShard() {
+        Map<String, byte[]> classes = new HashMap<>();
+        put(classes, "com/demo/A", 2, 0);
+        put(classes, "com/demo/Foo", 2, 0);
+        put(classes, "com/demo/Foo$1", 2, 0);
+        put(classes, "com/demo/Foo$Inner", 2, 0);
+        put(classes, "com/demo/FooBar", 2, 0);
+
+        // Foo$1.class 按类名排在 Foo.class 之前，A 和 Foo 这一组放不进同一个分片
+        List<Map<String, byte[]>> shards = DexSharder.shard(classes, 7);
+        assertShards(shards, 7,
+                Arrays.asList("com/demo/A.class"),
+                Arrays.asList("com/demo/Foo$1.class", "com/demo/Foo$Inner.class", "com/demo/Foo.class"),
+                Arrays.asList("com/demo/FooBar.class"));
+    }
+
+    @Test
+    public void splitsAtMethodReferenceLimit() {
+        Map<String, byte[]> classes = new HashMap<>();
+        put(classes, "com/demo/A", 4, 0);
+        put(classes, "com/demo/B", 4, 0);
+        put(classes, "com/demo/C", 4, 0);
+
+        // 恰好等于上限时不拆分
+        assertShards(DexSharder.shard(classes, 8), 8,
+                Arrays.asList("com/demo/A.class", "com/demo/B.class"),
+                Arrays.asList("com/demo/C.class"));
+        assertShards(DexSharder.shard(classes, 7), 7,
+                Arrays.asList("com/demo/A.class"),
+                Arrays.asList("com/demo/B.class"),
+                Arrays.asList("com/demo/C.class"));
+    }
+
+    @Test
+    public void splitsAtFieldReferenceLimit() {
+        Map<String, byte[]> classes = new HashMap<>();
+        put(classes, "com/demo/A", 0, 5);
+        put(classes, "com/demo/B", 0, 5);
+
+        assertShards(DexSharder.shard(classes, 9), 9,
+                Arrays.asList("com/demo/A.class"),
+                Arrays.asList("com/demo/B.class"));
+    }
+
+    @Test
+    public void sharedReferencesAreCountedOnce() {
+        Map<String, byte[]> classes = new HashMap<>();
+        // 每个类有 7 个方法引用，两个类调用同样的 Object.<init> 和 4 个方法，合在一起只有 2 + 2 + 1 + 4 个
+        classes.put("com/demo/A.class", callerClass("com/demo/A", 4));
+        classes.put("com/demo/B.class", callerClass("com/demo/B", 4));
+
+        assertShards(DexSharder.shard(classes, 9), 9,
+                Arrays.asList("com/demo/A.class", "com/demo/B.class"));
+    }
+
+    @Test
+    public void oversizedOuterClassIsSplitByClass() {
+        Map<String, byte[]> classes = new HashMap<>();
+        put(classes, "com/demo/Foo", 5, 0);
+        put(classes, "com/demo/Foo$1", 5, 0);
+        put(classes, "com/demo/Foo$2", 1, 0);
+
+        assertShards(DexSharder.shard(classes, 6), 6,
+                Arrays.asList("com/demo/Foo$1.class", "com/demo/Foo$2.class"),
+                Arrays.asList("com/demo/Foo.class"));
+    }
+
+    private static void assertShards(List<Map<String, byte[]>> shards, int maxReferences, List<?>... expected) {
+        List<List<String>> actual = new ArrayList<>();
+        for (Map<String, byte[]> shard : shards) {
+            actual.add(new ArrayList<>(shard.keySet()));
+
+            Set<String> methods = new HashSet<>();
+            Set<String> fields = new HashSet<>();
+            for (byte[] bytes : shard.values()) {
+                DexSharder.collect(bytes, methods, fields);
+            }
+            assertTrue("方法引用数超过上限：" + shard.keySet(), methods.size() <= maxReferences);
+            assertTrue("字段引用数超过上限：" + shard.keySet(), fields.size() <= maxReferences);
+        }
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    /**
+     * 添加一个声明了 methodCount 个抽象方法和 fieldCount 个字段的类，没有方法体，引用数就是声明的成员数
+     */
+    private static void put(Map<String, byte[]> classes, String internalName, int methodCount, int fieldCount) {
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, internalName, null,
+                "java/lang/Object", null);
+        for (int i = 0; i < methodCount; i++) {
+            classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "m" + i, "()V", null, null)
+                    .visitEnd();
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            classWriter.visitField(Opcodes.ACC_PUBLIC, "f" + i, "I", null, null).visitEnd();
+        }
+        classWriter.visitEnd();
+        classes.put(internalName + ".class", classWriter.toByteArray());
+    }
+
+    /**
+     * 声明 call 和 {@code <init>} 两个方法，call 中调用 com/demo/Shared 的 count 个静态方法
+     */
+    private static byte[] callerClass(String internalName, int count) {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        MethodVisitor init = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+        MethodVisitor call = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "call", "()V", null,
+                null);
+        call.visitCode();
+        for (int i = 0; i < count; i++) {
+            call.visitMethodInsn(Opcodes.INVOKESTATIC, "com/demo/Shared", "s" + i, "()V", false);
+        }
+        call.visitInsn(Opcodes.RETURN);
+        call.visitMaxs(0, 0);
+        call.visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+}
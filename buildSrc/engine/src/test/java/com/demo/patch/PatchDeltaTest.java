@@ -0,0 +1,188 @@
+package com.demo.patch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PatchDeltaTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTripModifiedDex() throws IOException {
+        byte[] base = randomBytes(1, 64 * 1024);
+        // 模拟新增字符串和方法：中间插入一段、删除一段、改写几个字节
+        byte[] target = concat(Arrays.copyOfRange(base, 0, 10000), randomBytes(2, 300),
+                Arrays.copyOfRange(base, 10000, 40000), Arrays.copyOfRange(base, 41000, base.length));
+        target[5] ^= 1;
+        target[target.length - 1] ^= 1;
+
+        Delta delta = roundTrip(dexes("classes.dex", base), dexes("classes.dex", target));
+        assertTrue("差分文件应当远小于新的 dex", delta.bytes.length < target.length / 4);
+    }
+
+    @Test
+    public void roundTripFromEmptyBase() throws IOException {
+        byte[] target = randomBytes(3, 8 * 1024);
+        Delta delta = roundTrip(new TreeMap<String, byte[]>(), dexes("classes.dex", target));
+        // 旧补丁中没有对应的 dex，清单中也不应该有 base 的校验值
+        assertFalse(delta.manifest.containsKey("base.classes.dex.sha256"));
+    }
+
+    @Test
+    public void roundTripIdenticalPatches() throws IOException {
+        byte[] dex = randomBytes(4, 32 * 1024);
+        Delta delta = roundTrip(dexes("classes.dex", dex), dexes("classes.dex", dex.clone()));
+        assertTrue("相同的 dex 只需要 COPY 指令", delta.bytes.length < 64);
+    }
+
+    @Test
+    public void roundTripAddedAndRemovedDex() throws IOException {
+        byte[] classes = randomBytes(5, 16 * 1024);
+        Map<String, byte[]> base = dexes("classes.dex", classes);
+        base.put("classes3.dex", randomBytes(6, 1024));
+        Map<String, byte[]> target = dexes("classes.dex", classes);
+        target.put("classes2.dex", randomBytes(7, 4 * 1024));
+        roundTrip(base, target);
+    }
+
+    @Test
+    public void roundTripEmptyDex() throws IOException {
+        roundTrip(dexes("classes.dex", randomBytes(8, 100)), dexes("classes.dex", new byte[0]));
+    }
+
+    @Test
+    public void rejectsModifiedBase() throws IOException {
+        byte[] base = randomBytes(9, 8 * 1024);
+        Delta delta = write(dexes("classes.dex", base), dexes("classes.dex", randomBytes(10, 8 * 1024)));
+        Map<String, byte[]> wrongBase = dexes("classes.dex", base.clone());
+        wrongBase.get("classes.dex")[100] ^= 1;
+        try {
+            PatchDelta.apply(wrongBase, delta.bytes, delta.manifest);
+            fail("旧 dex 与清单不一致时应当拒绝还原");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsModifiedDelta() throws IOException {
+        Map<String, byte[]> base = dexes("classes.dex", randomBytes(11, 8 * 1024));
+        Delta delta = write(base, dexes("classes.dex", randomBytes(12, 8 * 1024)));
+        delta.bytes[delta.bytes.length - 1] ^= 1;
+        try {
+            PatchDelta.apply(base, delta.bytes, delta.manifest);
+            fail("差分文件与清单不一致时应当拒绝还原");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static class Delta {
+        byte[] bytes;
+        Map<String, String> manifest;
+    }
+
+    /**
+     * 生成差分后还原，结果必须与新补丁逐字节相同，清单中的校验值与新补丁一致
+     */
+    private Delta roundTrip(Map<String, byte[]> base, Map<String, byte[]> target) throws IOException {
+        Delta delta = write(base, target);
+        Map<String, byte[]> restored = PatchDelta.apply(base, delta.bytes, delta.manifest);
+        assertEquals(target.keySet(), restored.keySet());
+        for (Map.Entry<String, byte[]> entry : target.entrySet()) {
+            String name = entry.getKey();
+            assertArrayEquals(name, entry.getValue(), restored.get(name));
+            assertEquals(String.valueOf(entry.getValue().length), delta.manifest.get("target." + name + ".size"));
+            assertEquals(PatchDelta.sha256(entry.getValue()), delta.manifest.get("target." + name + ".sha256"));
+            byte[] baseDex = base.get(name);
+            if (baseDex != null) {
+                assertEquals(PatchDelta.sha256(baseDex), delta.manifest.get("base." + name + ".sha256"));
+            }
+        }
+        assertEquals(PatchDelta.sha256(delta.bytes), delta.manifest.get("delta.sha256"));
+        // 不校验时的还原结果也相同
+        Map<String, byte[]> unchecked = PatchDelta.apply(base, delta.bytes, null);
+        for (Map.Entry<String, byte[]> entry : target.entrySet()) {
+            assertArrayEquals(entry.getValue(), unchecked.get(entry.getKey()));
+        }
+        return delta;
+    }
+
+    private Delta write(Map<String, byte[]> base, Map<String, byte[]> target) throws IOException {
+        File basePatch = writePatch(base);
+        File targetPatch = writePatch(target);
+        File deltaFile = temporaryFolder.newFile();
+        File manifestFile = temporaryFolder.newFile();
+        PatchDelta.write(basePatch, targetPatch, deltaFile, manifestFile);
+        Delta delta = new Delta();
+        delta.bytes = Files.readAllBytes(deltaFile.toPath());
+        delta.manifest = PatchDelta.readManifest(new ByteArrayInputStream(Files.readAllBytes(manifestFile.toPath())));
+        assertEquals(PatchDelta.readDexEntries(basePatch).keySet(), base.keySet());
+        return delta;
+    }
+
+    /**
+     * 写出只包含 dex 条目的补丁包，另外放一个非 dex 条目，差分时应当被忽略
+     */
+    private File writePatch(Map<String, byte[]> dexes) throws IOException {
+        File patch = temporaryFolder.newFile();
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(patch));
+        try {
+            output.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            output.write("Manifest-Version: 1.0\n".getBytes("UTF-8"));
+            output.closeEntry();
+            for (Map.Entry<String, byte[]> entry : dexes.entrySet()) {
+                output.putNextEntry(new ZipEntry(entry.getKey()));
+                output.write(entry.getValue());
+                output.closeEntry();
+            }
+        } finally {
+            output.close();
+        }
+        return patch;
+    }
+
+    private static Map<String, byte[]> dexes(String name, byte[] dex) {
+        Map<String, byte[]> dexes = new TreeMap<>();
+        dexes.put(name, dex);
+        return dexes;
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+}
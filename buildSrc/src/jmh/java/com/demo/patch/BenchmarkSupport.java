@@ -0,0 +1,87 @@
+package com.demo.patch;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基准测试共用的工具方法
+ */
+final class BenchmarkSupport {
+
+    /**
+     * 所有基准测试使用相同的种子生成 class，保证不同版本插件的测试结果可以比较
+     */
+    static final long SEED = 20190301L;
+
+    /**
+     * 不存在的 Application，corpus 中的类都会被插桩
+     */
+    static final String APPLICATION_NAME = "com/demo/plugin/Application";
+
+    /**
+     * 与插件默认配置相同的插桩范围
+     */
+    static ClassFilter classFilter() {
+        List<String> excludes = new ArrayList<>(ClassFilter.PLATFORM_PATTERNS);
+        excludes.add("com.demo.patch");
+        excludes.add(APPLICATION_NAME);
+        return new ClassFilter(Collections.<String>emptyList(), excludes);
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 不应用 Android 插件的空工程，只用来提供 Logger，构造 PatchGenerator 不需要 android{}
+     */
+    static Project createProject(File projectDir) {
+        return ProjectBuilder.builder().withProjectDir(projectDir).build();
+    }
+
+    /**
+     * 计算 corpus 中每个类插桩后的摘要，作为基线
+     */
+    static DigestTable digestAll(SyntheticCorpus corpus, DigestAlgorithm algorithm) {
+        DigestTable table = new DigestTable(corpus.size());
+        long[] digest = new long[2];
+        for (int i = 0; i < corpus.size(); i++) {
+            algorithm.digest(ClassUtils.referHackWhenInit(corpus.classes[i]), digest);
+            table.put(corpus.path(i), digest[0], digest[1]);
+        }
+        return table;
+    }
+
+    /**
+     * 改动基线中每 changeEvery 个类中的一个，模拟上一次编译后有少量类被修改
+     */
+    static DigestTable perturb(DigestTable table, int changeEvery) {
+        DigestTable result = new DigestTable(table.size());
+        int[] ids = table.sortedIds();
+        for (int i = 0; i < ids.length; i++) {
+            long low = table.low(ids[i]);
+            result.put(table.keyAt(ids[i]), table.high(ids[i]), i % changeEvery == 0 ? ~low : low);
+        }
+        return result;
+    }
+}
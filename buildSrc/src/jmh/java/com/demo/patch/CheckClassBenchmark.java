@@ -0,0 +1,84 @@
+package com.demo.patch;
+
+import org.gradle.api.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个 class 与上一次编译的摘要比较的耗时，基线中每 100 个类有一个被修改，会放入补丁
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CheckClassBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private File dir;
+    private PatchGenerator patchGenerator;
+    private String[] paths;
+    private byte[][] classes;
+    private long[] highs;
+    private long[] lows;
+    private int cursor;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("check-bench");
+        SyntheticCorpus corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        DigestTable hexes = BenchmarkSupport.digestAll(corpus, DigestAlgorithm.MURMUR3);
+        File hexFile = new File(dir, HexIndex.FILE_NAME);
+        HexIndex.write(BenchmarkSupport.perturb(hexes, 100), DigestAlgorithm.MURMUR3, hexFile);
+
+        Project project = BenchmarkSupport.createProject(new File(dir, "project"));
+        PatchExtension patchExtension = new PatchExtension();
+        PatchSettings patchSettings = new PatchSettings(patchExtension.getDexer(), patchExtension.isDelta(),
+                patchExtension.getCompressLevel(), 1, null, null);
+        patchGenerator = new PatchGenerator(project.getLogger(), DigestAlgorithm.MURMUR3, patchSettings,
+                new File(dir, "patch.jar"), new File(dir, "patchClass.jar"), hexFile, null, new PatchReport());
+
+        paths = new String[classCount];
+        classes = new byte[classCount][];
+        highs = new long[classCount];
+        lows = new long[classCount];
+        for (int i = 0; i < classCount; i++) {
+            int id = hexes.indexOf(corpus.path(i));
+            paths[i] = corpus.path(i);
+            classes[i] = ClassUtils.referHackWhenInit(corpus.classes[i]);
+            highs[i] = hexes.high(id);
+            lows[i] = hexes.low(id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        patchGenerator.close();
+        BenchmarkSupport.deleteDir(dir);
+    }
+
+    @Benchmark
+    public PatchGenerator checkClass() {
+        int i = cursor;
+        cursor = i + 1 == classCount ? 0 : i + 1;
+        patchGenerator.checkClass(paths[i], highs[i], lows[i], classes[i]);
+        return patchGenerator;
+    }
+}
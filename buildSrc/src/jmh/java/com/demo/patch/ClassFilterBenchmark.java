@@ -0,0 +1,53 @@
+package com.demo.patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 判断一个 jar 包条目是否需要插桩的耗时，条目名一半是 corpus 中的类，一半是 androidx 中的类。
+ * 配合 -prof gc 可以看到匹配过程不分配对象
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassFilterBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    private ClassFilter classFilter;
+    private String[] names;
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        classFilter = BenchmarkSupport.classFilter();
+        SyntheticCorpus corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        names = new String[classCount * 2];
+        for (int i = 0; i < classCount; i++) {
+            names[2 * i] = corpus.path(i);
+            names[2 * i + 1] = "androidx/appcompat/widget/" + corpus.path(i).replace('/', '_');
+        }
+    }
+
+    @Benchmark
+    public boolean accept() {
+        int index = cursor;
+        cursor = index + 1 == names.length ? 0 : index + 1;
+        return classFilter.accept(names[index]);
+    }
+}
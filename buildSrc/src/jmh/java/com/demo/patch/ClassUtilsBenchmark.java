@@ -0,0 +1,62 @@
+package com.demo.patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个 class 插桩的耗时，每次操作依次处理 corpus 中的下一个类
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassUtilsBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private SyntheticCorpus corpus;
+    private byte[][] instrumented;
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        instrumented = new byte[classCount][];
+        for (int i = 0; i < classCount; i++) {
+            instrumented[i] = ClassUtils.referHackWhenInit(corpus.classes[i]);
+        }
+    }
+
+    private int next() {
+        int index = cursor;
+        cursor = index + 1 == classCount ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public byte[] referHackWhenInit() {
+        return ClassUtils.referHackWhenInit(corpus.classes[next()]);
+    }
+
+    /**
+     * 已经插桩过的类只扫描常量池，直接返回原内容
+     */
+    @Benchmark
+    public byte[] referHackWhenInitInstrumented() {
+        return ClassUtils.referHackWhenInit(instrumented[next()]);
+    }
+}
@@ -0,0 +1,56 @@
+package com.demo.patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计算单个 class 摘要的耗时，对应原来的 Utils.hex
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    @Param({"md5", "murmur3"})
+    public String digest;
+
+    private DigestAlgorithm algorithm;
+    private byte[][] classes;
+    private final long[] out = new long[2];
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        algorithm = DigestAlgorithm.of(digest);
+        SyntheticCorpus corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        classes = new byte[classCount][];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = ClassUtils.referHackWhenInit(corpus.classes[i]);
+        }
+    }
+
+    @Benchmark
+    public long digest() {
+        int index = cursor;
+        cursor = index + 1 == classCount ? 0 : index + 1;
+        algorithm.digest(classes[index], out);
+        return out[0] ^ out[1];
+    }
+}
@@ -0,0 +1,117 @@
+package com.demo.patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 摘要备份文件的读写，对应原来的 Utils.readHex/writeHex。写入和打开以整个索引为一次操作，
+ * 查找以单个类为一次操作。readLegacy 读取旧的 hex.txt，作为与文本格式比较的基准
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HexIndexBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private File dir;
+    private File writeFile;
+    private File readFile;
+    private File legacyFile;
+    private DigestTable hexes;
+    private HexIndex index;
+    private String[] paths;
+    private long[] highs;
+    private long[] lows;
+    private int cursor;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("hex-bench");
+        SyntheticCorpus corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        hexes = BenchmarkSupport.digestAll(corpus, DigestAlgorithm.MURMUR3);
+
+        writeFile = new File(new File(dir, "write"), HexIndex.FILE_NAME);
+        readFile = new File(new File(dir, "read"), HexIndex.FILE_NAME);
+        HexIndex.write(hexes, DigestAlgorithm.MURMUR3, readFile);
+        index = HexIndex.open(readFile);
+
+        paths = new String[classCount];
+        highs = new long[classCount];
+        lows = new long[classCount];
+        for (int i = 0; i < classCount; i++) {
+            int id = hexes.indexOf(corpus.path(i));
+            paths[i] = corpus.path(i);
+            highs[i] = hexes.high(id);
+            lows[i] = hexes.low(id);
+        }
+
+        legacyFile = new File(dir, HexIndex.LEGACY_FILE_NAME);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(legacyFile), StandardCharsets.UTF_8);
+        try {
+            for (int id : hexes.sortedIds()) {
+                writer.write(hexes.keyAt(id) + ":" + DigestAlgorithm.toHex(hexes.high(id), hexes.low(id)) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.close();
+        BenchmarkSupport.deleteDir(dir);
+    }
+
+    @Benchmark
+    public File write() throws IOException {
+        HexIndex.write(hexes, DigestAlgorithm.MURMUR3, writeFile);
+        return writeFile;
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        HexIndex hexIndex = HexIndex.open(readFile);
+        try {
+            return hexIndex.size();
+        } finally {
+            hexIndex.close();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean matches() {
+        int i = cursor;
+        cursor = i + 1 == classCount ? 0 : i + 1;
+        return index.matches(paths[i], highs[i], lows[i]);
+    }
+
+    @Benchmark
+    public Map<String, String> readLegacy() {
+        return HexIndex.readHex(legacyFile);
+    }
+}
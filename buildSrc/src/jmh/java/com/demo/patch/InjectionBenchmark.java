@@ -0,0 +1,111 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不同插桩方式下创建对象的耗时。none 为没有插桩的类，constructor 每次创建对象都会加载一次 AntiLazyLoad，
+ * clinit 和 method 的开销只在类初始化时或完全没有。解释执行的结果更接近 Dalvik，JIT 可能把 LDC 优化掉。
+ * 一次运行结果和结论见 src/jmh/results/InjectionBenchmark.txt
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InjectionBenchmark {
+
+    private static final String POINT = "bench/Point";
+
+    @Param({"none", "constructor", "clinit", "method"})
+    public String strategy;
+
+    private MethodHandle constructor;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] point = generatePoint();
+        if (!"none".equals(strategy)) {
+            point = ClassUtils.referHackWhenInit(point, InjectionStrategy.of(strategy),
+                    Collections.<String>emptySet(), null);
+        }
+        ByteArrayClassLoader classLoader = new ByteArrayClassLoader(getClass().getClassLoader());
+        classLoader.define(ClassUtils.ANTI_LAZY_LOAD, generateAntiLazyLoad());
+        Class<?> pointClass = classLoader.define(POINT, point);
+        constructor = MethodHandles.publicLookup().findConstructor(pointClass, MethodType.methodType(void.class));
+    }
+
+    @Benchmark
+    public Object allocate() throws Throwable {
+        return constructor.invoke();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xint")
+    public Object allocateInterpreted() throws Throwable {
+        return constructor.invoke();
+    }
+
+    /**
+     * 两个 int 字段的普通类，构造方法中给字段赋值
+     */
+    private static byte[] generatePoint() {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, POINT, null, "java/lang/Object",
+                null);
+        classWriter.visitField(Opcodes.ACC_PUBLIC, "x", "I", null, null).visitEnd();
+        classWriter.visitField(Opcodes.ACC_PUBLIC, "y", "I", null, null).visitEnd();
+        MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        methodVisitor.visitInsn(Opcodes.ICONST_1);
+        methodVisitor.visitFieldInsn(Opcodes.PUTFIELD, POINT, "x", "I");
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+        methodVisitor.visitInsn(Opcodes.ICONST_2);
+        methodVisitor.visitFieldInsn(Opcodes.PUTFIELD, POINT, "y", "I");
+        methodVisitor.visitInsn(Opcodes.RETURN);
+        methodVisitor.visitMaxs(0, 0);
+        methodVisitor.visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private static byte[] generateAntiLazyLoad() {
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, ClassUtils.ANTI_LAZY_LOAD, null,
+                "java/lang/Object", null);
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private static final class ByteArrayClassLoader extends ClassLoader {
+        ByteArrayClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String internalName, byte[] bytes) {
+            return defineClass(internalName.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.demo.patch;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 插桩整个 jar 包的耗时，包括读取、插桩、计算摘要、与基线比较以及重写 jar 包。
+ * processJar 会原地改写 jar 包，所以每次操作前都要拷贝一份未插桩的 jar 包，拷贝不计入耗时
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessJarBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int classCount;
+
+    private File dir;
+    private File sourceJar;
+    private File jar;
+    private File hexFile;
+    private Logger logger;
+    private InstrumentContext context;
+    private DigestTable hexes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("jar-bench");
+        SyntheticCorpus corpus = SyntheticCorpus.generate(classCount, BenchmarkSupport.SEED);
+        sourceJar = new File(dir, "source.jar");
+        corpus.writeJar(sourceJar);
+        jar = new File(dir, "classes.jar");
+
+        hexFile = new File(dir, HexIndex.FILE_NAME);
+        HexIndex.write(BenchmarkSupport.perturb(BenchmarkSupport.digestAll(corpus, DigestAlgorithm.MURMUR3), 100),
+                DigestAlgorithm.MURMUR3, hexFile);
+        logger = Logging.getLogger(ProcessJarBenchmark.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareJar() throws IOException {
+        Files.copy(sourceJar.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // 每次操作使用新的 PatchGenerator，避免补丁 class 在多次操作之间累积
+        PatchReport report = new PatchReport();
+        PatchGenerator patchGenerator = new PatchGenerator(logger, DigestAlgorithm.MURMUR3, hexFile, report);
+        context = new InstrumentContext(logger, BenchmarkSupport.classFilter(), DigestAlgorithm.MURMUR3,
+                InjectionStrategy.CONSTRUCTOR, Collections.<String>emptySet(), patchGenerator, null,
+                new InputState(""), false, report, null, null,
+                new BufferPool(256L * 1024 * 1024));
+        hexes = new DigestTable(classCount);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeGenerator() {
+        context.patchGenerator.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.deleteDir(dir);
+    }
+
+    @Benchmark
+    public DigestTable processJar() {
+        InstrumentProcessor.processJar(context, jar, hexes);
+        return hexes;
+    }
+}
@@ -0,0 +1,248 @@
+package com.demo.patch;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 用 ASM 生成基准测试使用的 class。每个类的形状接近 app 中的普通业务类：若干字段、
+ * 1~3 个构造方法、带分支和循环的实例方法、对其他类的静态调用以及字符串常量，
+ * 编译后大小在 1~4KB 之间。相同的类数量和种子总是生成相同的内容
+ */
+final class SyntheticCorpus {
+
+    /**
+     * 每个包中的类数量，包名为 bench/p0、bench/p1 ...
+     */
+    private static final int CLASSES_PER_PACKAGE = 200;
+
+    final String[] names;
+    final byte[][] classes;
+    final long totalBytes;
+
+    private SyntheticCorpus(String[] names, byte[][] classes) {
+        this.names = names;
+        this.classes = classes;
+        long total = 0;
+        for (byte[] bytes : classes) {
+            total += bytes.length;
+        }
+        this.totalBytes = total;
+    }
+
+    static SyntheticCorpus generate(int count, long seed) {
+        Random random = new Random(seed);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = internalName(i);
+        }
+        byte[][] classes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            classes[i] = generateClass(names, i, random);
+        }
+        return new SyntheticCorpus(names, classes);
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * class 在 jar 包和 hex 索引中的路径，与插件中的格式一致
+     */
+    String path(int index) {
+        return names[index] + ".class";
+    }
+
+    /**
+     * 生成与 corpus 中某些类内容不同的版本，用于模拟有改动的类
+     */
+    byte[] mutate(int index, long seed) {
+        return generateClass(names, index, new Random(seed));
+    }
+
+    /**
+     * 把所有类写入一个 jar 包，条目按 DEFLATED 压缩，与依赖库的 jar 包一致
+     */
+    void writeJar(File jarFile) throws IOException {
+        ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (int i = 0; i < names.length; i++) {
+                outputStream.putNextEntry(new ZipEntry(path(i)));
+                outputStream.write(classes[i]);
+                outputStream.closeEntry();
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static String internalName(int index) {
+        return "bench/p" + (index / CLASSES_PER_PACKAGE) + "/C" + index;
+    }
+
+    private static byte[] generateClass(String[] names, int index, Random random) {
+        String name = names[index];
+        // 同一个包内每 10 个类中有一个继承前一个类，其余直接继承 Object
+        String superName = index % 10 == 9 ? names[index - 1] : "java/lang/Object";
+        String[] interfaces = index % 3 == 0 ? new String[]{"java/io/Serializable"} : null;
+
+        // 生成的代码中分支合并处只有 int 和相同类型的引用，不会触发 getCommonSuperClass
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        classWriter.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, interfaces);
+        classWriter.visitSource("C" + index + ".java", null);
+
+        classWriter.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "TAG",
+                "Ljava/lang/String;", null, name.replace('/', '.')).visitEnd();
+        int fieldCount = 3 + random.nextInt(6);
+        for (int i = 0; i < fieldCount; i++) {
+            classWriter.visitField(Opcodes.ACC_PRIVATE, "f" + i, fieldDesc(i), null, null).visitEnd();
+        }
+
+        int constructorCount = 1 + random.nextInt(3);
+        for (int i = 0; i < constructorCount; i++) {
+            generateConstructor(classWriter, name, superName, i);
+        }
+
+        int methodCount = 4 + random.nextInt(9);
+        for (int i = 0; i < methodCount; i++) {
+            String target = names[random.nextInt(names.length)];
+            generateMethod(classWriter, name, target, i, fieldCount, random.nextInt(100));
+        }
+
+        MethodVisitor helper = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "helper",
+                "(I)I", null, null);
+        helper.visitCode();
+        helper.visitVarInsn(Opcodes.ILOAD, 0);
+        helper.visitLdcInsn(index);
+        helper.visitInsn(Opcodes.IXOR);
+        helper.visitInsn(Opcodes.IRETURN);
+        helper.visitMaxs(0, 0);
+        helper.visitEnd();
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private static String fieldDesc(int index) {
+        switch (index % 4) {
+            case 0:
+                return "I";
+            case 1:
+                return "Ljava/lang/String;";
+            case 2:
+                return "J";
+            default:
+                return "Ljava/util/List;";
+        }
+    }
+
+    /**
+     * 第 0 个是无参构造方法，其余构造方法带一个 int 参数，根据参数走不同的分支初始化字段
+     */
+    private static void generateConstructor(ClassWriter classWriter, String name, String superName, int index) {
+        String desc = index == 0 ? "()V" : index == 1 ? "(I)V" : "(IJ)V";
+        MethodVisitor mv = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", desc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        if (index == 0) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitLdcInsn("init");
+            mv.visitFieldInsn(Opcodes.PUTFIELD, name, "f1", "Ljava/lang/String;");
+        } else {
+            Label negative = new Label();
+            Label end = new Label();
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitJumpInsn(Opcodes.IFLT, negative);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, name, "f0", "I");
+            // 构造方法中间的 return，插桩时也要在这里插入引用
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitLabel(negative);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitInsn(Opcodes.INEG);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, name, "f0", "I");
+            mv.visitLabel(end);
+        }
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * 带循环和分支的实例方法，循环中调用另一个类的静态方法并拼接字符串
+     */
+    private static void generateMethod(ClassWriter classWriter, String name, String target, int index,
+                                       int fieldCount, int constant) {
+        MethodVisitor mv = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "m" + index, "(I)Ljava/lang/String;",
+                null, null);
+        mv.visitCode();
+        // StringBuilder builder = new StringBuilder(TAG);
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, name, "TAG", "Ljava/lang/String;");
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>",
+                "(Ljava/lang/String;)V", false);
+        mv.visitVarInsn(Opcodes.ASTORE, 2);
+        // int i = 0;
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 3);
+        Label loop = new Label();
+        Label exit = new Label();
+        Label odd = new Label();
+        Label next = new Label();
+        mv.visitLabel(loop);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, exit);
+        // if ((i & 1) == 0) builder.append(Target.helper(i + constant)); else builder.append("m" + index);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitJumpInsn(Opcodes.IFNE, odd);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitLdcInsn(constant);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, target, "helper", "(I)I", false);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(I)Ljava/lang/StringBuilder;", false);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitJumpInsn(Opcodes.GOTO, next);
+        mv.visitLabel(odd);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitLdcInsn("m" + index + "-" + constant);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitLabel(next);
+        mv.visitIincInsn(3, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, loop);
+        mv.visitLabel(exit);
+        // builder.append(this.fN).toString()
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        int field = index % fieldCount;
+        String desc = fieldDesc(field);
+        mv.visitFieldInsn(Opcodes.GETFIELD, name, "f" + field, desc);
+        String appendDesc = desc.length() == 1 ? "(" + desc + ")Ljava/lang/StringBuilder;"
+                : "(Ljava/lang/Object;)Ljava/lang/StringBuilder;";
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", appendDesc, false);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
+                "()Ljava/lang/String;", false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
@@ -1,39 +0,0 @@
-package com.demo.patch;
-
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
-
-import java.io.IOException;
-import java.io.InputStream;
-
-public class ClassUtils {
-
-    public static byte[] referHackWhenInit(InputStream inputStream) throws IOException {
-        ClassReader classReader = new ClassReader(inputStream);
-        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        ClassVisitor classVisitor = new ClassVisitor(Opcodes.ASM6, classWriter) {
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
-                methodVisitor = new MethodVisitor(api, methodVisitor) {
-                    @Override
-                    public void visitInsn(int opcode) {
-                        if ("<init>".equals(name) && opcode == Opcodes.RETURN) {
-                            // 在构造方法末尾插入 AntiLazyLoad 引用
-                            super.visitLdcInsn(Type.getType("Lcom/demo/plugin/AntiLazyLoad;"));
-                        }
-                        super.visitInsn(opcode);
-                    }
-                };
-                return methodVisitor;
-            }
-        };
-
-        classReader.accept(classVisitor, 0);
-        return classWriter.toByteArray();
-    }
-}
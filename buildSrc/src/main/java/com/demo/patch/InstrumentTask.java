@@ -0,0 +1,292 @@
+package com.demo.patch;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.Action;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+import org.gradle.api.tasks.incremental.InputFileDetails;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerConfiguration;
+import org.gradle.workers.WorkerExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+/**
+ * 在 dex 打包之前对 dex 任务的输入插桩，任务 instrumentDebug/instrumentRelease。
+ * <p>
+ * 输入文件不会被原地改写，而是拷贝到本任务的输出目录中再插桩，dex 任务执行时换用这些副本，
+ * 见 {@link InstrumentedInputs}。输入文件、插桩配置和各个基准都声明为输入，没有变化时任务是 UP-TO-DATE 的。
+ * <p>
+ * 每个 jar 包、每一批 class 文件作为一个工作项提交给 Worker API，由 Gradle 按照 --max-workers
+ * 统一调度。任务提交完工作项后就返回，Gradle 在所有工作项完成后才认为任务完成，
+ * 在这期间可以执行其他变体的任务。增量处理时 Gradle 判断没有变化的输入文件不会提交，直接沿用上次的记录和副本
+ */
+public class InstrumentTask extends DefaultTask {
+
+    static final String CARRIED_RESULT_NAME = "carried" + InstrumentResult.EXTENSION;
+    /**
+     * 每次执行都不同的编号，写在 work 目录中，补丁任务生成备份后把它拷贝到 baseline 目录
+     */
+    static final String EXECUTION_ID_NAME = "execution.id";
+
+    private final WorkerExecutor workerExecutor;
+
+    private InstrumentSettings settings;
+    private FileCollection inputFiles;
+    private InstrumentedInputs instrumentedInputs;
+    private File workDir;
+    private File stateFile;
+    private boolean incremental;
+
+    @Inject
+    public InstrumentTask(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * @param settings           插桩配置
+     * @param inputFiles         dex 任务的输入
+     * @param instrumentedInputs 插桩副本的位置
+     * @param workDir            保存工作项结果的目录
+     * @param stateFile          上一次处理输入文件的记录
+     * @param incremental        是否开启增量处理
+     */
+    public void configure(InstrumentSettings settings, FileCollection inputFiles,
+                          InstrumentedInputs instrumentedInputs, File workDir, File stateFile,
+                          boolean incremental) {
+        this.settings = settings;
+        this.inputFiles = inputFiles;
+        this.instrumentedInputs = instrumentedInputs;
+        this.workDir = workDir;
+        this.stateFile = stateFile;
+        this.incremental = incremental;
+    }
+
+    @InputFiles
+    public FileCollection getInputFiles() {
+        return inputFiles;
+    }
+
+    /**
+     * 影响插桩结果的配置，包括插桩范围、注入方式、摘要算法和混淆名索引
+     */
+    @Input
+    public String getFingerprint() {
+        return settings.stateFingerprint();
+    }
+
+    @Input
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @Input
+    public List<String> getPatchBaselines() {
+        return settings.patchBaselines;
+    }
+
+    /**
+     * 补丁任务上一次写出的备份、执行编号和输入文件记录，以及旧版本的 hex.txt。插桩时与备份比较，备份变了结果也就变了
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getBaseline() {
+        File outputDir = settings.hexFile.getParentFile();
+        File baselineDir = new File(outputDir, PatchEngine.BASELINE_DIR_NAME);
+        return getProject().files(new File(baselineDir, HexIndex.FILE_NAME),
+                new File(baselineDir, DependencyIndex.FILE_NAME), getExecutionIdFile(),
+                new File(outputDir, HexIndex.LEGACY_FILE_NAME), stateFile);
+    }
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getReleaseBaselines() {
+        return Utils.releaseBaselines(getProject(), settings);
+    }
+
+    @OutputDirectory
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    @OutputDirectory
+    public File getInstrumentedDir() {
+        return instrumentedInputs.getDir();
+    }
+
+    /**
+     * 从 baseline 目录取出的备份和从发布历史中取出的版本摘要，由补丁任务读取
+     */
+    @OutputFiles
+    public List<File> getPreparedBaselines() {
+        List<File> files = new ArrayList<>();
+        files.add(settings.hexFile);
+        files.add(new File(settings.hexFile.getParentFile(), DependencyIndex.FILE_NAME));
+        for (String tag : settings.patchBaselines) {
+            files.add(settings.releaseHexFile(tag));
+        }
+        return files;
+    }
+
+    @TaskAction
+    public void instrument(IncrementalTaskInputs inputs) throws IOException {
+        // 补丁任务用上一次插桩的结果生成了当前的备份时，baseline 目录中记录的是同一个执行编号
+        String prevExecutionId = readExecutionId(new File(workDir, EXECUTION_ID_NAME));
+        FileUtils.deleteDirectory(workDir);
+        workDir.mkdirs();
+        Files.write(new File(workDir, EXECUTION_ID_NAME).toPath(),
+                UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+        promoteBaseline();
+        // 取出需要生成补丁的发布版本，需要时转换旧的备份文件
+        PatchEngine.prepare(getLogger(), settings);
+
+        // 增量处理时由 Gradle 按内容判断哪些输入文件有变化，第一次执行、任务的配置或输出有变化时所有输入都算变化。
+        // 上一次的输入文件记录由补丁任务写出，只有它处理的正是上一次插桩的结果时，记录才与现有的副本一致；
+        // 备份文件不存在时记录也就没有意义了。沿用的输入文件不会与发布版本比较，为发布版本生成补丁时不做增量处理
+        InputState prevState = null;
+        final Set<File> changedFiles = new HashSet<>();
+        if (incremental && inputs.isIncremental() && settings.patchBaselines.isEmpty() && settings.hexFile.exists()
+                && prevExecutionId != null && prevExecutionId.equals(readExecutionId(getExecutionIdFile()))) {
+            prevState = InputState.read(stateFile, settings.stateFingerprint(), settings.daemonCache());
+            inputs.outOfDate(new Action<InputFileDetails>() {
+                @Override
+                public void execute(InputFileDetails details) {
+                    changedFiles.add(details.getFile());
+                }
+            });
+        }
+
+        // 遍历 dex 任务的输入文件，像 app 中的 MainActivity 的路径是：
+        // app\build\intermediates\transforms\proguard\debug\0.jar
+        PatchReport report = new PatchReport();
+        InstrumentResult carried = new InstrumentResult();
+        Set<File> copies = new HashSet<>();
+        List<File> jars = new ArrayList<>();
+        List<File> classFiles = new ArrayList<>();
+        for (File file : inputFiles.getFiles()) {
+            if (!InstrumentedInputs.accept(file)) {
+                continue;
+            }
+            File copy = instrumentedInputs.copyOf(file);
+            copies.add(copy);
+            InputState.Record prevRecord = prevState == null || changedFiles.contains(file)
+                    ? null : prevState.get(copy);
+            if (prevRecord != null && copy.isFile()) {
+                carried.records.add(prevRecord);
+                report.inputProcessed(true);
+                report.classesCarried(prevRecord.hexes.size());
+                continue;
+            }
+            if (file.getName().endsWith(".jar")) {
+                jars.add(file);
+            } else {
+                classFiles.add(file);
+            }
+        }
+        carried.write(new File(workDir, CARRIED_RESULT_NAME), report);
+        instrumentedInputs.deleteStale(copies);
+
+        // 大的 jar 包先提交，避免最后只剩一个大 jar 包在单个 worker 上处理
+        Collections.sort(jars, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o2.length(), o1.length());
+            }
+        });
+        int index = 0;
+        for (File jar : jars) {
+            submit(Collections.singletonList(jar), index++);
+        }
+        for (int i = 0; i < classFiles.size(); i += PatchEngine.CLASS_BATCH_SIZE) {
+            submit(classFiles.subList(i, Math.min(i + PatchEngine.CLASS_BATCH_SIZE, classFiles.size())), index++);
+        }
+        getLogger().info("提交了 " + index + " 个插桩工作项，" + carried.records.size() + " 个输入文件没有变化");
+    }
+
+    /**
+     * 上一次的 patch 任务把新的备份写在 baseline 目录中（也可能来自构建缓存），
+     * 插桩前把它拷贝出来作为本次比较的基准。先写到临时文件再原子替换，拷贝中途失败不会留下不完整的备份
+     */
+    private void promoteBaseline() throws IOException {
+        File outputDir = settings.hexFile.getParentFile();
+        File baselineDir = new File(outputDir, PatchEngine.BASELINE_DIR_NAME);
+        if (!baselineDir.isDirectory()) {
+            return;
+        }
+        for (String name : new String[]{HexIndex.FILE_NAME, DependencyIndex.FILE_NAME}) {
+            File source = new File(baselineDir, name);
+            File target = new File(outputDir, name);
+            if (!source.exists()) {
+                // 没有生成的文件也不能沿用更早的版本
+                target.delete();
+                continue;
+            }
+            File tempFile = new File(outputDir, name + ".tmp");
+            // 不保留原来的修改时间，守护进程缓存按修改时间判断文件是否变化
+            Files.copy(source.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * 补丁任务生成当前的备份时使用的插桩结果的执行编号
+     */
+    private File getExecutionIdFile() {
+        return new File(new File(settings.hexFile.getParentFile(), PatchEngine.BASELINE_DIR_NAME), EXECUTION_ID_NAME);
+    }
+
+    /**
+     * 文件不存在时返回 null
+     */
+    static String readExecutionId(File file) throws IOException {
+        return file.exists() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    }
+
+    private void submit(List<File> batch, int index) {
+        final File[] sources = batch.toArray(new File[0]);
+        final File[] inputs = new File[sources.length];
+        final File[] roots = new File[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            inputs[i] = instrumentedInputs.copyOf(sources[i]);
+            roots[i] = instrumentedInputs.rootOf(sources[i]);
+        }
+        final File resultFile = new File(workDir, index + InstrumentResult.EXTENSION);
+        workerExecutor.submit(InstrumentWork.class, new Action<WorkerConfiguration>() {
+            @Override
+            public void execute(WorkerConfiguration configuration) {
+                // 工作项只依赖 buildSrc 中的类，在守护进程中执行即可，参数依然会被序列化
+                configuration.setIsolationMode(IsolationMode.NONE);
+                configuration.setDisplayName("插桩 " + sources[0].getName()
+                        + (sources.length > 1 ? " 等 " + sources.length + " 个文件" : ""));
+                configuration.setParams(settings, sources, inputs, roots, resultFile);
+            }
+        });
+    }
+}
@@ -0,0 +1,87 @@
+package com.demo.patch;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * 插桩工作项，由 {@link InstrumentTask} 通过 Worker API 提交，处理一个 jar 包或一批 class 文件。
+ * 先把输入文件拷贝到插桩任务的输出目录中，再由 {@link PatchEngine} 对副本插桩，dex 任务的输入保持不变。
+ * 工作项之间不共享状态，结果写入各自的结果文件，由 {@link PatchTask} 合并
+ */
+public class InstrumentWork implements Runnable {
+
+    private static final Logger LOGGER = Logging.getLogger(InstrumentWork.class);
+
+    private final InstrumentSettings settings;
+    private final File[] sources;
+    private final File[] inputs;
+    private final File[] roots;
+    private final File resultFile;
+
+    /**
+     * @param sources    dex 任务的输入文件
+     * @param inputs     与 sources 一一对应，插桩副本
+     * @param roots      与 sources 一一对应，副本所在的 class 目录，jar 包为 null
+     * @param resultFile 结果文件
+     */
+    @Inject
+    public InstrumentWork(InstrumentSettings settings, File[] sources, File[] inputs, File[] roots,
+                          File resultFile) {
+        this.settings = settings;
+        this.sources = sources;
+        this.inputs = inputs;
+        this.roots = roots;
+        this.resultFile = resultFile;
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < sources.length; i++) {
+            try {
+                // 不保留原来的修改时间，副本比原文件新说明它是由当前的原文件生成的
+                FileUtils.copyFile(sources[i], inputs[i], false);
+            } catch (IOException e) {
+                throw new GradleException("拷贝输入文件失败：" + sources[i].getAbsolutePath(), e);
+            }
+        }
+        PatchReport report = new PatchReport();
+        InstrumentResult result = PatchEngine.instrument(LOGGER, settings, inputs, roots, report);
+        // 记录按输入文件的顺序排列，相同的输入得到相同的结果文件
+        final List<String> order = new ArrayList<>();
+        for (File input : inputs) {
+            order.add(input.getAbsolutePath());
+        }
+        Collections.sort(result.records, new Comparator<InputState.Record>() {
+            @Override
+            public int compare(InputState.Record o1, InputState.Record o2) {
+                return Integer.compare(order.indexOf(o1.path), order.indexOf(o2.path));
+            }
+        });
+        try {
+            result.write(resultFile, report);
+            if (result.dependencies != null) {
+                result.dependencies.write(dependencyFile(resultFile));
+            }
+        } catch (IOException e) {
+            throw new GradleException("保存插桩结果失败：" + resultFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * 结果文件对应的类依赖索引文件
+     */
+    static File dependencyFile(File resultFile) {
+        return InstrumentResult.companionFile(resultFile, InstrumentResult.DEPENDENCIES_EXTENSION);
+    }
+}
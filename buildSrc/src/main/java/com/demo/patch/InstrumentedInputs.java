@@ -0,0 +1,165 @@
+package com.demo.patch;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * dex 任务的输入文件与插桩任务输出目录中插桩副本的对应关系。
+ * <p>
+ * 插桩任务不改写 dex 任务的输入，而是把它们拷贝到自己的输出目录中再插桩：class 文件放在
+ * classes/[原 class 目录的编号]/[类路径] 中，jar 包放在 jars/[原路径的编号]-[文件名]，编号由原文件的路径计算，
+ * 同一个输入文件每次都对应同一个副本。
+ * <p>
+ * AGP 的 dex 任务只会读取它自己的输入，所以 dex 任务执行时先把原文件移到备份目录、把副本放到原来的位置，
+ * 执行结束后（包括失败时）再把原文件移回去。dex 任务和上游的编译、混淆任务记录的都是未插桩的原文件，
+ * 不会因为插桩而认为自己过期
+ */
+final class InstrumentedInputs {
+
+    private static final String CLASSES_DIR_NAME = "classes";
+    private static final String JARS_DIR_NAME = "jars";
+
+    private final File dir;
+    private final File backupDir;
+    /**
+     * 已经换成副本的输入文件，原文件在备份目录中
+     */
+    private final List<File> installed = new ArrayList<>();
+
+    /**
+     * @param dir       插桩任务的输出目录，存放插桩副本
+     * @param backupDir dex 任务执行期间暂存原文件的目录，不是任何任务的输出
+     */
+    InstrumentedInputs(File dir, File backupDir) {
+        this.dir = dir;
+        this.backupDir = backupDir;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    static boolean accept(File input) {
+        String name = input.getName();
+        return name.endsWith(".class") || name.endsWith(".jar");
+    }
+
+    /**
+     * 输入文件的插桩副本
+     */
+    File copyOf(File input) {
+        if (input.getName().endsWith(".jar")) {
+            return new File(dir, JARS_DIR_NAME + "/" + key(input.getAbsolutePath()) + "-" + input.getName());
+        }
+        return new File(rootOf(input), InstrumentProcessor.classPath(input, null));
+    }
+
+    /**
+     * class 文件副本所在的 class 目录，副本相对于它的路径与原文件的类路径相同；jar 包返回 null
+     */
+    File rootOf(File input) {
+        if (input.getName().endsWith(".jar")) {
+            return null;
+        }
+        String path = input.getAbsolutePath();
+        String classPath = InstrumentProcessor.classPath(input, null);
+        return new File(dir, CLASSES_DIR_NAME + "/" + key(path.substring(0, path.length() - classPath.length())));
+    }
+
+    /**
+     * 补丁任务记录的 input 的副本的处理记录。副本之后没有被改动、原文件的修改时间早于副本时才能沿用，
+     * 否则返回 null。修改时间相同时分不清原文件是在拷贝之前还是之后改写的，不沿用
+     */
+    InputState.Record carried(InputState state, File input) {
+        if (state == null) {
+            return null;
+        }
+        File copy = copyOf(input);
+        InputState.Record record = state.getUpToDate(copy);
+        if (record == null || input.lastModified() >= copy.lastModified()) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * 删除已经不在 dex 任务输入中的文件的副本
+     *
+     * @param copies 当前所有输入文件的副本
+     */
+    void deleteStale(Set<File> copies) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        for (File file : FileUtils.listFiles(dir, null, true)) {
+            if (!copies.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 把 dex 任务的输入换成插桩副本，在 dex 任务开始执行时调用
+     */
+    void install(Iterable<File> inputs) throws IOException {
+        for (File input : inputs) {
+            if (!accept(input)) {
+                continue;
+            }
+            File copy = copyOf(input);
+            if (!copy.isFile()) {
+                // 插桩任务处理过所有 class 文件和 jar 包，缺少副本时打包出来的是没有插桩的类
+                throw new GradleException("没有找到插桩后的文件，请重新执行插桩任务：" + input.getAbsolutePath());
+            }
+            File backup = backupOf(input);
+            backup.getParentFile().mkdirs();
+            Files.move(input.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            installed.add(input);
+            Files.copy(copy.toPath(), input.toPath());
+        }
+    }
+
+    /**
+     * 把原文件移回原来的位置。移动不改变修改时间，上游任务看到的还是自己输出的文件
+     */
+    void restore() throws IOException {
+        IOException failure = null;
+        for (File input : installed) {
+            try {
+                Files.move(backupOf(input).toPath(), input.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        installed.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private File backupOf(File input) {
+        return new File(backupDir, dir.toPath().relativize(copyOf(input).toPath()).toString());
+    }
+
+    /**
+     * 由原文件的路径计算的编号，不同的 class 目录、jar 包互不冲突
+     */
+    private static String key(String path) {
+        long[] digest = new long[2];
+        DigestAlgorithm.MURMUR3.digest(path.getBytes(StandardCharsets.UTF_8), digest);
+        return DigestAlgorithm.toHex(digest[0], digest[1]).substring(0, 16);
+    }
+}
@@ -0,0 +1,268 @@
+package com.demo.patch;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 预览补丁内容的任务，patchDiffDebug/patchDiffRelease。
+ * <p>
+ * 计算 dex 任务的输入插桩后的摘要，与下一次补丁任务使用的基准比较，列出新增、修改和删除的类及其大小。
+ * 插桩只在内存中进行，不改写输入文件，也不执行 dex 打包。没有变化的输入文件直接沿用补丁任务
+ * 或上一次预览记录的摘要，只有变化了的输入文件才需要插桩，没有改动的工程上一秒内就能完成。
+ * <p>
+ * 配置了 patchBaselines 时，还会分别列出与每个发布版本相比的变化
+ */
+public class PatchDiffTask extends DefaultTask {
+
+    /**
+     * 预览时计算过的输入文件记录，与补丁任务的记录分开保存，不影响插桩任务的增量处理
+     */
+    static final String STATE_FILE_NAME = "diff-inputs.bin";
+
+    static final String REPORT_FILE_NAME = "diff.txt";
+
+    private InstrumentSettings settings;
+    private FileCollection inputFiles;
+    private InstrumentedInputs instrumentedInputs;
+    private File outputDir;
+
+    public PatchDiffTask() {
+        // 只读取输入并输出报告，每次都要执行
+        getOutputs().upToDateWhen(new Spec<Task>() {
+            @Override
+            public boolean isSatisfiedBy(Task task) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * @param settings   插桩配置，与插桩任务使用的是同一个
+     * @param inputFiles         dex 任务的输入
+     * @param instrumentedInputs 插桩副本的位置，补丁任务的记录对应的是副本
+     * @param outputDir          补丁输出目录
+     */
+    public void configure(InstrumentSettings settings, FileCollection inputFiles,
+                          InstrumentedInputs instrumentedInputs, File outputDir) {
+        this.settings = settings;
+        this.inputFiles = inputFiles;
+        this.instrumentedInputs = instrumentedInputs;
+        this.outputDir = outputDir;
+    }
+
+    @TaskAction
+    public void diff() throws IOException {
+        long begin = System.currentTimeMillis();
+        String fingerprint = settings.stateFingerprint();
+        // 补丁任务记录的是插桩副本，副本由当前的输入文件生成时就能沿用
+        DaemonCache daemonCache = settings.daemonCache();
+        InputState buildState = InputState.read(new File(outputDir, InputState.FILE_NAME), fingerprint, daemonCache);
+        File stateFile = new File(outputDir, STATE_FILE_NAME);
+        InputState diffState = InputState.read(stateFile, fingerprint, daemonCache);
+        InputState newState = new InputState(fingerprint);
+
+        InstrumentContext context = null;
+        DigestTable hexes = new DigestTable(1024);
+        // 类的路径到它所在的输入文件，用于读取类的大小
+        Map<String, File> sources = new HashMap<>();
+        int digested = 0;
+        for (File file : inputFiles.getFiles()) {
+            String filePath = file.getAbsolutePath();
+            if (!filePath.endsWith(".class") && !filePath.endsWith(".jar")) {
+                continue;
+            }
+            InputState.Record record = instrumentedInputs.carried(buildState, file);
+            if (record == null) {
+                record = upToDateRecord(diffState, file);
+            }
+            if (record == null) {
+                if (context == null) {
+                    context = createContext(newState);
+                }
+                DigestTable fileHexes = new DigestTable();
+                InstrumentProcessor.digestFile(context, file, null, fileHexes);
+                record = InputState.Record.of(file, fileHexes);
+                digested++;
+            }
+            newState.put(record);
+            hexes.putAll(record.hexes);
+            for (int id = 0; id < record.hexes.size(); id++) {
+                sources.put(record.hexes.keyAt(id), file);
+            }
+        }
+        newState.write(stateFile);
+
+        List<String> lines = new ArrayList<>();
+        ClassSizes sizes = new ClassSizes(sources);
+        try {
+            diffBaseline(hexes, sizes, lines);
+            for (String tag : settings.patchBaselines) {
+                diffRelease(tag, hexes, sizes, lines);
+            }
+        } finally {
+            sizes.close();
+        }
+
+        File reportFile = new File(outputDir, REPORT_FILE_NAME);
+        Files.write(reportFile.toPath(), lines, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            getLogger().lifecycle(line);
+        }
+        getLogger().lifecycle("预览完成，" + newState.size() + " 个输入文件中 " + digested + " 个重新计算了摘要，耗时 "
+                + (System.currentTimeMillis() - begin) + "ms：" + reportFile.getAbsolutePath());
+    }
+
+    private static InputState.Record upToDateRecord(InputState state, File file) {
+        return state == null ? null : state.getUpToDate(file);
+    }
+
+    /**
+     * 只在有输入文件需要重新计算摘要时才创建，输入都没有变化时不需要读取 mapping 索引
+     */
+    private InstrumentContext createContext(InputState newState) {
+        MappingStore mapping;
+        try {
+            mapping = settings.loadMapping();
+        } catch (IOException e) {
+            throw new GradleException("读取 mapping 索引失败：" + settings.mappingFile.getAbsolutePath(), e);
+        }
+        return new InstrumentContext(getLogger(), settings.classFilter, settings.algorithm(), settings.strategy,
+                settings.skippedEnums, null, settings.createCache(), newState, false, new PatchReport(), null,
+                mapping, BufferPool.shared(settings.memoryBudgetBytes));
+    }
+
+    /**
+     * 与上一次编译比较。补丁任务把新的备份写在 baseline 目录中，下一次插桩时才会取用，
+     * 所以它存在时以它为准
+     */
+    private void diffBaseline(DigestTable hexes, ClassSizes sizes, List<String> lines) throws IOException {
+        File hexFile = new File(new File(outputDir, PatchEngine.BASELINE_DIR_NAME), HexIndex.FILE_NAME);
+        if (!hexFile.exists()) {
+            hexFile = settings.hexFile;
+        }
+        HexIndex baseline = HexIndex.open(hexFile, settings.daemonCache());
+        if (baseline == null || baseline.isEmpty()) {
+            lines.add("== 上一次编译：没有摘要备份，不会生成补丁 ==");
+        } else if (baseline.algorithm() != settings.algorithm()) {
+            lines.add("== 上一次编译：备份使用的摘要算法 " + baseline.algorithm() + " 与当前配置的 "
+                    + settings.algorithm() + " 不一致，生成补丁时会失败 ==");
+        } else if (baseline.instrumentVersion() != ClassUtils.INSTRUMENT_VERSION) {
+            lines.add("== 上一次编译：备份由旧版本的插件生成，下一次编译只更新备份，不会生成补丁 ==");
+        } else {
+            diff("上一次编译", baseline.toTable(), hexes, sizes, lines);
+        }
+        if (baseline != null) {
+            baseline.close();
+        }
+    }
+
+    private void diffRelease(String tag, DigestTable hexes, ClassSizes sizes, List<String> lines)
+            throws IOException {
+        BaselineHistory history = settings.history();
+        // tag 没有记录过时 read 会中断构建，所以先读取摘要再看算法
+        DigestTable baseline = history.read(tag);
+        DigestAlgorithm algorithm = history.algorithm(tag);
+        if (algorithm != settings.algorithm()) {
+            lines.add("== 发布版本 " + tag + "：摘要算法 " + algorithm + " 与当前配置的 " + settings.algorithm()
+                    + " 不一致，生成补丁时会失败 ==");
+            return;
+        }
+        if (history.instrumentVersion(tag) != ClassUtils.INSTRUMENT_VERSION) {
+            lines.add("== 发布版本 " + tag + "：由旧版本的插件记录，生成补丁时会失败 ==");
+            return;
+        }
+        diff("发布版本 " + tag, baseline, hexes, sizes, lines);
+    }
+
+    /**
+     * 按类名排序输出，新增的类以 + 开头，修改的以 M 开头，删除的以 - 开头
+     */
+    private static void diff(String title, DigestTable baseline, DigestTable hexes, ClassSizes sizes,
+                             List<String> lines) throws IOException {
+        List<String> changes = new ArrayList<>();
+        int added = 0;
+        int changed = 0;
+        int removed = 0;
+        long totalSize = 0;
+        for (int id : hexes.sortedIds()) {
+            String className = hexes.keyAt(id);
+            int baselineId = baseline.indexOf(className);
+            if (baselineId >= 0 && baseline.high(baselineId) == hexes.high(id)
+                    && baseline.low(baselineId) == hexes.low(id)) {
+                continue;
+            }
+            long size = sizes.sizeOf(className);
+            totalSize += Math.max(0, size);
+            if (baselineId < 0) {
+                added++;
+                changes.add("+ " + className + " " + size);
+            } else {
+                changed++;
+                changes.add("M " + className + " " + size);
+            }
+        }
+        for (int id : baseline.sortedIds()) {
+            String className = baseline.keyAt(id);
+            if (hexes.indexOf(className) < 0) {
+                removed++;
+                changes.add("- " + className);
+            }
+        }
+        lines.add("== " + title + "：新增 " + added + "，修改 " + changed + "，删除 " + removed + "，补丁 class 共 "
+                + totalSize + " 字节 ==");
+        lines.addAll(changes);
+    }
+
+    /**
+     * 读取类在输入文件中的大小，jar 包只读取中央目录，同一个 jar 包只打开一次
+     */
+    private static class ClassSizes {
+        private final Map<String, File> sources;
+        private final Map<File, ZipFile> zipFiles = new HashMap<>();
+
+        ClassSizes(Map<String, File> sources) {
+            this.sources = sources;
+        }
+
+        /**
+         * 输入文件中的大小，没有插过桩的类与放入补丁包的大小会有几个字节的差别；未知时返回 -1
+         */
+        long sizeOf(String className) throws IOException {
+            File file = sources.get(className);
+            if (file == null) {
+                return -1;
+            }
+            if (!file.getName().endsWith(".jar")) {
+                return file.length();
+            }
+            ZipFile zipFile = zipFiles.get(file);
+            if (zipFile == null) {
+                zipFile = new ZipFile(file);
+                zipFiles.put(file, zipFile);
+            }
+            ZipArchiveEntry entry = zipFile.getEntry(className);
+            return entry == null ? -1 : entry.getSize();
+        }
+
+        void close() {
+            for (ZipFile zipFile : zipFiles.values()) {
+                ZipFile.closeQuietly(zipFile);
+            }
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.demo.patch;
 
+import org.gradle.api.logging.Logging;
+
+import java.util.ArrayList;
+import java.util.List;
+
 public class PatchExtension {
 
     /**
@@ -20,8 +25,145 @@ public class PatchExtension {
      */
     private String output;
 
+    /**
+     * 已废弃，不再生效。插桩以 Worker API 工作项的方式并行执行，并行数由 Gradle 的
+     * --max-workers（org.gradle.workers.max）统一控制
+     */
+    @Deprecated
+    private int parallelism;
+
+    /**
+     * 是否缓存插桩结果，默认为 true。输入内容没有变化的 class 和 jar 包会直接复用上次的插桩结果
+     */
+    private boolean cacheEnabled;
+
+    /**
+     * 可选项，插桩缓存目录，默认为 app/build/patch-cache，所有变体共用
+     */
+    private String cacheDir;
+
+    /**
+     * 插桩缓存的容量上限，单位 MB，默认为 512
+     */
+    private long cacheSize;
+
+    /**
+     * 是否开启增量处理，默认为 false。开启后与上次编译相比没有变化的输入文件不会再被打开和插桩，
+     * 直接沿用上次记录的 md5，被删除的输入文件中的 class 会从备份文件中移除
+     */
+    private boolean incremental;
+
+    /**
+     * 是否用 ASM 的 Analyzer 校验插桩后的每个 class，默认为 false。校验失败会中断构建，
+     * 用于确认快速插桩的结果可信，会明显增加插桩耗时
+     */
+    private boolean verify;
+
+    /**
+     * 判断 class 是否变化时使用的摘要算法，可选 murmur3（默认）和 md5。
+     * 修改后与之前的备份文件无法比较，生成补丁时会失败，需要先删除备份文件重新生成基准。
+     * 旧版本插件生成的 hex.txt 使用 md5，为这样的版本打补丁时需要配置为 md5
+     */
+    private String digest;
+
+    /**
+     * 生成补丁 dex 使用的工具，可选 d8（默认）和 dx。d8 在 Gradle 进程内直接编译内存中的 class，
+     * 不可用时会自动退回到 dx；dx 需要通过 local.properties 或 ANDROID_HOME 找到 sdk
+     */
+    private String dexer;
+
+    /**
+     * 是否生成与上一个补丁包的差分文件 patch.delta。开启后每次生成补丁前会把已有的 patch.jar
+     * 保留为 patch.prev.jar，设备上已有上一个补丁时只需要下载差分文件
+     */
+    private boolean delta;
+
+    /**
+     * 是否把受有变化的类影响的类也放入补丁，默认开启。父类、接口或被引用的类的结构发生变化，
+     * 以及被内联的编译期常量发生变化时，使用它们的类即使自身没有变化也会放入补丁
+     */
+    private boolean includeDependents;
+
+    /**
+     * 插入 AntiLazyLoad 引用的方式，可选 constructor（默认）、clinit 和 method：
+     * constructor 在每个构造方法末尾加载 AntiLazyLoad，每次创建对象都有开销；
+     * clinit 只在类初始化时加载一次；method 新增一个不会被调用的方法，运行时没有开销。
+     * clinit 可能新增静态初始化方法，会改变没有显式声明 serialVersionUID 的可序列化类的默认版本号，
+     * 直接实现 Serializable 的类会改用 method 的方式，通过父类间接实现的需要显式声明 serialVersionUID。
+     * 修改后所有类的插桩结果都会变化，需要在发布新版本时修改，否则下一个补丁会包含所有类
+     */
+    private String injection;
+
+    /**
+     * 不插桩的枚举类的全类名，如 com.demo.plugin.Color。这些枚举确定不会被打补丁，
+     * 接口和注解不需要配置，总是不插桩
+     */
+    private List<String> skipEnums;
+
+    /**
+     * 需要插桩的类，为空（默认）时包含所有类。写法见 {@link ClassFilter}，
+     * 如 com.acme.**、com.acme.*.Test、com.acme.Foo（包括内部类和以它为包名的类）
+     */
+    private List<String> includes;
+
+    /**
+     * 不插桩的类，写法与 includes 相同。系统和 Android 库（java、javax、dalvik、android、androidx、
+     * com.android、com.google.android）、补丁加载库以及 Application 类总是被排除
+     */
+    private List<String> excludes;
+
+    /**
+     * 可选项，本次编译是一个发布版本时填写它的 tag，如 versionCode。补丁任务会把本次的摘要记录到
+     * 发布历史中，之后可以通过 patchBaselines 为这个版本生成补丁。同一个 tag 只能记录一次
+     */
+    private String baselineTag;
+
+    /**
+     * 需要生成补丁的发布版本的 tag，为空（默认）时只生成与上一次编译相比的补丁。
+     * 一次插桩会为每个版本分别生成补丁，输出到 releases/[tag] 目录
+     */
+    private List<String> patchBaselines;
+
+    /**
+     * 可选项，发布历史的目录，默认为 app/patch-history/[variantName]。
+     * 发布历史需要长期保存，不应该放在 build 目录中
+     */
+    private String historyDir;
+
+    /**
+     * 插桩时读取 class 的缓冲区可以占用的内存上限，单位 MB，默认为 256。所有变体和工作项共用，
+     * 超出时读取大 class 的工作项会等待其它工作项释放缓冲区
+     */
+    private long memoryBudget;
+
+    /**
+     * 补丁包的压缩级别 0-9，默认为 6，0 表示不压缩（STORED）。补丁包的条目按名字排序、
+     * 使用固定的时间，相同的输入总是生成字节完全相同的补丁包
+     */
+    private int compressLevel;
+
+    /**
+     * 守护进程缓存的容量，单位 MB，默认为 128，0 表示不开启。解析过的基准摘要、输入文件记录、
+     * 依赖索引和 mapping 索引保存在 Gradle 守护进程中，文件没有变化时之后的构建直接使用
+     */
+    private long daemonCacheSize;
+
     public PatchExtension() {
         this.debugOn = false;
+        this.parallelism = 1;
+        this.cacheEnabled = true;
+        this.cacheSize = 512;
+        this.digest = "murmur3";
+        this.dexer = "d8";
+        this.includeDependents = true;
+        this.injection = "constructor";
+        this.skipEnums = new ArrayList<>();
+        this.includes = new ArrayList<>();
+        this.excludes = new ArrayList<>();
+        this.patchBaselines = new ArrayList<>();
+        this.memoryBudget = 256;
+        this.compressLevel = 6;
+        this.daemonCacheSize = 128;
     }
 
     public boolean isDebugOn() {
@@ -36,6 +178,87 @@ public class PatchExtension {
         return output;
     }
 
+    @Deprecated
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public boolean isIncludeDependents() {
+        return includeDependents;
+    }
+
+    public String getInjection() {
+        return injection;
+    }
+
+    public List<String> getSkipEnums() {
+        return skipEnums;
+    }
+
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    public String getBaselineTag() {
+        return baselineTag;
+    }
+
+    public List<String> getPatchBaselines() {
+        return patchBaselines;
+    }
+
+    public String getHistoryDir() {
+        return historyDir;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public long getDaemonCacheSize() {
+        return daemonCacheSize;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public String getDexer() {
+        return dexer;
+    }
+
     public void setDebugOn(boolean debugOn) {
         this.debugOn = debugOn;
     }
@@ -47,4 +270,88 @@ public class PatchExtension {
     public void setOutput(String output) {
         this.output = output;
     }
+
+    @Deprecated
+    public void setParallelism(int parallelism) {
+        // 配置项不再生效，提示使用者改用 Gradle 的并行数配置，而不是静默忽略
+        Logging.getLogger(PatchExtension.class).warn("patch.parallelism 已废弃，不再生效：插桩并行数由 Gradle 的 "
+                + "--max-workers（org.gradle.workers.max）控制");
+        this.parallelism = parallelism;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public void setDexer(String dexer) {
+        this.dexer = dexer;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public void setIncludeDependents(boolean includeDependents) {
+        this.includeDependents = includeDependents;
+    }
+
+    public void setInjection(String injection) {
+        this.injection = injection;
+    }
+
+    public void setSkipEnums(List<String> skipEnums) {
+        this.skipEnums = skipEnums;
+    }
+
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+
+    public void setBaselineTag(String baselineTag) {
+        this.baselineTag = baselineTag;
+    }
+
+    public void setPatchBaselines(List<String> patchBaselines) {
+        this.patchBaselines = patchBaselines;
+    }
+
+    public void setHistoryDir(String historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public void setCompressLevel(int compressLevel) {
+        this.compressLevel = compressLevel;
+    }
+
+    public void setDaemonCacheSize(long daemonCacheSize) {
+        this.daemonCacheSize = daemonCacheSize;
+    }
 }
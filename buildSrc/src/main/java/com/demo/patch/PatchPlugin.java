@@ -7,28 +7,19 @@ import com.android.build.gradle.internal.pipeline.TransformTask;
 import com.android.build.gradle.internal.transforms.ProGuardTransform;
 import com.android.utils.FileUtils;
 
-import org.apache.commons.io.IOUtils;
 import org.gradle.api.Action;
 import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.execution.TaskExecutionListener;
 import org.gradle.api.tasks.TaskOutputs;
-import org.jetbrains.annotations.NotNull;
+import org.gradle.api.tasks.TaskState;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
 
 public class PatchPlugin implements Plugin<Project> {
 
@@ -80,78 +71,98 @@ public class PatchPlugin implements Plugin<Project> {
         String variantCapName = Utils.capitalize(variantName);
         Task proguardTask = project.getTasks().findByName("transformClassesAndResourcesWithProguardFor"
                 + variantCapName);
+        // 备份的 mapping 文件，下次编译时继续使用
+        File mappingFile = new File(project.getBuildDir(), "mapping.txt");
+        // 由 mapping 文件生成的混淆名索引，插桩时用它在原始名字下计算摘要
+        File mappingStoreFile = new File(project.getBuildDir(), MappingStore.FILE_NAME);
         if (proguardTask != null) {
-            configProguardTask(project, proguardTask);
+            configProguardTask(project, proguardTask, mappingFile, mappingStoreFile);
         }
 
-        // 3.配置任务，进行字节码插桩和补丁生成
-        Task dexTask = getTransformTask(project, patchExtension, outputDir, variantCapName);
-
-        // 4.创建打补丁的任务 patchDebug/patchRelease，依赖于 dex 打包任务
-        Task task = project.getTasks().create("patch" + variantCapName);
+        // 3.创建插桩任务 instrumentDebug/instrumentRelease，在 dex 打包之前把它的输入拷贝到自己的输出目录中插桩
+        File hexFile = new File(outputDir, HexIndex.FILE_NAME);
+        File workDir = new File(outputDir, "work");
+        InstrumentSettings settings = Utils.createInstrumentSettings(project, patchExtension, variantName, hexFile,
+                proguardTask != null ? mappingStoreFile : null);
+        Task dexTask = project.getTasks().findByName("transformClassesWithDexBuilderFor" + variantCapName);
+        InstrumentedInputs instrumentedInputs = new InstrumentedInputs(new File(outputDir, "instrumented"),
+                new File(outputDir, "dex-inputs"));
+        InstrumentTask instrumentTask = project.getTasks().create("instrument" + variantCapName,
+                InstrumentTask.class);
+        instrumentTask.setGroup("patch");
+        instrumentTask.configure(settings, dexTask.getInputs().getFiles(), instrumentedInputs, workDir,
+                new File(outputDir, InputState.FILE_NAME), patchExtension.isIncremental());
+        // 插桩任务依赖于生成 dex 任务输入的任务，而不是 dex 任务本身
+        instrumentTask.dependsOn(dexTask.getInputs().getFiles());
+        dexTask.dependsOn(instrumentTask);
+        configDexTask(project, dexTask, settings, instrumentedInputs);
+
+        // 4.创建打补丁的任务 patchDebug/patchRelease，依赖于 dex 打包任务，dex 打包完成后自动执行
+        PatchTask task = project.getTasks().create("patch" + variantCapName, PatchTask.class);
         task.setGroup("patch");
-        task.dependsOn(dexTask);
+        task.configure(patchExtension, settings, Utils.createPatchSettings(project, variant, patchExtension),
+                mappingStoreFile, outputDir, workDir, variantCapName);
+        task.dependsOn(instrumentTask, dexTask);
+        dexTask.finalizedBy(task);
+
+        // 5.创建预览补丁内容的任务 patchDiffDebug/patchDiffRelease，只读取 dex 任务的输入，
+        // 不生成插桩副本，也不执行 dex 打包
+        PatchDiffTask diffTask = project.getTasks().create("patchDiff" + variantCapName, PatchDiffTask.class);
+        diffTask.setGroup("patch");
+        diffTask.configure(settings, dexTask.getInputs().getFiles(), instrumentedInputs, outputDir);
+        diffTask.dependsOn(dexTask.getInputs().getFiles());
+        // 与插桩、补丁任务在同一次构建中执行时，等副本和备份写好之后再比较
+        diffTask.mustRunAfter(instrumentTask, task);
     }
 
-    @NotNull
-    private Task getTransformTask(Project project, PatchExtension patchExtension, File outputDir, String variantCapName) {
-        // 保存 class 文件名及其 md5 值的文件
-        File hexFile = new File(outputDir, "hex.txt");
-        // 需要打补丁的类组成的 jar 包
-        File patchClassFile = new File(outputDir, "patchClass.jar");
-        // dx 命令打包 patchClassFile 后生成的补丁包，最终产物
-        File patchFile = new File(outputDir, "patch.jar");
-
-        // 获取将 class 打包成 dex 的任务
-        Task dexTask = project.getTasks().findByName("transformClassesWithDexBuilderFor" + variantCapName);
-        // 在开始打包之前，插桩并记录每个 class 的 md5 哈希值
+    /**
+     * dex 任务执行时换用插桩副本，执行结束后（包括失败时）换回原文件。Gradle 在任务开始执行之前
+     * 就记录了输入，记录的是原文件；插桩配置变化时副本的内容也会变化，所以把它也作为 dex 任务的输入
+     */
+    private void configDexTask(Project project, final Task dexTask, final InstrumentSettings settings,
+                               final InstrumentedInputs instrumentedInputs) {
+        dexTask.getInputs().property("patchInstrumentation", new Callable<String>() {
+            @Override
+            public String call() {
+                return settings.instrumentFingerprint();
+            }
+        });
         dexTask.doFirst(new Action<Task>() {
             @Override
             public void execute(Task task) {
-                // 将 Application 全类名中的 . 替换成平台相关的斜杠，Windows 是 xx\xx\，Linux 是 xx/xx/
-                String applicationName = patchExtension.getApplicationName();
-                applicationName = applicationName.replaceAll("\\.", Matcher.quoteReplacement(File.separator));
-
-                // 记录类本次编译的 md5 值
-                Map<String, String> newHexes = new HashMap<>();
-
-                // 负责生成补丁
-                PatchGenerator patchGenerator = new PatchGenerator(project, patchFile, patchClassFile, hexFile);
-
-                // 遍历 dexTask 任务的输入文件，对 class 和 jar 文件进行处理，像 app 中的 MainActivity
-                // 的路径是：app\build\intermediates\transforms\proguard\debug\0.jar
-                Set<File> files = dexTask.getInputs().getFiles().getFiles();
-                for (File file : files) {
-                    String filePath = file.getAbsolutePath();
-                    // 插桩，并做 md5 值比较，不一致的放入补丁包
-                    if (filePath.endsWith(".class")) {
-                        processClass(project, applicationName, file, newHexes, patchGenerator);
-                    } else if (filePath.endsWith(".jar")) {
-                        processJar(project, applicationName, file, newHexes, patchGenerator);
-                    }
+                try {
+                    instrumentedInputs.install(task.getInputs().getFiles());
+                } catch (IOException e) {
+                    throw new GradleException("换用插桩后的文件失败", e);
                 }
+            }
+        });
+        project.getGradle().getTaskGraph().addTaskExecutionListener(new TaskExecutionListener() {
+            @Override
+            public void beforeExecute(Task task) {
+            }
 
-                // 保存本次编译的 md5
-                Utils.writeHex(newHexes, hexFile);
-
-                // 生成补丁文件
+            @Override
+            public void afterExecute(Task task, TaskState state) {
+                if (task != dexTask) {
+                    return;
+                }
                 try {
-                    patchGenerator.generate();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    instrumentedInputs.restore();
+                } catch (IOException e) {
+                    throw new GradleException("恢复 dex 任务的输入文件失败，请执行 clean 后重新编译", e);
                 }
             }
         });
-        return dexTask;
     }
 
-    private void configProguardTask(Project project, Task proguardTask) {
+    private void configProguardTask(Project project, Task proguardTask, File backupMappingFile,
+                                    File mappingStoreFile) {
         if (proguardTask == null) {
             return;
         }
 
         // 如果有备份的 mapping 文件，那么本次编译还要使用上次的 mapping
-        File backupMappingFile = new File(project.getBuildDir(), "mapping.txt");
         if (backupMappingFile.exists()) {
             TransformTask task = (TransformTask) proguardTask;
             ProGuardTransform transform = (ProGuardTransform) task.getTransform();
@@ -159,7 +170,8 @@ public class PatchPlugin implements Plugin<Project> {
             transform.applyTestedMapping(backupMappingFile);
         }
 
-        // 只要开启了混淆，在混淆任务结束后就要把 mapping 文件备份
+        // 只要开启了混淆，在混淆任务结束后就要更新混淆名索引。mapping 文件可能有几百 MB，
+        // 只有内容发生变化时才重新备份
         proguardTask.doLast(new Action<Task>() {
             @Override
             public void execute(Task task) {
@@ -169,9 +181,15 @@ public class PatchPlugin implements Plugin<Project> {
                 for (File file : files) {
                     if (file.getName().endsWith("mapping.txt")) {
                         try {
-                            FileUtils.copyFile(file, backupMappingFile);
-                            project.getLogger().info("mapping: " + backupMappingFile.getCanonicalPath());
+                            boolean changed = MappingStore.update(mappingStoreFile, file, project.getLogger());
+                            if (changed || !backupMappingFile.exists()) {
+                                FileUtils.copyFile(file, backupMappingFile);
+                            }
+                            project.getLogger().info("mapping: " + backupMappingFile.getCanonicalPath()
+                                    + (changed ? "" : "，没有变化"));
                         } catch (IOException e) {
+                            // 过期的索引会把不同的名字换成同一个，宁可不做替换
+                            mappingStoreFile.delete();
                             e.printStackTrace();
                         }
                         break;
@@ -180,101 +198,4 @@ public class PatchPlugin implements Plugin<Project> {
             }
         });
     }
-
-    /**
-     * 对 class 文件执行插桩，并记录插装后的 md5，与上一次编译的备份 md5
-     * 做比较，如果比较结果不相同，说明文件发生了变化，需要打包进补丁包中
-     *
-     * @param applicationName Application 全类名对应的路径名，如：com\demo\plugin\Application
-     * @param file            待处理的 class 文件
-     * @param newHexes        记录 Map<class,String> 类名与对应 md5 值的 Map
-     * @param patchGenerator  生成补丁包
-     */
-    private void processClass(Project project, String applicationName, File file, Map<String, String> newHexes,
-                              PatchGenerator patchGenerator) {
-        // 截取文件的绝对路径，仅保留包名之后的部分，比如 filePath 为
-        // app\build\intermediates\javac\debug\compileDebugJavaWithJavac\classes\com\demo\plugin\Test.class，
-        // 那么截取后的 classPath 就是 com\demo\plugin\Test.class
-        String filePath = file.getAbsolutePath();
-        String classPath = filePath.split("classes")[1].substring(1);
-
-        if (classPath.startsWith(applicationName) || Utils.isAndroidClass(classPath)) {
-            return;
-        }
-
-        try {
-            project.getLogger().info("开始处理 class 文件：" + filePath);
-            FileInputStream fis = new FileInputStream(filePath);
-            // 插桩
-            byte[] bytes = ClassUtils.referHackWhenInit(fis);
-
-            // 生成这个 class 文件的 16 进制 md5
-            String hex = Utils.hex(bytes);
-            fis.close();
-
-            // 输出插桩后的 class 文件
-            FileOutputStream fos = new FileOutputStream(filePath);
-            fos.write(bytes);
-            fos.close();
-
-            // 将本次的 md5 值存入缓存，并与上一次的 md5 进行对比
-            newHexes.put(classPath, hex);
-            patchGenerator.checkClass(classPath, hex, bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * 对 jar 包中的 class 文件执行插桩，并记录插装后的 md5，与上一次编译的备份 md5
-     * 做比较，如果比较结果不相同，说明文件发生了变化，需要打包进补丁包中
-     *
-     * @param applicationName
-     * @param file            条件限定，这个 file 是个 jar 包
-     * @param hexes           保存类名及其 md5 值的 Map
-     * @param patchGenerator  生成补丁
-     */
-    private void processJar(Project project, String applicationName, File file, Map<String, String> hexes,
-                            PatchGenerator patchGenerator) {
-        try {
-            applicationName = applicationName.replaceAll(Matcher.quoteReplacement(File.separator), "/");
-            File backupJar = new File(file.getParent(), file.getName() + ".bak");
-
-            JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(backupJar));
-
-            JarFile jarFile = new JarFile(file);
-            Enumeration<JarEntry> entries = jarFile.entries();
-
-            while (entries.hasMoreElements()) {
-                JarEntry jarEntry = entries.nextElement();
-                String className = jarEntry.getName();
-                jarOutputStream.putNextEntry(new JarEntry(className));
-                InputStream inputStream = jarFile.getInputStream(jarEntry);
-
-                if (className.endsWith(".class") && !className.startsWith(applicationName) &&
-                        !Utils.isAndroidClass(className) && !className.startsWith("com/demo/patch")) {
-                    project.getLogger().info("开始处理 jar 包中的 class 文件：" + className);
-                    byte[] bytes = ClassUtils.referHackWhenInit(inputStream);
-                    String hex = Utils.hex(bytes);
-                    hexes.put(className, hex);
-                    // 对比缓存的 md5，不一致则放入补丁
-                    patchGenerator.checkClass(className, hex, bytes);
-                    jarOutputStream.write(bytes);
-                } else {
-                    // 输出到临时文件
-                    jarOutputStream.write(IOUtils.toByteArray(inputStream));
-                }
-
-                inputStream.close();
-                jarOutputStream.closeEntry();
-            }
-
-            jarOutputStream.close();
-            jarFile.close();
-            file.delete();
-            backupJar.renameTo(file);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
 }
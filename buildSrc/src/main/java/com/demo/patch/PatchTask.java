@@ -0,0 +1,338 @@
+package com.demo.patch;
+
+import com.android.build.gradle.AppExtension;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.Task;
+import org.gradle.api.file.ConfigurableFileTree;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.OutputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 生成补丁的任务，patchDebug/patchRelease。
+ * <p>
+ * 在 dex 打包完成后执行，此时所有插桩工作项都已完成：按顺序读取各工作项的结果，交给 {@link PatchEngine}
+ * 合并，查找受影响的类，保存本次编译的摘要备份和输入文件记录，然后生成补丁包和报告。
+ * <p>
+ * 补丁只由插桩的结果、上一次的备份、插件配置和 mapping 文件决定，这些都声明为输入，
+ * 补丁包和新的备份声明为输出，可以从构建缓存中直接取得。输入的路径都是相对的，不同机器上的
+ * 相同构建也能命中缓存。新的备份写在 baseline 目录中，由下一次构建的插桩任务取用。
+ * <p>
+ * 配置了 patchBaselines 时，同一次插桩的结果还会与每个发布版本分别比较，各自生成补丁；
+ * 配置了 baselineTag 时，本次的摘要会记录到发布历史中。这两种情况都不使用构建缓存
+ */
+@CacheableTask
+public class PatchTask extends DefaultTask {
+
+    private PatchExtension patchExtension;
+    private InstrumentSettings settings;
+    private PatchSettings patchSettings;
+    private File mappingFile;
+    private File outputDir;
+    private File workDir;
+    private String variantName;
+
+    public PatchTask() {
+        // 差分文件依赖于上一次生成的补丁包，而它不是任务的输入
+        getOutputs().doNotCacheIf("开启了差分补丁", new Spec<Task>() {
+            @Override
+            public boolean isSatisfiedBy(Task task) {
+                return patchExtension.isDelta();
+            }
+        });
+        // 发布历史在构建目录之外，记录新的版本不是任务的输出
+        getOutputs().doNotCacheIf("记录或使用了发布版本", new Spec<Task>() {
+            @Override
+            public boolean isSatisfiedBy(Task task) {
+                return patchExtension.getBaselineTag() != null || !settings.patchBaselines.isEmpty();
+            }
+        });
+    }
+
+    /**
+     * @param patchExtension 插件配置
+     * @param settings       插桩配置，与插桩任务使用的是同一个
+     * @param patchSettings  生成补丁包的配置
+     * @param mappingFile    混淆名索引 mapping.idx，没有开启混淆时不存在
+     * @param outputDir      补丁输出目录
+     * @param workDir        插桩工作项结果所在的目录
+     * @param variantName    首字母大写的变体名
+     */
+    public void configure(PatchExtension patchExtension, InstrumentSettings settings, PatchSettings patchSettings,
+                          File mappingFile, File outputDir, File workDir, String variantName) {
+        this.patchExtension = patchExtension;
+        this.settings = settings;
+        this.patchSettings = patchSettings;
+        this.mappingFile = mappingFile;
+        this.outputDir = outputDir;
+        this.workDir = workDir;
+        this.variantName = variantName;
+    }
+
+    /**
+     * 插桩任务写入 work 目录的各工作项结果和类依赖索引，其中的摘要和补丁 class 完全由输入文件的内容和插桩配置决定。
+     * 同名的 .state 文件记录的是绝对路径、修改时间和耗时，只进入 {@link #getStateFile()} 和报告，不声明为输入，
+     * 避免不同机器上的相同构建无法命中缓存
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getResults() {
+        ConfigurableFileTree results = getProject().fileTree(workDir);
+        results.include("*" + InstrumentResult.EXTENSION, "*" + InstrumentResult.DEPENDENCIES_EXTENSION);
+        return results;
+    }
+
+    /**
+     * 上一次编译的摘要备份和依赖索引，第一次编译时不存在
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getBaseline() {
+        return getProject().files(settings.hexFile, new File(outputDir, DependencyIndex.FILE_NAME));
+    }
+
+    /**
+     * 开启混淆时摘要在原始名字下计算，补丁依赖的是混淆名索引，而不是备份的 mapping.txt
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getMappingFile() {
+        return getProject().files(mappingFile);
+    }
+
+    /**
+     * 插桩范围，包括 Application 类和 includes、excludes 配置，与平台无关
+     */
+    @Input
+    public String getClassFilter() {
+        return settings.classFilter.fingerprint();
+    }
+
+    @Input
+    public String getDigest() {
+        return patchExtension.getDigest();
+    }
+
+    @Input
+    public String getInjection() {
+        return settings.strategy.name();
+    }
+
+    @Input
+    public Set<String> getSkippedEnums() {
+        return new TreeSet<>(settings.skippedEnums);
+    }
+
+    @Input
+    public String getDexer() {
+        return patchExtension.getDexer();
+    }
+
+    @Input
+    public int getCompressLevel() {
+        return patchExtension.getCompressLevel();
+    }
+
+    @Input
+    public boolean isVerify() {
+        return settings.verify;
+    }
+
+    @Input
+    public boolean isIncludeDependents() {
+        return settings.includeDependents;
+    }
+
+    @Input
+    public boolean isDelta() {
+        return patchExtension.isDelta();
+    }
+
+    @Input
+    @Optional
+    public String getBaselineTag() {
+        return patchExtension.getBaselineTag();
+    }
+
+    @Input
+    public List<String> getPatchBaselines() {
+        return settings.patchBaselines;
+    }
+
+    /**
+     * 需要生成补丁的发布版本在发布历史中的记录
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public FileCollection getReleaseBaselines() {
+        return Utils.releaseBaselines(getProject(), settings);
+    }
+
+    @Input
+    @Optional
+    public String getBuildToolsVersion() {
+        return getProject().getExtensions().getByType(AppExtension.class).getBuildToolsVersion();
+    }
+
+    @Input
+    public int getMinSdkVersion() {
+        return patchSettings.minApiLevel;
+    }
+
+    @OutputFile
+    public File getPatchFile() {
+        return createEngine().getPatchFile();
+    }
+
+    @OutputFile
+    public File getManifestFile() {
+        return createEngine().getManifestFile();
+    }
+
+    /**
+     * 输入文件记录由本任务写出、由下一次的插桩任务读取，必须与 baseline 目录中的备份来自同一次构建：
+     * 从构建缓存中取出备份时也要一起取出，否则增量处理会把旧记录中的摘要与新的备份混在一起
+     */
+    @OutputFile
+    public File getStateFile() {
+        return createEngine().getStateFile();
+    }
+
+    @OutputFile
+    public File getReportFile() {
+        return createEngine().getReportFile();
+    }
+
+    /**
+     * 为各个发布版本生成的补丁包和清单
+     */
+    @OutputFiles
+    public List<File> getReleasePatchFiles() {
+        List<File> files = new ArrayList<>();
+        for (String tag : settings.patchBaselines) {
+            files.add(new File(settings.releaseDir(tag), PatchEngine.PATCH_FILE_NAME));
+            files.add(new File(settings.releaseDir(tag), PatchManifest.FILE_NAME));
+        }
+        return files;
+    }
+
+    /**
+     * 本次编译的摘要备份和依赖索引
+     */
+    @OutputDirectory
+    public File getBaselineDir() {
+        return createEngine().getBaselineDir();
+    }
+
+    /**
+     * 工作项结果所在的目录，其中需要的文件由 {@link #getResults()} 声明为输入
+     */
+    @Internal
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    @Internal
+    public String getVariantName() {
+        return variantName;
+    }
+
+    @TaskAction
+    public void generate() {
+        PatchReport report = new PatchReport();
+        report.setAttribute("variant", variantName);
+        report.setAttribute("digest", patchExtension.getDigest());
+        report.setAttribute("dexer", patchExtension.getDexer());
+        report.setAttribute("injection", getInjection());
+        report.setAttribute("maxWorkers", getProject().getGradle().getStartParameter().getMaxWorkerCount());
+        report.setAttribute("incremental", patchExtension.isIncremental());
+        report.setAttribute("cacheEnabled", patchExtension.isCacheEnabled());
+
+        // 按工作项的提交顺序读取结果，同一个类出现在多个输入文件中时与串行处理的结果一致
+        List<InstrumentResult> results = new ArrayList<>();
+        for (File resultFile : listResultFiles()) {
+            InstrumentResult result;
+            try {
+                result = InstrumentResult.read(resultFile, report);
+            } catch (IOException e) {
+                throw new GradleException("读取插桩结果失败：" + resultFile.getAbsolutePath(), e);
+            }
+            if (settings.includeDependents) {
+                result.dependencies = DependencyIndex.read(InstrumentWork.dependencyFile(resultFile));
+            }
+            results.add(result);
+        }
+
+        PatchEngine.Result result = createEngine().generate(results, report);
+        // 最后记录备份和输入文件记录来自哪一次插桩，下一次插桩任务据此判断记录能否沿用
+        try {
+            Files.copy(new File(workDir, InstrumentTask.EXECUTION_ID_NAME).toPath(),
+                    new File(getBaselineDir(), InstrumentTask.EXECUTION_ID_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GradleException("保存插桩的执行编号失败：" + workDir.getAbsolutePath(), e);
+        }
+        getLogger().info("补丁包含 " + result.patchClasses.size() + " 个类：" + result.patchFile.getAbsolutePath());
+        if (result.recorded) {
+            getLogger().lifecycle("已记录发布版本 " + patchSettings.baselineTag + "：" + settings.historyDir);
+        }
+    }
+
+    private PatchEngine createEngine() {
+        return new PatchEngine(getLogger(), settings, patchSettings, outputDir);
+    }
+
+    /**
+     * 插桩任务写入的结果文件，沿用的记录在最前面，其余按提交顺序排列
+     */
+    private File[] listResultFiles() {
+        File[] files = workDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(InstrumentResult.EXTENSION);
+            }
+        });
+        if (files == null) {
+            throw new GradleException("没有找到插桩结果，请先执行插桩任务：" + workDir.getAbsolutePath());
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Integer.compare(order(o1), order(o2));
+            }
+        });
+        return files;
+    }
+
+    private static int order(File resultFile) {
+        if (InstrumentTask.CARRIED_RESULT_NAME.equals(resultFile.getName())) {
+            return -1;
+        }
+        String name = resultFile.getName();
+        return Integer.parseInt(name.substring(0, name.length() - InstrumentResult.EXTENSION.length()));
+    }
+}
@@ -1,17 +1,23 @@
 package com.demo.patch;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import com.android.build.gradle.AppExtension;
+import com.android.build.gradle.api.ApplicationVariant;
+import com.android.builder.model.ApiVersion;
+
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.gradle.api.GradleException;
 import org.gradle.api.Project;
+import org.gradle.api.file.FileCollection;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 public class Utils {
 
@@ -27,54 +33,118 @@ public class Utils {
         return map == null || map.isEmpty();
     }
 
-    public static boolean isAndroidClass(String className) {
-        return className.contains("android") || className.contains("androidx");
+    /**
+     * 根据扩展的配置创建插桩配置，需要在 afterEvaluate 之后调用
+     *
+     * @param variantName 变体名
+     * @param hexFile     上一次编译的摘要备份
+     * @param mappingFile 混淆名索引，没有开启混淆时为 null
+     */
+    public static InstrumentSettings createInstrumentSettings(Project project, PatchExtension patchExtension,
+                                                              String variantName, File hexFile,
+                                                              File mappingFile) {
+        File cacheDir = null;
+        if (patchExtension.isCacheEnabled()) {
+            if (!Utils.isEmpty(patchExtension.getCacheDir())) {
+                cacheDir = new File(patchExtension.getCacheDir());
+            } else {
+                cacheDir = new File(project.getBuildDir(), "patch-cache");
+            }
+        }
+        // 枚举的全类名转换成内部名
+        HashSet<String> skippedEnums = new HashSet<>();
+        if (patchExtension.getSkipEnums() != null) {
+            for (String enumName : patchExtension.getSkipEnums()) {
+                skippedEnums.add(enumName.replace('.', '/'));
+            }
+        }
+        // 发布历史需要长期保存，默认放在模块目录下而不是 build 目录
+        File historyDir;
+        if (!Utils.isEmpty(patchExtension.getHistoryDir())) {
+            historyDir = new File(patchExtension.getHistoryDir(), variantName);
+        } else {
+            historyDir = new File(project.getProjectDir(), "patch-history/" + variantName);
+        }
+        ArrayList<String> patchBaselines = new ArrayList<>();
+        if (patchExtension.getPatchBaselines() != null) {
+            for (String tag : patchExtension.getPatchBaselines()) {
+                BaselineHistory.checkTag(tag);
+                if (!patchBaselines.contains(tag)) {
+                    patchBaselines.add(tag);
+                }
+            }
+        }
+        if (patchExtension.getBaselineTag() != null) {
+            BaselineHistory.checkTag(patchExtension.getBaselineTag());
+        }
+        ClassFilter classFilter = ClassFilter.of(patchExtension.getApplicationName(), patchExtension.getIncludes(),
+                patchExtension.getExcludes());
+        return new InstrumentSettings(classFilter, patchExtension.getDigest(),
+                InjectionStrategy.of(patchExtension.getInjection()), skippedEnums, patchExtension.isVerify(),
+                patchExtension.isIncludeDependents(), hexFile, cacheDir,
+                patchExtension.getCacheSize() * 1024 * 1024, mappingFile, historyDir, patchBaselines,
+                new File(hexFile.getParentFile(), "releases"), patchExtension.getMemoryBudget() * 1024 * 1024,
+                patchExtension.getDaemonCacheSize() * 1024 * 1024);
     }
 
-    public static String hex(byte[] bytes) {
-        return DigestUtils.md5Hex(bytes);
+    /**
+     * 根据扩展和变体的配置创建生成补丁包的配置，需要在 afterEvaluate 之后调用。
+     * minSdkVersion 取合并了 productFlavors 之后的值，各个 flavor 可以有不同的 minSdkVersion
+     */
+    public static PatchSettings createPatchSettings(Project project, ApplicationVariant variant,
+                                                    PatchExtension patchExtension) {
+        AppExtension android = project.getExtensions().getByType(AppExtension.class);
+        ApiVersion minSdkVersion = variant.getMergedFlavor().getMinSdkVersion();
+        return new PatchSettings(patchExtension.getDexer(), patchExtension.isDelta(),
+                patchExtension.getCompressLevel(), minSdkVersion == null ? 1 : minSdkVersion.getApiLevel(),
+                findDx(project, android.getBuildToolsVersion()), patchExtension.getBaselineTag());
     }
 
-    public static void writeHex(Map<String, String> hexes, File hexFile) {
-        try {
-            if (!hexFile.exists()) {
-                hexFile.getParentFile().mkdirs();
-                hexFile.createNewFile();
-            }
-            FileOutputStream fileOutputStream = new FileOutputStream(hexFile);
-            for (String key : hexes.keySet()) {
-                String line = key + ":" + hexes.get(key) + "\n";
-                fileOutputStream.write(line.getBytes());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * 需要生成补丁的发布版本在发布历史中的记录，插桩任务和补丁任务都以它为输入
+     */
+    public static FileCollection releaseBaselines(Project project, InstrumentSettings settings) {
+        BaselineHistory history = settings.history();
+        List<File> files = new ArrayList<>();
+        if (!settings.patchBaselines.isEmpty()) {
+            files.add(history.poolFile());
+        }
+        for (String tag : settings.patchBaselines) {
+            files.add(history.releaseFile(tag));
+            files.add(history.dependencyFile(tag));
         }
+        return project.files(files);
     }
 
-    public static Map<String, String> readHex(File hexFile) {
-        Map<String, String> hashMap = new HashMap<>();
-        BufferedReader br = null;
-        try {
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(hexFile)));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] list = line.split(":");
-                if (list != null && list.length == 2) {
-                    hashMap.put(list[0], list[1]);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (br != null) {
+    /**
+     * dx 命令在 sdk 中，先从 local.properties 或 ANDROID_HOME 获取 sdk 路径，再拼接出 dx 命令的绝对路径。
+     * 找不到 sdk 时返回 null
+     */
+    private static String findDx(Project project, String buildToolsVersion) {
+        File localPropFile = project.getRootProject().file("local.properties");
+        String sdkDir;
+        if (localPropFile.exists()) {
+            Properties properties = new Properties();
+            try {
+                InputStream inputStream = new FileInputStream(localPropFile);
                 try {
-                    br.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    properties.load(inputStream);
+                } finally {
+                    inputStream.close();
                 }
+            } catch (IOException e) {
+                throw new GradleException("读取 local.properties 失败：" + localPropFile.getAbsolutePath(), e);
             }
+            sdkDir = properties.getProperty("sdk.dir");
+        } else {
+            sdkDir = System.getenv("ANDROID_HOME");
+        }
+        if (sdkDir == null) {
+            return null;
         }
-        return hashMap;
+        // Windows 使用 dx.bat 命令，linux/mac 使用 dx 命令
+        String cmdExt = Os.isFamily(Os.FAMILY_WINDOWS) ? ".bat" : "";
+        return sdkDir + "/build-tools/" + buildToolsVersion + "/dx" + cmdExt;
     }
 
     public static File getOrCreateOutputDir(Project project, String variantName, PatchExtension patchExtension) {
@@ -0,0 +1,55 @@
+package com.demo.patch.loader;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+
+/**
+ * 通过反射把补丁 ClassLoader 的 dexElements 插入到应用 ClassLoader 的 dexElements 之前。
+ * <p>
+ * 只依赖 BaseDexClassLoader 中 pathList 和 DexPathList 中 dexElements 这两个字段的名字，
+ * 不引用 Android 的类，任何带有同名字段的 ClassLoader 都可以使用，便于在 JVM 上验证拼接顺序
+ */
+final class DexElements {
+
+    private DexElements() {
+    }
+
+    /**
+     * 拼接后补丁的元素在前，原有的元素在后，整个数组只替换一次
+     */
+    static void splice(ClassLoader base, ClassLoader patch) throws NoSuchFieldException, IllegalAccessException {
+        Object basePathList = findField(base.getClass(), "pathList").get(base);
+        Object patchPathList = findField(patch.getClass(), "pathList").get(patch);
+        Field elementsField = findField(basePathList.getClass(), "dexElements");
+        Object[] baseElements = (Object[]) elementsField.get(basePathList);
+        Object[] patchElements = (Object[]) findField(patchPathList.getClass(), "dexElements").get(patchPathList);
+        elementsField.set(basePathList, combine(patchElements, baseElements));
+    }
+
+    /**
+     * 合并两个数组，结果的元素类型与 base 相同
+     */
+    static Object[] combine(Object[] patch, Object[] base) {
+        Object[] combined = (Object[]) Array.newInstance(base.getClass().getComponentType(),
+                patch.length + base.length);
+        System.arraycopy(patch, 0, combined, 0, patch.length);
+        System.arraycopy(base, 0, combined, patch.length, base.length);
+        return combined;
+    }
+
+    /**
+     * 在类及其父类中查找字段
+     */
+    static Field findField(Class<?> clazz, String name) throws NoSuchFieldException {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            try {
+                Field field = current.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // 继续查找父类
+            }
+        }
+        throw new NoSuchFieldException(name + " 不在 " + clazz.getName() + " 及其父类中");
+    }
+}
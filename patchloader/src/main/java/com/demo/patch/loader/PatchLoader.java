@@ -0,0 +1,148 @@
+package com.demo.patch.loader;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import dalvik.system.DexClassLoader;
+
+/**
+ * 加载补丁。补丁下载到 {@link #getPatchDir(Context)} 目录中，包括补丁文件和 patch.manifest。
+ * <ul>
+ * <li>{@link #prepare(Context)}：下载完成后在后台线程中并行校验补丁并生成优化后的 dex，
+ * 校验结果和优化后的 dex 都会保存下来</li>
+ * <li>{@link #install(Context)}：在 Application.attachBaseContext 中调用，校验记录有效时不再读取补丁文件，
+ * 优化后的 dex 也可以直接使用，主线程上只剩下创建 ClassLoader 和一次 dexElements 替换</li>
+ * </ul>
+ */
+public final class PatchLoader {
+
+    private static final String TAG = "PatchLoader";
+
+    private static final String PATCH_DIR_NAME = "patch";
+    private static final String OPTIMIZED_DIR_NAME = "patch_odex";
+    private static final String SECONDARY_DEX_DIR_NAME = "patch_dex";
+
+    private static boolean installed;
+
+    private PatchLoader() {
+    }
+
+    /**
+     * 补丁文件和清单所在的目录
+     */
+    public static File getPatchDir(Context context) {
+        return new File(context.getFilesDir(), PATCH_DIR_NAME);
+    }
+
+    /**
+     * 在后台线程中校验补丁并预先生成优化后的 dex，不会加载补丁
+     *
+     * @return 补丁是否可用
+     */
+    public static Future<Boolean> prepare(Context context) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext()
+                : context;
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "patch-prepare");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        try {
+            return executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    List<File> patchFiles = verify(appContext);
+                    if (patchFiles == null) {
+                        return false;
+                    }
+                    // 创建 ClassLoader 时生成优化后的 dex，下次启动直接复用
+                    createClassLoader(appContext, patchFiles);
+                    return true;
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 加载补丁，补丁中的类排在应用自身的类之前。只会加载一次
+     *
+     * @return 是否加载了补丁
+     */
+    public static synchronized boolean install(Context context) {
+        if (installed) {
+            return true;
+        }
+        long begin = SystemClock.uptimeMillis();
+        List<File> patchFiles = verify(context);
+        if (patchFiles == null) {
+            return false;
+        }
+        ClassLoader classLoader = context.getClassLoader();
+        try {
+            DexElements.splice(classLoader, createClassLoader(context, patchFiles));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            Log.e(TAG, "加载补丁失败", e);
+            return false;
+        }
+        installed = true;
+        Log.i(TAG, "加载了 " + patchFiles.size() + " 个补丁文件，耗时 " + (SystemClock.uptimeMillis() - begin) + "ms");
+        return true;
+    }
+
+    /**
+     * 读取清单并校验补丁，没有补丁或校验失败时返回 null。
+     * Android 5.0 以下还会取出补丁中的其它 dex，返回的文件按加载顺序排列
+     */
+    private static List<File> verify(Context context) {
+        File patchDir = getPatchDir(context);
+        File manifestFile = new File(patchDir, PatchManifest.FILE_NAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        try {
+            PatchManifest manifest = PatchManifest.read(manifestFile);
+            if (manifest.getEntries().isEmpty()) {
+                return null;
+            }
+            List<File> patchFiles = new PatchVerifier(patchDir).verify(manifest,
+                    Runtime.getRuntime().availableProcessors());
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                File outputDir = context.getDir(SECONDARY_DEX_DIR_NAME, Context.MODE_PRIVATE);
+                patchFiles = new SecondaryDex(outputDir).extract(manifest.getEntries(), patchFiles);
+            }
+            return patchFiles;
+        } catch (IOException e) {
+            Log.e(TAG, "补丁校验失败", e);
+            return null;
+        }
+    }
+
+    private static ClassLoader createClassLoader(Context context, List<File> patchFiles) {
+        StringBuilder dexPath = new StringBuilder();
+        for (File patchFile : patchFiles) {
+            if (dexPath.length() > 0) {
+                dexPath.append(File.pathSeparatorChar);
+            }
+            dexPath.append(patchFile.getAbsolutePath());
+        }
+        File optimizedDir = context.getDir(OPTIMIZED_DIR_NAME, Context.MODE_PRIVATE);
+        return new DexClassLoader(dexPath.toString(), optimizedDir.getAbsolutePath(), null,
+                context.getClassLoader());
+    }
+}
@@ -0,0 +1,184 @@
+package com.demo.patch.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 补丁清单 patch.manifest，由插件在生成补丁时写入，每行一个 key=value：
+ * <pre>
+ * version=1
+ * patch.count=1
+ * patch.0.name=patch.jar
+ * patch.0.size=1024
+ * patch.0.sha256=...
+ * patch.0.dex=classes.dex,classes2.dex
+ * </pre>
+ * 补丁按下标顺序加载，下标小的排在 dexElements 的前面。dex 是补丁文件中按加载顺序排列的 dex 文件，
+ * 没有这一项时只有 classes.dex。本类只依赖 JDK，可以直接在 JVM 上使用
+ */
+public final class PatchManifest {
+
+    public static final String FILE_NAME = "patch.manifest";
+
+    private static final int VERSION = 1;
+
+    /**
+     * 清单中的一个补丁文件
+     */
+    public static final class Entry {
+        /**
+         * 补丁文件名，与清单在同一个目录中
+         */
+        public final String name;
+        public final long size;
+        public final String sha256;
+        /**
+         * 补丁文件中的 dex 文件，依次为 classes.dex、classes2.dex...
+         */
+        public final List<String> dexFiles;
+
+        Entry(String name, long size, String sha256, List<String> dexFiles) {
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+            this.dexFiles = dexFiles;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private PatchManifest(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * 按加载顺序排列的补丁文件
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public static PatchManifest read(File manifestFile) throws IOException {
+        InputStream inputStream = new FileInputStream(manifestFile);
+        try {
+            return parse(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 解析清单，格式不对、版本不支持或文件名不合法时抛出异常
+     */
+    public static PatchManifest parse(InputStream inputStream) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int index = line.indexOf('=');
+            if (index <= 0) {
+                throw new IOException("清单格式错误：" + line);
+            }
+            values.put(line.substring(0, index), line.substring(index + 1));
+        }
+
+        String version = values.get("version");
+        if (!String.valueOf(VERSION).equals(version)) {
+            throw new IOException("不支持的清单版本：" + version);
+        }
+        int count = (int) parseNumber(values, "patch.count");
+        List<Entry> entries = new ArrayList<>(count);
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String prefix = "patch." + i + ".";
+            String name = require(values, prefix + "name");
+            // 文件名只能指向清单所在目录中的文件
+            if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals("..")
+                    || name.equals(".")) {
+                throw new IOException("补丁文件名不合法：" + name);
+            }
+            if (!names.add(name)) {
+                throw new IOException("补丁文件重复：" + name);
+            }
+            long size = parseNumber(values, prefix + "size");
+            String sha256 = require(values, prefix + "sha256");
+            if (!isSha256(sha256)) {
+                throw new IOException(prefix + "sha256 格式错误：" + sha256);
+            }
+            entries.add(new Entry(name, size, sha256, parseDexFiles(values.get(prefix + "dex"))));
+        }
+        return new PatchManifest(Collections.unmodifiableList(entries));
+    }
+
+    /**
+     * ART 按 classes.dex、classes2.dex... 的顺序加载，遇到缺失的编号就停止，清单中的顺序必须与之一致
+     */
+    private static List<String> parseDexFiles(String value) throws IOException {
+        if (value == null) {
+            return Collections.singletonList(dexFileName(0));
+        }
+        String[] names = value.split(",");
+        List<String> dexFiles = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (!name.equals(dexFileName(i))) {
+                throw new IOException("dex 文件顺序错误，第 " + (i + 1) + " 个应为 " + dexFileName(i) + "：" + value);
+            }
+            dexFiles.add(name);
+        }
+        return Collections.unmodifiableList(dexFiles);
+    }
+
+    static String dexFileName(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+
+    private static String require(Map<String, String> values, String key) throws IOException {
+        String value = values.get(key);
+        if (value == null) {
+            throw new IOException("清单中缺少 " + key);
+        }
+        return value;
+    }
+
+    private static long parseNumber(Map<String, String> values, String key) throws IOException {
+        String value = require(values, key);
+        try {
+            long number = Long.parseLong(value);
+            if (number < 0) {
+                throw new IOException(key + " 不能为负数：" + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IOException(key + " 不是数字：" + value);
+        }
+    }
+
+    private static boolean isSha256(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
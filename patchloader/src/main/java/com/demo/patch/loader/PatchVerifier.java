@@ -0,0 +1,208 @@
+package com.demo.patch.loader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 按清单校验补丁文件的大小和 SHA-256。
+ * <p>
+ * 需要计算摘要的文件在线程池中并行校验。校验通过后把文件的大小、修改时间和摘要写入校验记录
+ * patch.verified，文件没有变化时下次启动只比较记录，不再读取文件。本类只依赖 JDK
+ */
+public final class PatchVerifier {
+
+    public static final String STAMP_FILE_NAME = "patch.verified";
+
+    private final File patchDir;
+
+    /**
+     * @param patchDir 清单和补丁文件所在的目录
+     */
+    public PatchVerifier(File patchDir) {
+        this.patchDir = patchDir;
+    }
+
+    /**
+     * 校验清单中的所有补丁文件
+     *
+     * @param parallelism 最多同时校验的文件数
+     * @return 按清单顺序排列的补丁文件
+     * @throws IOException 文件缺失或校验失败
+     */
+    public List<File> verify(PatchManifest manifest, int parallelism) throws IOException {
+        List<PatchManifest.Entry> entries = manifest.getEntries();
+        Map<String, String> stamps = readStamps();
+        List<File> files = new ArrayList<>(entries.size());
+        List<PatchManifest.Entry> pending = new ArrayList<>();
+        for (PatchManifest.Entry entry : entries) {
+            File file = new File(patchDir, entry.name);
+            if (!file.isFile() || file.length() != entry.size) {
+                throw new IOException("补丁文件缺失或大小与清单不一致：" + entry.name);
+            }
+            files.add(file);
+            if (!stamp(file, entry).equals(stamps.get(entry.name))) {
+                pending.add(entry);
+            }
+        }
+        if (pending.isEmpty()) {
+            return files;
+        }
+
+        if (pending.size() == 1 || parallelism <= 1) {
+            for (PatchManifest.Entry entry : pending) {
+                check(entry, sha256(new File(patchDir, entry.name)));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, pending.size()));
+            try {
+                List<Future<String>> futures = new ArrayList<>(pending.size());
+                for (final PatchManifest.Entry entry : pending) {
+                    futures.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            return sha256(new File(patchDir, entry.name));
+                        }
+                    }));
+                }
+                for (int i = 0; i < pending.size(); i++) {
+                    check(pending.get(i), futures.get(i).get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("校验补丁时被中断");
+            } catch (ExecutionException e) {
+                throw new IOException("读取补丁文件失败：" + e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // 只保留本次清单中的文件的记录
+        Map<String, String> newStamps = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            newStamps.put(entries.get(i).name, stamp(files.get(i), entries.get(i)));
+        }
+        writeStamps(newStamps);
+        return files;
+    }
+
+    private static void check(PatchManifest.Entry entry, String sha256) throws IOException {
+        if (!entry.sha256.equals(sha256)) {
+            throw new IOException("补丁文件的摘要与清单不一致：" + entry.name);
+        }
+    }
+
+    /**
+     * 校验记录包含清单中的摘要，清单更新后即使文件的大小和修改时间碰巧相同也会重新校验
+     */
+    private static String stamp(File file, PatchManifest.Entry entry) {
+        return file.length() + ":" + file.lastModified() + ":" + entry.sha256;
+    }
+
+    private Map<String, String> readStamps() {
+        Map<String, String> stamps = new HashMap<>();
+        File stampFile = new File(patchDir, STAMP_FILE_NAME);
+        if (!stampFile.exists()) {
+            return stamps;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(stampFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf('=');
+                if (index > 0) {
+                    stamps.put(line.substring(0, index), line.substring(index + 1));
+                }
+            }
+        } catch (IOException e) {
+            // 记录损坏时重新校验即可
+            e.printStackTrace();
+            stamps.clear();
+        } finally {
+            closeQuietly(reader);
+        }
+        return stamps;
+    }
+
+    /**
+     * 先写临时文件再重命名，进程在写入过程中被杀死不会留下不完整的记录
+     */
+    private void writeStamps(Map<String, String> stamps) {
+        File stampFile = new File(patchDir, STAMP_FILE_NAME);
+        File tempFile = new File(patchDir, STAMP_FILE_NAME + ".tmp");
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : stamps.entrySet()) {
+            builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(builder.toString().getBytes("UTF-8"));
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(stampFile)) {
+                throw new IOException("重命名失败：" + tempFile);
+            }
+        } catch (IOException e) {
+            // 记录写入失败只会导致下次重新校验
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            closeQuietly(outputStream);
+        }
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.demo.patch.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 补丁包中有多个 dex 时，Android 5.0 以下的 Dalvik 只会加载每个文件中的 classes.dex。
+ * 这时把 classes2.dex、classes3.dex... 分别取出来，各自放进一个只含 classes.dex 的 zip 文件，
+ * 紧跟在补丁文件之后加入 dexPath。ART 会按顺序加载补丁包中的所有 dex，不需要处理。
+ * <p>
+ * 取出的文件名以补丁的 sha256 开头，补丁更新后旧文件自动失效并被删除；写入时先写临时文件再改名，
+ * 进程中途被杀也不会留下不完整的文件。本类只依赖 JDK，可以直接在 JVM 上使用
+ */
+public final class SecondaryDex {
+
+    private static final String SUFFIX = ".zip";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File outputDir;
+
+    /**
+     * @param outputDir 保存取出的 dex 的目录，只用于这一个用途，其中不属于当前补丁的文件都会被删除
+     */
+    public SecondaryDex(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * 取出所有补丁中 classes.dex 以外的 dex 文件，已经取出过的直接使用
+     *
+     * @param entries    清单中的补丁文件
+     * @param patchFiles 校验通过的补丁文件，与 entries 一一对应
+     * @return 按加载顺序排列的补丁文件和取出的 dex 文件
+     */
+    public List<File> extract(List<PatchManifest.Entry> entries, List<File> patchFiles) throws IOException {
+        List<File> files = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < entries.size(); i++) {
+            PatchManifest.Entry entry = entries.get(i);
+            File patchFile = patchFiles.get(i);
+            files.add(patchFile);
+            if (entry.dexFiles.size() <= 1) {
+                continue;
+            }
+            ZipFile zipFile = new ZipFile(patchFile);
+            try {
+                for (int j = 1; j < entry.dexFiles.size(); j++) {
+                    String dexName = entry.dexFiles.get(j);
+                    String name = entry.sha256.substring(0, 16) + "-" + dexName.replace(".dex", "") + SUFFIX;
+                    File file = new File(outputDir, name);
+                    if (!file.isFile()) {
+                        write(zipFile, dexName, file);
+                    }
+                    names.add(name);
+                    files.add(file);
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+        deleteStale(names);
+        return files;
+    }
+
+    private void write(ZipFile zipFile, String dexName, File file) throws IOException {
+        ZipEntry dexEntry = zipFile.getEntry(dexName);
+        if (dexEntry == null) {
+            throw new IOException("补丁中缺少 " + dexName + "：" + zipFile.getName());
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("无法创建目录：" + outputDir);
+        }
+        File tempFile = new File(outputDir, file.getName() + TEMP_SUFFIX);
+        InputStream inputStream = zipFile.getInputStream(dexEntry);
+        try {
+            ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(tempFile));
+            try {
+                outputStream.putNextEntry(new ZipEntry(PatchManifest.dexFileName(0)));
+                byte[] buffer = new byte[16 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                }
+                outputStream.closeEntry();
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("无法写入：" + file);
+        }
+    }
+
+    private void deleteStale(Set<String> names) {
+        File[] files = outputDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!names.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+}
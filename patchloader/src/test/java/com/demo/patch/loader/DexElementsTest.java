@@ -0,0 +1,125 @@
+package com.demo.patch.loader;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * 用带有同名字段的 URLClassLoader 代替 BaseDexClassLoader，在 JVM 上验证拼接顺序
+ */
+public class DexElementsTest {
+
+    /**
+     * 对应 DexPathList.Element
+     */
+    static final class Element {
+        final String name;
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * 对应 DexPathList
+     */
+    static final class PathList {
+        private Element[] dexElements;
+
+        PathList(Element... dexElements) {
+            this.dexElements = dexElements;
+        }
+    }
+
+    /**
+     * 对应 BaseDexClassLoader，pathList 是私有字段
+     */
+    static class FakeDexClassLoader extends URLClassLoader {
+        private final PathList pathList;
+
+        FakeDexClassLoader(Element... elements) {
+            super(new URL[0], null);
+            this.pathList = new PathList(elements);
+        }
+
+        Element[] dexElements() {
+            return pathList.dexElements;
+        }
+    }
+
+    /**
+     * 对应 PathClassLoader，字段在父类中
+     */
+    static final class FakePathClassLoader extends FakeDexClassLoader {
+        FakePathClassLoader(Element... elements) {
+            super(elements);
+        }
+    }
+
+    @Test
+    public void patchElementsComeFirst() throws Exception {
+        Element base0 = new Element("base.apk");
+        Element base1 = new Element("base.apk!classes2.dex");
+        Element patch0 = new Element("patch.jar");
+        Element patch1 = new Element("patch-base.jar");
+        FakePathClassLoader base = new FakePathClassLoader(base0, base1);
+        FakeDexClassLoader patch = new FakeDexClassLoader(patch0, patch1);
+
+        DexElements.splice(base, patch);
+
+        Element[] elements = base.dexElements();
+        assertArrayEquals(new Element[]{patch0, patch1, base0, base1}, elements);
+        // 数组类型与原来的 dexElements 相同，否则 DexPathList 无法使用
+        assertSame(Element[].class, elements.getClass());
+        // 补丁 ClassLoader 本身不受影响
+        assertArrayEquals(new Element[]{patch0, patch1}, patch.dexElements());
+    }
+
+    @Test
+    public void splicingTwiceStacksNewerPatchFirst() throws Exception {
+        Element base0 = new Element("base.apk");
+        Element first = new Element("first.jar");
+        Element second = new Element("second.jar");
+        FakePathClassLoader base = new FakePathClassLoader(base0);
+        DexElements.splice(base, new FakeDexClassLoader(first));
+        DexElements.splice(base, new FakeDexClassLoader(second));
+        assertArrayEquals(new Element[]{second, first, base0}, base.dexElements());
+    }
+
+    @Test
+    public void emptyPatchKeepsBaseElements() throws Exception {
+        Element base0 = new Element("base.apk");
+        FakePathClassLoader base = new FakePathClassLoader(base0);
+        DexElements.splice(base, new FakeDexClassLoader());
+        assertArrayEquals(new Element[]{base0}, base.dexElements());
+    }
+
+    @Test
+    public void combineUsesBaseComponentType() {
+        Object[] combined = DexElements.combine(new Object[]{"patch"}, new String[]{"base"});
+        assertSame(String[].class, combined.getClass());
+        assertEquals(2, combined.length);
+        assertEquals("patch", combined[0]);
+    }
+
+    @Test
+    public void missingPathListFails() throws Exception {
+        URLClassLoader plain = new URLClassLoader(new URL[0], null);
+        try {
+            DexElements.splice(plain, new FakeDexClassLoader());
+            fail("没有 pathList 字段时应当失败");
+        } catch (NoSuchFieldException expected) {
+        }
+    }
+}
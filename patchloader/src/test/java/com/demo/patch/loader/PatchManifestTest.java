@@ -0,0 +1,139 @@
+package com.demo.patch.loader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PatchManifestTest {
+
+    static final String SHA_A = repeat('a', 64);
+    static final String SHA_B = repeat('b', 64);
+
+    @Test
+    public void parsesEntriesInLoadOrder() throws IOException {
+        PatchManifest manifest = parse("# 注释和空行会被忽略",
+                "",
+                "version=1",
+                "patch.count=2",
+                "patch.0.name=patch.jar",
+                "patch.0.size=1024",
+                "patch.0.sha256=" + SHA_A,
+                "patch.0.dex=classes.dex, classes2.dex",
+                "patch.1.name=patch-base.jar",
+                "patch.1.size=0",
+                "patch.1.sha256=" + SHA_B);
+        List<PatchManifest.Entry> entries = manifest.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("patch.jar", entries.get(0).name);
+        assertEquals(1024, entries.get(0).size);
+        assertEquals(SHA_A, entries.get(0).sha256);
+        assertEquals(Arrays.asList("classes.dex", "classes2.dex"), entries.get(0).dexFiles);
+        assertEquals("patch-base.jar", entries.get(1).name);
+        // 没有 dex 一项时只有 classes.dex
+        assertEquals(Arrays.asList("classes.dex"), entries.get(1).dexFiles);
+    }
+
+    @Test
+    public void parsesEmptyManifest() throws IOException {
+        assertEquals(0, parse("version=1", "patch.count=0").getEntries().size());
+    }
+
+    @Test
+    public void dexFileNamesFollowArtOrder() {
+        assertEquals("classes.dex", PatchManifest.dexFileName(0));
+        assertEquals("classes2.dex", PatchManifest.dexFileName(1));
+        assertEquals("classes10.dex", PatchManifest.dexFileName(9));
+    }
+
+    @Test
+    public void rejectsMalformedLine() {
+        assertInvalid("version=1", "patch.count=0", "这一行没有等号");
+        assertInvalid("=1", "version=1", "patch.count=0");
+    }
+
+    @Test
+    public void rejectsUnsupportedVersion() {
+        assertInvalid("version=2", "patch.count=0");
+        assertInvalid("patch.count=0");
+    }
+
+    @Test
+    public void rejectsMissingOrInvalidNumbers() {
+        assertInvalid("version=1");
+        assertInvalid("version=1", "patch.count=x");
+        assertInvalid(entry("patch.jar", "-1", SHA_A));
+        assertInvalid(entry("patch.jar", "1k", SHA_A));
+        assertInvalid("version=1", "patch.count=1", "patch.0.name=patch.jar", "patch.0.sha256=" + SHA_A);
+    }
+
+    @Test
+    public void rejectsMalformedChecksum() {
+        // 长度不对、含有大写字母或非十六进制字符、缺失
+        assertInvalid(entry("patch.jar", "1", repeat('a', 63)));
+        assertInvalid(entry("patch.jar", "1", repeat('A', 64)));
+        assertInvalid(entry("patch.jar", "1", repeat('g', 64)));
+        assertInvalid("version=1", "patch.count=1", "patch.0.name=patch.jar", "patch.0.size=1");
+    }
+
+    @Test
+    public void rejectsNamesOutsideManifestDir() {
+        assertInvalid(entry("../patch.jar", "1", SHA_A));
+        assertInvalid(entry("dir/patch.jar", "1", SHA_A));
+        assertInvalid(entry("dir\\patch.jar", "1", SHA_A));
+        assertInvalid(entry("..", "1", SHA_A));
+        assertInvalid(entry("", "1", SHA_A));
+    }
+
+    @Test
+    public void rejectsDuplicateNames() {
+        assertInvalid("version=1", "patch.count=2",
+                "patch.0.name=patch.jar", "patch.0.size=1", "patch.0.sha256=" + SHA_A,
+                "patch.1.name=patch.jar", "patch.1.size=1", "patch.1.sha256=" + SHA_B);
+    }
+
+    @Test
+    public void rejectsDexFilesOutOfOrder() {
+        assertInvalid(withDex("classes2.dex"));
+        assertInvalid(withDex("classes.dex,classes3.dex"));
+        assertInvalid(withDex("classes2.dex,classes.dex"));
+    }
+
+    static PatchManifest parse(String... lines) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return PatchManifest.parse(new ByteArrayInputStream(builder.toString().getBytes("UTF-8")));
+    }
+
+    static String[] entry(String name, String size, String sha256) {
+        return new String[]{"version=1", "patch.count=1", "patch.0.name=" + name, "patch.0.size=" + size,
+                "patch.0.sha256=" + sha256};
+    }
+
+    private static String[] withDex(String dex) {
+        String[] lines = Arrays.copyOf(entry("patch.jar", "1", SHA_A), 6);
+        lines[5] = "patch.0.dex=" + dex;
+        return lines;
+    }
+
+    private static void assertInvalid(String... lines) {
+        try {
+            parse(lines);
+            fail("应当拒绝清单：" + Arrays.toString(lines));
+        } catch (IOException expected) {
+        }
+    }
+
+    static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,142 @@
+package com.demo.patch.loader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PatchVerifierTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void verifiesInParallelAndKeepsManifestOrder() throws IOException {
+        File patchDir = temporaryFolder.getRoot();
+        List<String> lines = header(8);
+        for (int i = 0; i < 8; i++) {
+            addEntry(lines, i, writeFile(patchDir, "patch" + i + ".jar", i, 64 * 1024 + i), null);
+        }
+        PatchManifest manifest = PatchManifestTest.parse(lines.toArray(new String[0]));
+
+        List<File> files = new PatchVerifier(patchDir).verify(manifest, 4);
+        assertEquals(8, files.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(new File(patchDir, "patch" + i + ".jar"), files.get(i));
+        }
+        assertTrue(new File(patchDir, PatchVerifier.STAMP_FILE_NAME).isFile());
+        // 文件没有变化时只比较校验记录
+        assertEquals(files, new PatchVerifier(patchDir).verify(manifest, 4));
+    }
+
+    @Test
+    public void rejectsChecksumMismatchInParallel() throws IOException {
+        File patchDir = temporaryFolder.getRoot();
+        List<String> lines = header(6);
+        for (int i = 0; i < 6; i++) {
+            File file = writeFile(patchDir, "patch" + i + ".jar", i, 16 * 1024);
+            // 第 4 个文件的摘要与内容不一致，大小相同
+            addEntry(lines, i, file, i == 3 ? PatchManifestTest.repeat('0', 64) : null);
+        }
+        PatchManifest manifest = PatchManifestTest.parse(lines.toArray(new String[0]));
+        try {
+            new PatchVerifier(patchDir).verify(manifest, 4);
+            fail("摘要不一致时应当拒绝加载");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("patch3.jar"));
+        }
+        assertTrue(!new File(patchDir, PatchVerifier.STAMP_FILE_NAME).exists());
+    }
+
+    @Test
+    public void rejectsChecksumMismatchSerially() throws IOException {
+        File patchDir = temporaryFolder.getRoot();
+        List<String> lines = header(1);
+        addEntry(lines, 0, writeFile(patchDir, "patch.jar", 1, 1024), PatchManifestTest.repeat('f', 64));
+        try {
+            new PatchVerifier(patchDir).verify(PatchManifestTest.parse(lines.toArray(new String[0])), 1);
+            fail("摘要不一致时应当拒绝加载");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void reverifiesModifiedFile() throws IOException {
+        File patchDir = temporaryFolder.getRoot();
+        File file = writeFile(patchDir, "patch.jar", 1, 4096);
+        List<String> lines = header(1);
+        addEntry(lines, 0, file, null);
+        PatchManifest manifest = PatchManifestTest.parse(lines.toArray(new String[0]));
+        new PatchVerifier(patchDir).verify(manifest, 2);
+
+        // 内容被替换，大小不变，修改时间不同，校验记录失效
+        long lastModified = file.lastModified();
+        writeFile(patchDir, "patch.jar", 2, 4096);
+        file.setLastModified(lastModified - 10000);
+        try {
+            new PatchVerifier(patchDir).verify(manifest, 2);
+            fail("补丁文件被替换后应当重新校验并拒绝");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsMissingOrTruncatedFile() throws IOException {
+        File patchDir = temporaryFolder.getRoot();
+        File file = writeFile(patchDir, "patch.jar", 1, 4096);
+        List<String> lines = header(1);
+        addEntry(lines, 0, file, null);
+        PatchManifest manifest = PatchManifestTest.parse(lines.toArray(new String[0]));
+        writeFile(patchDir, "patch.jar", 1, 4000);
+        try {
+            new PatchVerifier(patchDir).verify(manifest, 2);
+            fail("大小与清单不一致时应当拒绝");
+        } catch (IOException expected) {
+        }
+        file.delete();
+        try {
+            new PatchVerifier(patchDir).verify(manifest, 2);
+            fail("文件缺失时应当拒绝");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<String> header(int count) {
+        List<String> lines = new ArrayList<>();
+        lines.add("version=1");
+        lines.add("patch.count=" + count);
+        return lines;
+    }
+
+    /**
+     * @param sha256 为 null 时使用文件的真实摘要
+     */
+    private static void addEntry(List<String> lines, int index, File file, String sha256) throws IOException {
+        lines.add("patch." + index + ".name=" + file.getName());
+        lines.add("patch." + index + ".size=" + file.length());
+        lines.add("patch." + index + ".sha256=" + (sha256 != null ? sha256 : PatchVerifier.sha256(file)));
+    }
+
+    private static File writeFile(File dir, String name, long seed, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        File file = new File(dir, name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+}